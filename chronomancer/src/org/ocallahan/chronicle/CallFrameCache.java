@@ -0,0 +1,180 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers the call frames QueryUtils.findStartOfCallWithRegs has found.
+ * A frame is the thread, the stack pointer before the call and the
+ * timestamps [enter, end) of the invocation. Walking up the stack asks, for
+ * each frame, which frame called it, and the answer never changes, so we
+ * keep the answers keyed by the frame that asked; together they form a tree
+ * of frames per thread. After the first walk, moving around within the same
+ * call chain finds every frame above the innermost one here instead of with
+ * two scans per frame.
+ * 
+ * All methods can be called on any thread.
+ */
+public class CallFrameCache {
+	CallFrameCache(Session session) {
+		this.session = session;
+	}
+	
+	/**
+	 * The default capacity, in frames.
+	 */
+	public static final int DEFAULT_CAPACITY = 0x4000;
+	
+	synchronized public void setCapacity(int frames) {
+		capacity = frames;
+		evict();
+	}
+	
+	synchronized public void clear() {
+		callers.clear();
+	}
+	
+	synchronized public long getHits() { return hits; }
+	synchronized public long getMisses() { return misses; }
+	
+	@Override
+	synchronized public String toString() {
+		return "CallFrameCache: " + callers.size() + " frames, " + hits +
+		    " hits, " + misses + " misses";
+	}
+	
+	static class Frame {
+		Frame(int thread, long enterTStamp, long endTStamp, long beforeCallSP,
+				long stackEnd) {
+			this.thread = thread;
+			this.enterTStamp = enterTStamp;
+			this.endTStamp = endTStamp;
+			this.beforeCallSP = beforeCallSP;
+			this.stackEnd = stackEnd;
+		}
+		void deliver(QueryUtils.StartReceiver receiver) {
+			receiver.receiveStart(enterTStamp, endTStamp, beforeCallSP,
+					stackEnd, thread);
+		}
+		int  thread;
+		long enterTStamp;
+		long endTStamp;
+		long beforeCallSP;
+		long stackEnd;
+	}
+	
+	// The caller of the outermost frames
+	private static final Frame BOTTOM = new Frame(0, -1, -1, 0, 0);
+	
+	private static String keyFor(int thread, long tStamp, long sp) {
+		return thread + ":" + tStamp + ":" + sp;
+	}
+	
+	/**
+	 * If we know the answer to findStartOfCallWithRegs(tStamp, sp, thread),
+	 * gives it to receiver on the SessionThread.
+	 * @return whether we knew
+	 */
+	boolean deliverCaller(int thread, long tStamp, long sp,
+			final QueryUtils.StartReceiver receiver) {
+		final Frame caller;
+		synchronized (this) {
+			caller = callers.get(keyFor(thread, tStamp, sp));
+			if (caller == null) {
+				++misses;
+				return false;
+			}
+			++hits;
+		}
+		session.runOnThread(new Runnable() {
+			public void run() {
+				if (caller == BOTTOM) {
+					receiver.receiveNothing();
+				} else {
+					caller.deliver(receiver);
+				}
+			}
+		});
+		return true;
+	}
+	
+	/**
+	 * Records the answer to findStartOfCallWithRegs(tStamp, sp, thread).
+	 * @param caller the frame found, or null if there was none
+	 */
+	synchronized void putCaller(int thread, long tStamp, long sp, Frame caller) {
+		callers.put(keyFor(thread, tStamp, sp), caller == null ? BOTTOM : caller);
+		evict();
+	}
+	
+	/**
+	 * @return whether we know there was no frame for
+	 * findStartOfCallWithRegs(tStamp, sp, thread)
+	 */
+	synchronized boolean isBottom(int thread, long tStamp, long sp) {
+		return callers.get(keyFor(thread, tStamp, sp)) == BOTTOM;
+	}
+	
+	/**
+	 * Wraps receiver so that the answer it gets is recorded as the answer to
+	 * findStartOfCallWithRegs(tStamp, sp, thread) too.
+	 */
+	QueryUtils.StartReceiver recordingAlso(final int thread, final long tStamp,
+			final long sp, final long innerTStamp, final long innerSP,
+			final QueryUtils.StartReceiver receiver) {
+		return new QueryUtils.StartReceiver() {
+			public void receiveStart(long enterTStamp, long endTStamp,
+					long beforeCallSP, long stackEnd, int t) {
+				putCaller(thread, tStamp, sp, new Frame(t, enterTStamp,
+						endTStamp, beforeCallSP, stackEnd));
+				receiver.receiveStart(enterTStamp, endTStamp, beforeCallSP,
+						stackEnd, t);
+			}
+			public void receiveNothing() {
+				// Only a definite answer is worth keeping
+				if (isBottom(thread, innerTStamp, innerSP)) {
+					putCaller(thread, tStamp, sp, null);
+				}
+				receiver.receiveNothing();
+			}
+		};
+	}
+	
+	// Called with our lock held.
+	private void evict() {
+		Iterator<Frame> iter = callers.values().iterator();
+		while (callers.size() > capacity && iter.hasNext()) {
+			iter.next();
+			iter.remove();
+		}
+	}
+	
+	private Session                     session;
+	// The answers we know, by the thread, timestamp and stack pointer asked
+	// about, in least recently used order
+	private LinkedHashMap<String,Frame> callers =
+		new LinkedHashMap<String,Frame>(16, 0.75f, true);
+	private int                         capacity = DEFAULT_CAPACITY;
+	private long                        hits;
+	private long                        misses;
+}
@@ -0,0 +1,588 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * An index of every call in the trace: for each, the timestamp of the call
+ * instruction, the timestamp after it returned, the stack pointer before the
+ * call, the thread and the PC of the function's first instruction. Calls on
+ * one thread nest, so each call also records the call that encloses it,
+ * which makes a tree per thread; finding the innermost call active at a
+ * timestamp is a binary search and a short walk up the tree.
+ * 
+ * The index is built in the background from one ENTER_SP scan over the whole
+ * trace, then a readReg and a findSPGreaterThan per call, a window of them
+ * at a time at background priority. If a file is given, the index is saved
+ * there, from a background thread, when it's built and loaded from there
+ * next time. The file records the trace's end timestamp, and the length and
+ * modification time of the trace database if we know it, and is only
+ * loaded if they all still match.
+ * 
+ * QueryUtils answers from the index once it's complete, and asks the agent
+ * until then.
+ */
+public class CallIndex {
+	private CallIndex(Session session, File file, File trace) {
+		this.session = session;
+		this.file = file;
+		if (trace != null) {
+			traceLength = trace.length();
+			traceModified = trace.lastModified();
+		}
+	}
+	
+	/**
+	 * Starts loading or building the index for session, and makes it the
+	 * session's index.
+	 * @param file where to keep the index, or null
+	 * @param trace the trace database, or null if we don't know it; a saved
+	 * index for a different version of it isn't used
+	 */
+	public static CallIndex open(Session session, File file, File trace) {
+		final CallIndex index = new CallIndex(session, file, trace);
+		session.setCallIndex(index);
+		if (file != null && file.exists()) {
+			Thread t = new Thread("Chronicle Call Index Loader") {
+				public void run() {
+					if (!index.load()) {
+						index.build();
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		} else {
+			index.build();
+		}
+		return index;
+	}
+	
+	/**
+	 * Where to keep the index for a trace.
+	 */
+	public static File getFileFor(File trace) {
+		return new File(trace.getPath() + ".calls");
+	}
+	
+	synchronized public boolean isComplete() {
+		return complete;
+	}
+	
+	synchronized public int getCallCount() {
+		return count;
+	}
+	
+	@Override
+	synchronized public String toString() {
+		return "CallIndex: " + count + " calls, " + threadCalls.size() +
+		    " threads, " + (complete ? "complete" : failed ? "failed" : "building");
+	}
+	
+	private static final int  MAGIC = 0x43414c4c;
+	private static final int  VERSION = 2;
+	// How many calls we look up at once while building
+	private static final int  WINDOW = 64;
+	
+	// runs on the loader thread
+	private boolean load() {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+					in.readLong() != session.getEndTStamp() ||
+					in.readLong() != traceLength ||
+					in.readLong() != traceModified)
+					return false;
+				int n = in.readInt();
+				allocate(n);
+				for (int i = 0; i < n; ++i) {
+					enterTStamps[i] = in.readLong();
+					endTStamps[i] = in.readLong();
+					beforeCallSPs[i] = in.readLong();
+					threads[i] = in.readInt();
+					entryPCs[i] = in.readLong();
+				}
+				count = n;
+				int threadCount = in.readInt();
+				for (int i = 0; i < threadCount; ++i) {
+					stackEnds.put(in.readInt(), in.readLong());
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			return false;
+		}
+		finish();
+		return true;
+	}
+	
+	// runs on the saver thread
+	private void save() {
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(session.getEndTStamp());
+				out.writeLong(traceLength);
+				out.writeLong(traceModified);
+				out.writeInt(count);
+				for (int i = 0; i < count; ++i) {
+					out.writeLong(enterTStamps[i]);
+					out.writeLong(endTStamps[i]);
+					out.writeLong(beforeCallSPs[i]);
+					out.writeInt(threads[i]);
+					out.writeLong(entryPCs[i]);
+				}
+				out.writeInt(stackEnds.size());
+				for (Integer t : stackEnds.keySet()) {
+					out.writeInt(t);
+					out.writeLong(stackEnds.get(t));
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				tmp.renameTo(file);
+			}
+		} catch (IOException ex) {
+			tmp.delete();
+		}
+	}
+	
+	private void allocate(int n) {
+		enterTStamps = new long[n];
+		endTStamps = new long[n];
+		beforeCallSPs = new long[n];
+		threads = new int[n];
+		entryPCs = new long[n];
+	}
+	
+	// Everything we find belongs to everyone, and can wait
+	private void send(Query q) {
+		QueryScope oldScope = session.setCurrentScope(session.getRootScope());
+		Query.Priority oldPriority = session.setCurrentPriority(Query.Priority.BACKGROUND);
+		try {
+			// There'd be no point keeping the answers
+			q.bypassCache = true;
+			q.send();
+		} finally {
+			session.setCurrentPriority(oldPriority);
+			session.setCurrentScope(oldScope);
+		}
+	}
+	
+	private void build() {
+		final int pointerSize = session.getArchitecture().getPointerSize();
+		send(new ScanEnterSPQuery(session, 0, session.getEndTStamp(),
+				new MemRange[] { new MemRange(0, Long.MAX_VALUE) },
+				ScanQuery.Termination.NONE, new ScanEnterSPQuery.Listener() {
+			public void notifyEnterSPResult(ScanEnterSPQuery q, long tStamp,
+					long start, long end) {
+				if (n == enters.length) {
+					enters = grow(enters);
+					sps = grow(sps);
+				}
+				enters[n] = tStamp;
+				sps[n] = start + pointerSize;
+				++n;
+			}
+			public void notifyMMapResult(ScanQuery q, long tStamp, long start,
+					long end, MMapInfo info) {}
+			public void notifyDone(ScanQuery q, boolean complete) {
+				if (!complete) {
+					fail();
+					return;
+				}
+				synchronized (CallIndex.this) {
+					allocate(n);
+					sortInto(enters, sps, n);
+				}
+				for (int i = 0; i < WINDOW && i < n; ++i) {
+					resolveNext();
+				}
+				if (n == 0) {
+					resolveStackEnds();
+				}
+			}
+			private int    n;
+			private long[] enters = new long[16];
+			private long[] sps = new long[16];
+		}));
+	}
+	
+	private static long[] grow(long[] a) {
+		long[] result = new long[a.length*2];
+		System.arraycopy(a, 0, result, 0, a.length);
+		return result;
+	}
+	
+	// Called with our lock held. The scan usually reports calls in order
+	// already.
+	private void sortInto(final long[] enters, long[] sps, int n) {
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; ++i) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long x = enters[a];
+				long y = enters[b];
+				return x < y ? -1 : x > y ? 1 : 0;
+			}
+		});
+		for (int i = 0; i < n; ++i) {
+			enterTStamps[i] = enters[order[i]];
+			beforeCallSPs[i] = sps[order[i]];
+		}
+		toResolve = n;
+	}
+	
+	// Finds the thread, entry PC and return of the next unresolved call
+	private void resolveNext() {
+		final int i;
+		synchronized (this) {
+			if (failed || nextToResolve >= enterTStamps.length)
+				return;
+			i = nextToResolve++;
+		}
+		final String pcReg = Architecture.getPCReg();
+		final String threadReg = Architecture.getThreadReg();
+		final long entry = enterTStamps[i] + 1;
+		send(new ReadRegQuery(session, entry, new String[] { threadReg, pcReg },
+				64, new ReadRegQuery.Listener() {
+			public void notifyDone(ReadRegQuery q, boolean complete,
+					RegisterValues values) {
+				if (!complete || values.getValue(threadReg) == null ||
+					values.getValue(pcReg) == null) {
+					fail();
+					return;
+				}
+				final int thread = values.getIntValue(threadReg);
+				synchronized (CallIndex.this) {
+					threads[i] = thread;
+					entryPCs[i] = values.getLongValue(pcReg);
+				}
+				long enterSP = beforeCallSPs[i] -
+				    session.getArchitecture().getPointerSize();
+				send(new FindGreaterSPQuery(session, entry,
+						session.getEndTStamp(), enterSP, thread,
+						new FindGreaterSPQuery.Listener() {
+					public void notifyDone(FindGreaterSPQuery q,
+							boolean complete, Long tStamp) {
+						if (!complete) {
+							fail();
+							return;
+						}
+						synchronized (CallIndex.this) {
+							endTStamps[i] = tStamp == null ? -1 : tStamp + 1;
+						}
+						resolved();
+					}
+				}));
+			}
+		}));
+	}
+	
+	// runs on SessionThread
+	private void resolved() {
+		boolean done;
+		synchronized (this) {
+			done = --toResolve == 0;
+		}
+		if (done) {
+			resolveStackEnds();
+		} else {
+			resolveNext();
+		}
+	}
+	
+	// Finds where each thread's stack ends, as findStartOfCall does
+	private void resolveStackEnds() {
+		final HashMap<Integer,Integer> firstCalls = new HashMap<Integer,Integer>();
+		synchronized (this) {
+			for (int i = 0; i < enterTStamps.length; ++i) {
+				if (!firstCalls.containsKey(threads[i])) {
+					firstCalls.put(threads[i], i);
+				}
+			}
+			count = enterTStamps.length;
+		}
+		if (firstCalls.isEmpty()) {
+			finishBuild();
+			return;
+		}
+		final int[] pending = { firstCalls.size() };
+		for (final Integer thread : firstCalls.keySet()) {
+			int i = firstCalls.get(thread);
+			QueryScope old = session.setCurrentScope(session.getRootScope());
+			try {
+				QueryUtils.findMemoryEnd(session, enterTStamps[i], beforeCallSPs[i],
+						new QueryUtils.MemoryEndReceiver() {
+					public void receiveEnd(long end) {
+						synchronized (CallIndex.this) {
+							stackEnds.put(thread, end);
+							if (--pending[0] > 0)
+								return;
+						}
+						finishBuild();
+					}
+				});
+			} finally {
+				session.setCurrentScope(old);
+			}
+		}
+	}
+	
+	private void finishBuild() {
+		synchronized (this) {
+			if (failed)
+				return;
+		}
+		finish();
+		if (file == null)
+			return;
+		// Writing the whole index would hold up every callback on the
+		// SessionThread. Nothing changes once it's complete, so the saver
+		// needs no lock.
+		Thread t = new Thread("Chronicle Call Index Saver") {
+			public void run() {
+				save();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	private synchronized void fail() {
+		failed = true;
+	}
+	
+	// Links each call to the call enclosing it on the same thread
+	private void finish() {
+		synchronized (this) {
+			HashMap<Integer,ArrayList<Integer>> byThread =
+				new HashMap<Integer,ArrayList<Integer>>();
+			for (int i = 0; i < count; ++i) {
+				ArrayList<Integer> list = byThread.get(threads[i]);
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					byThread.put(threads[i], list);
+				}
+				list.add(i);
+			}
+			parents = new int[count];
+			for (Integer thread : byThread.keySet()) {
+				ArrayList<Integer> list = byThread.get(thread);
+				int[] calls = new int[list.size()];
+				int[] stack = new int[list.size()];
+				int depth = 0;
+				for (int k = 0; k < calls.length; ++k) {
+					int i = list.get(k);
+					calls[k] = i;
+					while (depth > 0 && !contains(stack[depth - 1], enterTStamps[i])) {
+						--depth;
+					}
+					parents[i] = depth > 0 ? stack[depth - 1] : -1;
+					stack[depth++] = i;
+				}
+				threadCalls.put(thread, calls);
+			}
+			complete = true;
+		}
+	}
+	
+	// Called with our lock held.
+	private boolean contains(int i, long tStamp) {
+		return enterTStamps[i] < tStamp &&
+		    (endTStamps[i] < 0 || endTStamps[i] > tStamp);
+	}
+	
+	// Called with our lock held. The innermost call on thread active at
+	// tStamp, or -1.
+	private int findInnermost(int thread, long tStamp) {
+		int[] calls = threadCalls.get(thread);
+		if (calls == null)
+			return -1;
+		// The last call entered before tStamp
+		int lo = 0;
+		int hi = calls.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (enterTStamps[calls[mid]] < tStamp) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		int i = lo > 0 ? calls[lo - 1] : -1;
+		while (i >= 0 && !contains(i, tStamp)) {
+			i = parents[i];
+		}
+		return i;
+	}
+	
+	/**
+	 * Like QueryUtils.findStartOfCallWithRegs. Call only once the index is
+	 * complete.
+	 */
+	void findStartOfCall(long tStamp, int thread,
+			final QueryUtils.StartReceiver receiver) {
+		final long enter;
+		final long end;
+		final long beforeCallSP;
+		final long stackEnd;
+		final int t = thread;
+		synchronized (this) {
+			int i = findInnermost(thread, tStamp);
+			if (i < 0) {
+				enter = -1;
+				end = beforeCallSP = stackEnd = 0;
+			} else {
+				enter = enterTStamps[i];
+				end = endTStamps[i] < 0 ? session.getEndTStamp() : endTStamps[i];
+				beforeCallSP = beforeCallSPs[i];
+				stackEnd = stackEnds.get(thread);
+			}
+		}
+		session.runOnThread(new Runnable() {
+			public void run() {
+				if (enter < 0) {
+					receiver.receiveNothing();
+				} else {
+					receiver.receiveStart(enter, end, beforeCallSP, stackEnd, t);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Like QueryUtils.findStartOfCall. Call only once the index is complete.
+	 */
+	void findStartOfCall(final long tStamp, final QueryUtils.StartReceiver receiver) {
+		synchronized (this) {
+			if (threadCalls.size() <= 1) {
+				int thread = threadCalls.isEmpty() ? 0
+						: threadCalls.keySet().iterator().next();
+				findStartOfCall(tStamp, thread, receiver);
+				return;
+			}
+		}
+		// We need to know which thread is running
+		final String threadReg = Architecture.getThreadReg();
+		new ReadRegQuery(session, tStamp, new String[] { threadReg }, 64,
+				new ReadRegQuery.Listener() {
+			public void notifyDone(ReadRegQuery q, boolean complete,
+					RegisterValues values) {
+				if (!complete || values.getValue(threadReg) == null) {
+					receiver.receiveNothing();
+					return;
+				}
+				findStartOfCall(tStamp, values.getIntValue(threadReg), receiver);
+			}
+		}).send();
+	}
+	
+	// Called with our lock held. The call whose first instruction is at
+	// tStamp, or -1.
+	private int findEntry(long tStamp) {
+		int i = Arrays.binarySearch(enterTStamps, tStamp - 1);
+		return i < 0 ? -1 : i;
+	}
+	
+	/**
+	 * Like QueryUtils.findEndOfCall. Call only once the index is complete.
+	 * @param tStamp the timestamp of the first instruction of the call
+	 * @return false if we don't know of a call starting there, and
+	 * receiver won't be called
+	 */
+	boolean findEndOfCall(long tStamp, final QueryUtils.EndReceiver receiver) {
+		final long end;
+		synchronized (this) {
+			int i = findEntry(tStamp);
+			if (i < 0)
+				return false;
+			end = endTStamps[i];
+		}
+		session.runOnThread(new Runnable() {
+			public void run() {
+				if (end < 0) {
+					receiver.receiveNothing();
+				} else {
+					receiver.receiveEnd(end);
+				}
+			}
+		});
+		return true;
+	}
+	
+	/**
+	 * Call only once the index is complete.
+	 * @param tStamp the timestamp of the first instruction of a call
+	 * @return the PC there, or -1 if we don't know of a call starting there
+	 */
+	synchronized long getEntryPC(long tStamp) {
+		int i = findEntry(tStamp);
+		return i < 0 ? -1 : entryPCs[i];
+	}
+	
+	private Session               session;
+	private File                  file;
+	// The trace database's, or -1 if we don't know it
+	private long                  traceLength = -1;
+	private long                  traceModified = -1;
+	private boolean               complete;
+	private boolean               failed;
+	// Calls in order of the call instruction's timestamp
+	private int                   count;
+	private long[]                enterTStamps = new long[0];
+	// -1 if the call never returned
+	private long[]                endTStamps = new long[0];
+	private long[]                beforeCallSPs = new long[0];
+	private int[]                 threads = new int[0];
+	private long[]                entryPCs = new long[0];
+	// The enclosing call on the same thread, or -1
+	private int[]                 parents;
+	// Each thread's calls, in order
+	private HashMap<Integer,int[]> threadCalls = new HashMap<Integer,int[]>();
+	private HashMap<Integer,Long> stackEnds = new HashMap<Integer,Long>();
+	// While building
+	private int                   nextToResolve;
+	private int                   toResolve;
+}
@@ -0,0 +1,540 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Finds the next or previous change to a composed data source, the way
+ * MemoryDataSource does for plain memory. The source is flattened as for a
+ * ReadPlan; all its memory pieces are covered by a single multi-range
+ * MEM_WRITE scan, its registers are sampled with readReg, and any other
+ * pieces are asked themselves. All of these go out together and the
+ * earliest (or latest) hit wins. Memory that has WriteHistories is
+ * searched locally instead.
+ * 
+ * There is no register-change scan. Registers only mean something within
+ * the invocation that owns them, so we look up the enclosing call first
+ * (from the CallIndex or the CallFrameCache when they know it) and search
+ * no further than its return (or its entry). The registers are read at
+ * the source's timestamp, at each of the next 64 timestamps, and then at
+ * timestamps 128, 256, 512, ... away up to that bound, all in one round
+ * trip. If any sample differs, the gap between the last sample that matched
+ * and the first that didn't is sampled again at evenly spaced points, a
+ * round trip each time, until the change is pinned to one timestamp. So a
+ * nearby change costs one round trip after the call lookup and a distant
+ * one a few more. A register that changes and changes back between two
+ * samples further out can be missed; if no sample differs, we report the
+ * end of scope at the bound.
+ * 
+ * Changes are reported with offsets and lengths relative to the source, in
+ * the TStampReceiver's usual session-thread callback.
+ */
+public class ChangeFinder {
+	private ChangeFinder(IDataSource source, long start, boolean forward,
+			IDataSource.TStampReceiver receiver) {
+		this.session = source.getSession();
+		this.tStamp = source.getTStamp();
+		this.start = start;
+		this.forward = forward;
+		this.receiver = receiver;
+		this.scope = session.getCurrentScope();
+		this.scopeEnd = forward ? session.getEndTStamp() : 0;
+	}
+	
+	public static void findNext(IDataSource source, long start, long length,
+			IDataSource.TStampReceiver receiver) {
+		new ChangeFinder(source, start, true, receiver).find(source, length);
+	}
+	
+	public static void findPrevious(IDataSource source, long start, long length,
+			IDataSource.TStampReceiver receiver) {
+		new ChangeFinder(source, start, false, receiver).find(source, length);
+	}
+	
+	private void find(IDataSource source, long length) {
+		ArrayList<ReadPlan.Leaf> leaves = new ArrayList<ReadPlan.Leaf>();
+		ReadPlan.flatten(source, start*8, 0, length*8, leaves);
+		ArrayList<ReadPlan.Leaf> memory = new ArrayList<ReadPlan.Leaf>();
+		LinkedHashMap<String,ArrayList<ReadPlan.Leaf>> registers =
+			new LinkedHashMap<String,ArrayList<ReadPlan.Leaf>>();
+		ArrayList<ReadPlan.Leaf> others = new ArrayList<ReadPlan.Leaf>();
+		for (ReadPlan.Leaf l : leaves) {
+			if (l.source instanceof MemoryDataSource) {
+				memory.add(l);
+			} else if (l.bit < 0) {
+				// Before the start of the source; never valid, never changes
+			} else if (l.source instanceof RegisterDataSource) {
+				String reg = ((RegisterDataSource)l.source).getRegister();
+				ArrayList<ReadPlan.Leaf> list = registers.get(reg);
+				if (list == null) {
+					list = new ArrayList<ReadPlan.Leaf>();
+					registers.put(reg, list);
+				}
+				list.add(l);
+			} else {
+				others.add(l);
+			}
+		}
+		
+		pending = others.size() + (memory.isEmpty() ? 0 : 1) +
+		    (registers.isEmpty() ? 0 : 1);
+		if (pending == 0) {
+			session.runOnThread(new Runnable() {
+				public void run() {
+					deliver();
+				}
+			});
+			return;
+		}
+		if (!memory.isEmpty()) {
+			scanMemory(memory);
+		}
+		if (!registers.isEmpty()) {
+			new RegisterProbe(registers).start();
+		}
+		for (ReadPlan.Leaf l : others) {
+			probeLeaf(l);
+		}
+	}
+	
+	private static MemRange destRange(ReadPlan.Leaf l) {
+		return new MemRange(l.destBit >> 3, (l.destBit + l.numBits + 7) >> 3);
+	}
+	
+	// One scan for every memory piece
+	private void scanMemory(final ArrayList<ReadPlan.Leaf> leaves) {
+		MemRange[] ranges = new MemRange[leaves.size()];
+		for (int i = 0; i < ranges.length; ++i) {
+			ReadPlan.Leaf l = leaves.get(i);
+			long address = ReadPlan.addressOf(l);
+			ranges[i] = new MemRange(address,
+					address + ReadPlan.bytesFor(l.bit, l.numBits));
+		}
+		MemRange[] merged = mergeRanges(ranges);
+		if (useHistories(leaves, merged))
+			return;
+		ScanWriteQuery q = new ScanWriteQuery(session,
+				forward ? tStamp + 1 : 0, forward ? session.getEndTStamp() : tStamp,
+				merged,
+				forward ? ScanQuery.Termination.FIRST : ScanQuery.Termination.LAST,
+				new ScanWriteQuery.Listener() {
+			private void accumulate(long t, long start, long end) {
+				if (lastTStamp >= 0 && t != lastTStamp &&
+					(t > lastTStamp) == forward)
+					return;
+				if (t != lastTStamp) {
+					hits.clear();
+					lastTStamp = t;
+				}
+				hits.add(new MemRange(start, end));
+			}
+			public void notifyWriteResult(ScanWriteQuery q, long t,
+					long start, long end, byte[] data) {
+				accumulate(t, start, end);
+			}
+			public void notifyMMapResult(ScanQuery q, long t, long start, long end, MMapInfo info) {
+				accumulate(t, start, end);
+			}
+			public void notifyDone(ScanQuery q, boolean complete) {
+				if (lastTStamp < 0) {
+					probeDone();
+				} else {
+					memoryHit(leaves, lastTStamp, hits);
+				}
+			}
+			private long                lastTStamp = -1;
+			private ArrayList<MemRange> hits = new ArrayList<MemRange>();
+		});
+		q.send();
+	}
+	
+	// If every range has a WriteHistory, asks them instead of scanning
+	private boolean useHistories(final ArrayList<ReadPlan.Leaf> leaves,
+			MemRange[] ranges) {
+		WriteHistory[] histories = new WriteHistory[ranges.length];
+		boolean all = true;
+		for (int i = 0; i < ranges.length; ++i) {
+			histories[i] = session.getWriteHistoryCache().getForNavigation(
+					ranges[i].getStart(), ranges[i].getEnd());
+			all = all && histories[i] != null;
+		}
+		if (!all)
+			return false;
+		synchronized (this) {
+			pending += ranges.length - 1;
+		}
+		for (int i = 0; i < ranges.length; ++i) {
+			IDataSource.TStampReceiver r = new IDataSource.TStampReceiver() {
+				public void receiveChange(long t, long offset, long length) {
+					ArrayList<MemRange> hits = new ArrayList<MemRange>();
+					hits.add(new MemRange(offset, offset + length));
+					memoryHit(leaves, t, hits);
+				}
+				public void receiveEndOfScope(long t) {
+					probeDone();
+				}
+			};
+			long from = ranges[i].getStart();
+			long to = ranges[i].getEnd();
+			if (forward) {
+				histories[i].findNextChangeTStamp(tStamp, from, to, r);
+			} else {
+				histories[i].findPreviousChangeTStamp(tStamp, from, to, r);
+			}
+		}
+		return true;
+	}
+	
+	// Maps the written addresses back to offsets in the source
+	private void memoryHit(ArrayList<ReadPlan.Leaf> leaves, long t,
+			ArrayList<MemRange> hits) {
+		MemRange range = null;
+		for (ReadPlan.Leaf l : leaves) {
+			long address = ReadPlan.addressOf(l);
+			long end = address + ReadPlan.bytesFor(l.bit, l.numBits);
+			long dest = l.destBit >> 3;
+			for (MemRange hit : hits) {
+				MemRange r = hit.intersect(address, end);
+				if (r == null)
+					continue;
+				long from = dest + r.getStart() - address;
+				long to = dest + r.getEnd() - address;
+				range = range == null ? new MemRange(from, to) : range.union(from, to);
+			}
+		}
+		if (range == null) {
+			probeDone();
+		} else {
+			hit(t, range);
+		}
+	}
+	
+	private static MemRange[] mergeRanges(MemRange[] ranges) {
+		Arrays.sort(ranges, MemRange.getStartComparator());
+		ArrayList<MemRange> merged = new ArrayList<MemRange>();
+		MemRange current = null;
+		for (MemRange r : ranges) {
+			if (current != null && r.getStart() <= current.getEnd()) {
+				current = current.union(r.getStart(), r.getEnd());
+			} else {
+				if (current != null) {
+					merged.add(current);
+				}
+				current = r;
+			}
+		}
+		merged.add(current);
+		return merged.toArray(new MemRange[merged.size()]);
+	}
+	
+	// Anything else knows how to find its own changes
+	private void probeLeaf(final ReadPlan.Leaf l) {
+		IDataSource.TStampReceiver r = new IDataSource.TStampReceiver() {
+			public void receiveChange(long t, long offset, long length) {
+				hit(t, destRange(l));
+			}
+			public void receiveEndOfScope(long t) {
+				probeDone();
+			}
+		};
+		int length = ReadPlan.bytesFor(l.bit, l.numBits);
+		if (forward) {
+			l.source.findNextChangeTStamp(l.bit >> 3, length, r);
+		} else {
+			l.source.findPreviousChangeTStamp(l.bit >> 3, length, r);
+		}
+	}
+	
+	// Samples the registers between the source's timestamp and the end (or
+	// start) of the enclosing call until it finds where one first differs
+	private class RegisterProbe {
+		RegisterProbe(LinkedHashMap<String,ArrayList<ReadPlan.Leaf>> leaves) {
+			this.leaves = leaves;
+			regs = leaves.keySet().toArray(new String[leaves.size()]);
+			for (ArrayList<ReadPlan.Leaf> list : leaves.values()) {
+				for (ReadPlan.Leaf l : list) {
+					bits = Math.max(bits, (int)((l.bit + l.numBits + 7) >> 3)*8);
+				}
+			}
+		}
+		
+		void start() {
+			QueryScope old = session.setCurrentScope(scope);
+			try {
+				QueryUtils.findStartOfCall(session, tStamp,
+						new QueryUtils.StartReceiver() {
+					public void receiveStart(long callTStamp, long endTStamp,
+							long beforeCallSP, long stackEnd, int thread) {
+						// The callee runs from the instruction after the call
+						// up to and including its return
+						if (forward) {
+							startSampling((endTStamp < 0 ?
+									session.getEndTStamp() : endTStamp) - 1);
+						} else {
+							startSampling(callTStamp + 1);
+						}
+					}
+					public void receiveNothing() {
+						startSampling(forward ? session.getEndTStamp() - 1 : 0);
+					}
+				});
+			} finally {
+				session.setCurrentScope(old);
+			}
+		}
+		
+		// 'bound' is the furthest timestamp at which the registers are ours
+		private void startSampling(long bound) {
+			if (forward ? bound <= tStamp : bound >= tStamp) {
+				noChange(bound);
+				return;
+			}
+			ArrayList<Long> times = new ArrayList<Long>();
+			times.add(tStamp);
+			// Every nearby timestamp, then further and further apart, so
+			// a change that is soon undone is less likely to be passed over
+			// in favour of a later one
+			long distance = Math.abs(bound - tStamp);
+			for (long step = 1; step < distance;
+			     step = step < NEAR_STEPS ? step + 1 : step*2) {
+				times.add(forward ? tStamp + step : tStamp - step);
+			}
+			times.add(bound);
+			synchronized (this) {
+				this.bound = bound;
+				near = tStamp;
+			}
+			sample(times);
+		}
+		
+		// 'times' are in order from the source's timestamp outwards
+		private void sample(ArrayList<Long> times) {
+			synchronized (this) {
+				sampleTimes = times;
+				samples = new RegisterValues[times.size()];
+				outstanding = times.size();
+			}
+			QueryScope old = session.setCurrentScope(scope);
+			try {
+				for (int i = 0; i < times.size(); ++i) {
+					final int index = i;
+					new ReadRegQuery(session, times.get(i), regs, bits,
+							new ReadRegQuery.Listener() {
+						public void notifyDone(ReadRegQuery q, boolean complete,
+								RegisterValues values) {
+							received(index, complete ? values : null);
+						}
+					}).send();
+				}
+			} finally {
+				session.setCurrentScope(old);
+			}
+		}
+		
+		// Reads complete on the SessionThread, or concurrently in their
+		// SerialLanes
+		private void received(int index, RegisterValues values) {
+			ArrayList<Long> next = null;
+			MemRange range = null;
+			long end = -1;
+			synchronized (this) {
+				if (done)
+					return;
+				if (values == null) {
+					// Can't tell; don't claim anything
+					done = true;
+				} else {
+					samples[index] = values;
+					if (--outstanding > 0)
+						return;
+					if (base == null) {
+						base = samples[0];
+					}
+					ArrayList<String> changed = null;
+					for (int i = 0; i < samples.length && changed == null; ++i) {
+						changed = changed(samples[i]);
+						if (changed == null) {
+							near = sampleTimes.get(i);
+						} else {
+							far = sampleTimes.get(i);
+						}
+					}
+					if (changed != null) {
+						farChanged = changed;
+					} else if (farChanged == null) {
+						// Nothing differed anywhere up to the bound
+						done = true;
+						end = forward ? bound + 1 : bound - 1;
+					}
+					if (!done) {
+						long gap = Math.abs(far - near);
+						if (gap > 1) {
+							next = between(gap);
+						} else {
+							done = true;
+							range = changedRange();
+						}
+					}
+				}
+			}
+			if (next != null) {
+				sample(next);
+			} else if (range != null) {
+				// 'far' is the nearest timestamp at which a register was
+				// seen to differ; report where the new value is first seen
+				hit(forward ? far : near, range);
+			} else {
+				noChange(end);
+			}
+		}
+		
+		// Called with our lock held. Evenly spaced timestamps strictly
+		// between 'near' and 'far'.
+		private ArrayList<Long> between(long gap) {
+			int count = (int)Math.min(SAMPLES, gap - 1);
+			ArrayList<Long> times = new ArrayList<Long>(count);
+			for (int k = 1; k <= count; ++k) {
+				long offset = gap/(count + 1)*k + gap%(count + 1)*k/(count + 1);
+				times.add(forward ? near + offset : near - offset);
+			}
+			return times;
+		}
+		
+		// Called with our lock held.
+		private MemRange changedRange() {
+			MemRange range = null;
+			for (String reg : farChanged) {
+				for (ReadPlan.Leaf l : leaves.get(reg)) {
+					MemRange r = destRange(l);
+					range = range == null ? r : range.union(r.getStart(), r.getEnd());
+				}
+			}
+			return range;
+		}
+		
+		// 'end' is where we know the registers stop being ours, or -1
+		private void noChange(long end) {
+			if (end >= 0) {
+				limitScope(end);
+			}
+			probeDone();
+		}
+		
+		// Called with our lock held. The registers whose values differ from
+		// those at tStamp, or null.
+		private ArrayList<String> changed(RegisterValues values) {
+			ArrayList<String> result = null;
+			for (String reg : regs) {
+				if (!sameValue(base.getValue(reg), values.getValue(reg))) {
+					if (result == null) {
+						result = new ArrayList<String>();
+					}
+					result.add(reg);
+				}
+			}
+			return result;
+		}
+		
+		// How many timestamps after (or before) the source's we read one by
+		// one
+		private static final int NEAR_STEPS = 64;
+		// How many readRegs narrow the gap in each later round trip
+		private static final int SAMPLES = 16;
+		
+		private LinkedHashMap<String,ArrayList<ReadPlan.Leaf>> leaves;
+		private String[]                                       regs;
+		private int                                            bits;
+		// 'near' always has the values at tStamp, 'far' never does
+		private long                                           near;
+		private long                                           far;
+		private long                                           bound;
+		private ArrayList<Long>                                sampleTimes;
+		private RegisterValues[]                               samples;
+		private int                                            outstanding;
+		private RegisterValues                                 base;
+		private ArrayList<String>                              farChanged;
+		private boolean                                        done;
+	}
+	
+	private static boolean sameValue(RegisterValues.Value a, RegisterValues.Value b) {
+		if (a == null || b == null)
+			return a == b;
+		if (a.getBits() != b.getBits())
+			return false;
+		if (a.getBig() != null || b.getBig() != null)
+			return a.getBig() != null && a.getBig().equals(b.getBig());
+		return a.getLong() == b.getLong();
+	}
+	
+	// Called from any probe with a change; range is relative to start
+	private void hit(long t, MemRange range) {
+		synchronized (this) {
+			if (bestTStamp < 0 || (forward ? t < bestTStamp : t > bestTStamp)) {
+				bestTStamp = t;
+				bestRange = range;
+			} else if (t == bestTStamp) {
+				bestRange = bestRange.union(range.getStart(), range.getEnd());
+			}
+		}
+		probeDone();
+	}
+	
+	// Called when a probe knows nothing can change after (or before) 't'
+	private void limitScope(long t) {
+		synchronized (this) {
+			if (forward ? t < scopeEnd : t > scopeEnd) {
+				scopeEnd = t;
+			}
+		}
+	}
+	
+	// Called by each probe when it has finished, on any thread
+	private void probeDone() {
+		synchronized (this) {
+			if (--pending > 0)
+				return;
+		}
+		deliver();
+	}
+	
+	private void deliver() {
+		if (bestTStamp < 0) {
+			receiver.receiveEndOfScope(scopeEnd);
+		} else {
+			receiver.receiveChange(bestTStamp, start + bestRange.getStart(),
+					bestRange.getLength());
+		}
+	}
+	
+	private Session                    session;
+	private long                       tStamp;
+	private long                       start;
+	private boolean                    forward;
+	private IDataSource.TStampReceiver receiver;
+	private QueryScope                 scope;
+	private int                        pending;
+	private long                       scopeEnd;
+	private long                       bestTStamp = -1;
+	private MemRange                   bestRange;
+}
@@ -51,13 +51,11 @@ public class ConcatenationDataSource implements IDataSource {
     }
     
 	public void findNextChangeTStamp(long start, long length, TStampReceiver receiver) {
-		// TODO Auto-generated method stub
-
+		ChangeFinder.findNext(this, start, length, receiver);
 	}
 
 	public void findPreviousChangeTStamp(long start, long length, TStampReceiver receiver) {
-		// TODO Auto-generated method stub
-
+		ChangeFinder.findPrevious(this, start, length, receiver);
 	}
 
 	public Session getSession() {
@@ -79,110 +77,11 @@ public class ConcatenationDataSource implements IDataSource {
 		return elements[0].source.getTStamp();
 	}
 	
-	private static int checkedToInt(long l) {
-		int i = (int)l;
-		if (i != l)
-			throw new IllegalArgumentException("Integer " + l + " out of bounds");
-		return i;
-	}
-	
-	private static class Accumulator {
-		private IDataSink sink;
-		private byte[] result;
-		private byte[] resultValidMask;
-		private int outstandingLoads = 1;
-		
-		Accumulator(IDataSink sink, int length) {
-			this.sink = sink;
-			result = new byte[length];
-			resultValidMask = new byte[length];
-		}
-
-		IDataSink addRead(final long destStartBit, final long destNumBits) {
-			synchronized (this) {
-				++outstandingLoads;
-			}
-			return new IDataSink() {
-				public void receive(byte[] data, boolean[] valid) {
-					synchronized (this) {
-						if (destStartBit%8 == 0 && destNumBits%8 == 0) {
-							// this should be OK because in the caller
-							// we know bits <= 8*length
-							int dest = checkedToInt(destStartBit/8);
-							// this should be OK because in the caller
-							// we know bits <= 8*length
-							int len = checkedToInt(destNumBits/8);
-							for (int i = 0; i < len; ++i) {
-								if (valid[i]) {
-									result[i + dest] = data[i];
-									resultValidMask[i + dest] = (byte)0xFF;
-								}
-							}
-						} else {
-							for (long i = 0; i < destNumBits; ++i) {
-								// this should be OK because in the caller
-								// we know bits <= 8*length
-								int srcOffset = checkedToInt(i/8);
-								if (!valid[srcOffset])
-									continue;
-								int srcVal = (data[srcOffset] >> (i%8)) & 1;
-								long dest = destStartBit + i;
-								int destOffset = checkedToInt(dest/8);
-								int destBit = (int)(dest%8);
-								int destBitInvMask = ~(1 << destBit);
-								result[destOffset] = (byte)(
-									(result[destOffset] & destBitInvMask)
-								    | (srcVal << destBit));
-								resultValidMask[destOffset] = (byte)(
-									(resultValidMask[destOffset] & destBitInvMask)
-								    | (1 << destBit));
-							}
-						}
-					}
-					doneLoad();
-				}
-			};
-		}
-		
-		// Called from session thread
-		private void doneLoad() {
-			synchronized (this) {
-				--outstandingLoads;
-				if (outstandingLoads > 0)
-					return;
-			}
-			boolean[] valid = new boolean[resultValidMask.length];
-			for (int i = 0; i < valid.length; ++i) {
-				valid[i] = resultValidMask[i] == (byte)0xFF;
-			}
-			sink.receive(result, valid);
-		}
-		
-		// Called from any thread
-		void done(Session session) {
-			session.runOnThread(new Runnable() {
-				public void run() {
-					doneLoad();
-				}
-			});
-		}
+	Element[] getElements() {
+		return elements;
 	}
 
 	public void read(long offset, int length, IDataSink sink) {
-		Accumulator acc = new Accumulator(sink, length);
-		
-		for (Element e : elements) {
-			long destStartBit = Math.max(e.destStartBit - offset*8, 0);
-			long destEndBit = Math.min(e.destStartBit + e.numBits - offset*8, length*8);
-			if (destStartBit < destEndBit) {
-				long sourceBit = destStartBit - e.destStartBit + e.sourceStartBit;
-				long bits = destEndBit - destStartBit;
-				int bytes = (int)((bits + 7)/8); // must succeed because it's <= length
-				IDataSource source = ShiftDataSource.make(e.source, sourceBit);
-				source.read(sourceBit/8, bytes, acc.addRead(destStartBit, bits));
-			}
-		}
-		
-		acc.done(getSession());
+		ReadPlan.compile(this, offset, length).execute(sink);
 	}
 }
@@ -26,7 +26,7 @@ public class EagerDataSource implements IDataSource {
 	private IDataSource source;
 	private ArrayList<ReadRequest> readRequests;
 	private byte[] data;
-	private boolean[] valid;
+	private ValidityMask valid;
     private int length;
 
 	private static class ReadRequest {
@@ -40,7 +40,7 @@ public class EagerDataSource implements IDataSource {
 		}
 	}
 	
-	private void gotData(byte[] data, boolean[] valid) {
+	private void gotData(byte[] data, ValidityMask valid) {
 		synchronized (this) {
 			this.data = data;
 			this.valid = valid;
@@ -58,7 +58,7 @@ public class EagerDataSource implements IDataSource {
 		this.length = length;
 		
         source.read(0, length, new IDataSink() {
-        	public void receive(byte[] data, boolean[] valid) {
+        	public void receive(byte[] data, ValidityMask valid) {
         		gotData(data, valid);
         	}
         });	
@@ -83,12 +83,12 @@ public class EagerDataSource implements IDataSource {
 	// Called on the Session thread with 'data' and 'valid' set
 	void doSinkReceive(long requestedOffset, int requestedLength, IDataSink sink) {
 		byte[] result = new byte[requestedLength];
-		boolean[] resultValid = new boolean[requestedLength];
+		ValidityMask resultValid = new ValidityMask(requestedLength);
 		if (requestedOffset < length) {
 			int intOffset = (int)requestedOffset;
 			int len = Math.min(requestedLength, length - intOffset);
 			System.arraycopy(data, intOffset, result, 0, len);
-			System.arraycopy(valid, intOffset, resultValid, 0, len);
+			valid.copyTo(intOffset, resultValid, 0, len);
 		}
         sink.receive(result, resultValid);
 	}
@@ -45,6 +45,7 @@ public class FindContainingFunctionQuery extends Query {
 	void handleResult(JSONObject r) throws JSONParserException {
 		if (r.hasValue("entryPoint")) {
 			result = new Function(session, r);
+			session.getFunctionMap().add(result);
 		}
 	}
 	
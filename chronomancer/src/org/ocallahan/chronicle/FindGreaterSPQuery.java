@@ -38,9 +38,8 @@ public class FindGreaterSPQuery extends Query {
 
 	@Override
 	void handleResult(JSONObject object) throws JSONParserException {
-		Long tStamp = object.getLong("TStamp");
-		if (tStamp != null) {
-		    result = tStamp;
+		if (object.hasLong(ReplyField.TSTAMP)) {
+		    result = object.getLongRequired(ReplyField.TSTAMP);
 		}
 	}
 	
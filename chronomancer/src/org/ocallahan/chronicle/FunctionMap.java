@@ -0,0 +1,261 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Every Function the agent has told us about, by the addresses it covers
+ * and the timestamps over which it is valid, so the function containing a
+ * PC can be found without a findContainingFunction query. Functions are
+ * added as FindContainingFunctionQuery and LookupFunctionsQuery results
+ * come in; once a hot function has been seen, every PC in it is answered
+ * here.
+ * 
+ * The functions' ranges are kept, as in MemoryMapIndex, in parallel arrays
+ * sorted by start address with the greatest end so far alongside, so the
+ * ones containing an address are found by binary search and a walk back
+ * that stops once no earlier range reaches the address. Ranges longer than
+ * MAX_RANGE are left out so one bogus range can't make every walk long.
+ * New ranges wait in a short unsorted list until there are enough of them
+ * to be worth merging in.
+ * 
+ * PCs with no function (no debug info) are remembered too, for as long as
+ * the MemoryMapIndex says their mapping stayed the same, up to
+ * MISSING_CAPACITY of them.
+ * 
+ * The functions come from debug info, so there are only so many of them
+ * and we don't evict them. All methods can be called on any thread.
+ */
+public class FunctionMap {
+	FunctionMap(Session session) {
+		this.session = session;
+	}
+	
+	/**
+	 * The longest function range we index.
+	 */
+	public static final long MAX_RANGE = 0x1000000;
+	/**
+	 * How many PCs without a function we remember.
+	 */
+	public static final int MISSING_CAPACITY = 0x4000;
+	
+	synchronized public void clear() {
+		count = 0;
+		starts = new long[0];
+		ends = new long[0];
+		functions = new Function[0];
+		maxEnds = new long[0];
+		pending.clear();
+		known.clear();
+		missing.clear();
+	}
+	
+	@Override
+	synchronized public String toString() {
+		return "FunctionMap: " + known.size() + " functions, " +
+		    missing.size() + " PCs without one, " + hits + " hits, " +
+		    misses + " misses";
+	}
+	
+	private static class Entry {
+		Entry(long start, long end, Function function) {
+			this.start = start;
+			this.end = end;
+			this.function = function;
+		}
+		long     start;
+		long     end;
+		Function function;
+	}
+	
+	/**
+	 * Records a function the agent found. Functions without ranges can't
+	 * be found by address, so they're ignored.
+	 */
+	synchronized public void add(Function function) {
+		MemRange[] rs = function.getRanges();
+		if (rs == null)
+			return;
+		String key = function.getEntryPoint() + ":" +
+		    function.getStartTStamp() + ":" + function.getEndTStamp();
+		if (!known.add(key))
+			return;
+		for (MemRange r : rs) {
+			long length = r.getEnd() - r.getStart();
+			if (length <= 0 || length > MAX_RANGE)
+				continue;
+			pending.add(new Entry(r.getStart(), r.getEnd(), function));
+		}
+		if (pending.size() > Math.max(MAX_PENDING, count/4)) {
+			merge();
+		}
+	}
+	
+	/**
+	 * Records that the agent found no function containing 'address' at
+	 * 'tStamp'.
+	 */
+	void addMissing(long address, long tStamp) {
+		// The answer holds while the code there stays the same
+		long[] times = session.getMemoryMapIndex().getMappingTimes(tStamp,
+				address);
+		if (times == null) {
+			times = new long[] { tStamp, tStamp + 1 };
+		}
+		synchronized (this) {
+			missing.put(address, times);
+			Iterator<long[]> iter = missing.values().iterator();
+			while (missing.size() > MISSING_CAPACITY && iter.hasNext()) {
+				iter.next();
+				iter.remove();
+			}
+		}
+	}
+	
+	/**
+	 * @return the function containing 'address' at 'tStamp', or null if we
+	 * don't know of one
+	 */
+	synchronized public Function find(long address, long tStamp) {
+		Function f = findFunction(address, tStamp);
+		if (f != null) {
+			++hits;
+		} else {
+			++misses;
+		}
+		return f;
+	}
+	
+	/**
+	 * If we know the function containing 'address' at 'tStamp', or that
+	 * there isn't one, gives receiver what findContainingFunction would
+	 * have, on the SessionThread.
+	 * @return whether we knew
+	 */
+	boolean deliverFunction(final long address, long tStamp,
+			final QueryUtils.FunctionReceiver receiver) {
+		Function found;
+		synchronized (this) {
+			found = findFunction(address, tStamp);
+			if (found == null) {
+				long[] times = missing.get(address);
+				if (times == null || tStamp < times[0] || tStamp >= times[1]) {
+					++misses;
+					return false;
+				}
+			}
+			++hits;
+		}
+		final Function function = found;
+		session.runOnThread(new Runnable() {
+			public void run() {
+				receiver.receiveFunction(function != null ? function :
+					new Function(session, address));
+			}
+		});
+		return true;
+	}
+	
+	// Called with our lock held.
+	private Function findFunction(long address, long tStamp) {
+		// the last range starting at or before address
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] <= address) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		for (int i = low - 1; i >= 0 && maxEnds[i] > address; --i) {
+			if (ends[i] > address && contains(functions[i], tStamp))
+				return functions[i];
+		}
+		for (Entry e : pending) {
+			if (e.start <= address && address < e.end &&
+				contains(e.function, tStamp))
+				return e.function;
+		}
+		return null;
+	}
+	
+	private static boolean contains(Function f, long tStamp) {
+		return f.getStartTStamp() <= tStamp && tStamp < f.getEndTStamp();
+	}
+	
+	// Called with our lock held. Sorts the pending ranges in with the rest.
+	private void merge() {
+		ArrayList<Entry> all = new ArrayList<Entry>(count + pending.size());
+		for (int i = 0; i < count; ++i) {
+			all.add(new Entry(starts[i], ends[i], functions[i]));
+		}
+		all.addAll(pending);
+		pending.clear();
+		Collections.sort(all, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return a.start < b.start ? -1 : a.start > b.start ? 1 : 0;
+			}
+		});
+		count = all.size();
+		starts = new long[count];
+		ends = new long[count];
+		functions = new Function[count];
+		maxEnds = new long[count];
+		for (int i = 0; i < count; ++i) {
+			Entry e = all.get(i);
+			starts[i] = e.start;
+			ends[i] = e.end;
+			functions[i] = e.function;
+			maxEnds[i] = i == 0 ? ends[i] : Math.max(maxEnds[i - 1], ends[i]);
+		}
+	}
+	
+	// How many new ranges we scan linearly before merging them in
+	private static final int MAX_PENDING = 32;
+	
+	private Session                     session;
+	// The indexed ranges, sorted by start address
+	private int                         count;
+	private long[]                      starts = new long[0];
+	private long[]                      ends = new long[0];
+	private Function[]                  functions = new Function[0];
+	// maxEnds[i] is the greatest of ends[0..i]
+	private long[]                      maxEnds = new long[0];
+	// Ranges not merged in yet
+	private ArrayList<Entry>            pending = new ArrayList<Entry>();
+	// The functions added, by entry point and timestamps
+	private HashSet<String>             known = new HashSet<String>();
+	// PCs with no function, and the timestamps [from, to) over which that
+	// holds, in least recently used order
+	private LinkedHashMap<Long,long[]>  missing =
+		new LinkedHashMap<Long,long[]>(16, 0.75f, true);
+	private long                        hits;
+	private long                        misses;
+}
@@ -0,0 +1,126 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+/**
+ * Decodes the hex strings the agent uses for memory and register contents.
+ * Bytes are decoded straight into the caller's array, so large reads
+ * aren't copied through an intermediate buffer. Most of the work is done
+ * eight characters at a time, packed into a long, and the remainder uses
+ * a lookup table.
+ */
+public class HexDecoder {
+	private HexDecoder() {}
+	
+	/**
+	 * @return the value of the hex digit ch, or -1 if it isn't one
+	 */
+	public static int digit(char ch) {
+		return ch < DIGITS.length ? DIGITS[ch] : -1;
+	}
+	
+	/**
+	 * @return the number of bytes s decodes to; an odd-length string has
+	 * an implicit leading zero
+	 */
+	public static int decodedLength(String s) {
+		return (s.length() + 1) >> 1;
+	}
+	
+	/**
+	 * Decodes s into a new array. An odd-length string is treated as if it
+	 * had a leading zero.
+	 */
+	public static byte[] decode(String s) throws JSONParserException {
+		byte[] result = new byte[decodedLength(s)];
+		decode(s, 0, s.length(), result, 0);
+		return result;
+	}
+	
+	/**
+	 * Decodes the characters [start, end) of s into dest at destOffset. An
+	 * odd number of characters is treated as if it had a leading zero.
+	 * @return the number of bytes written
+	 */
+	public static int decode(String s, int start, int end, byte[] dest,
+			int destOffset) throws JSONParserException {
+		int o = destOffset;
+		int i = start;
+		if (((end - start) & 1) != 0) {
+			dest[o++] = (byte)checkedDigit(s, i++);
+		}
+		// eight characters make four bytes
+		for (; i + 8 <= end; i += 8, o += 4) {
+			long w = 0;
+			int any = 0;
+			for (int k = 7; k >= 0; --k) {
+				char ch = s.charAt(i + k);
+				any |= ch;
+				w = (w << 8) | ch;
+			}
+			if ((any & ~0x7F) != 0)
+				break;
+			// per byte: is it '0'-'9', and (ignoring case) is it 'a'-'f'
+			long isDigit = (w + 0x5050505050505050L) & (0xB9B9B9B9B9B9B9B9L - w);
+			long lower = w | 0x2020202020202020L;
+			long isLetter = (lower + 0x1F1F1F1F1F1F1F1FL) & (0xE6E6E6E6E6E6E6E6L - lower);
+			if (((isDigit | isLetter) & HIGH_BITS) != HIGH_BITS)
+				break;
+			long nibbles = (w & 0x0F0F0F0F0F0F0F0FL) +
+			               ((isLetter & HIGH_BITS) >>> 7)*9;
+			// each 16-bit lane gets (first nibble << 4) | second nibble
+			long pairs = ((nibbles & 0x00FF00FF00FF00FFL) << 4) |
+			             ((nibbles >>> 8) & 0x00FF00FF00FF00FFL);
+			dest[o] = (byte)pairs;
+			dest[o + 1] = (byte)(pairs >>> 16);
+			dest[o + 2] = (byte)(pairs >>> 32);
+			dest[o + 3] = (byte)(pairs >>> 48);
+		}
+		// the tail, or the block that contained a bad character
+		for (; i < end; i += 2) {
+			dest[o++] = (byte)((checkedDigit(s, i) << 4) | checkedDigit(s, i + 1));
+		}
+		return o - destOffset;
+	}
+	
+	private static int checkedDigit(String s, int i) throws JSONParserException {
+		char ch = s.charAt(i);
+		int v = digit(ch);
+		if (v < 0)
+			throw new JSONParserException("Unexpected hex character: " + ch);
+		return v;
+	}
+	
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	private static final byte[] DIGITS = new byte[128];
+	static {
+		for (int i = 0; i < DIGITS.length; ++i) {
+			DIGITS[i] = -1;
+		}
+		for (int i = 0; i < 10; ++i) {
+			DIGITS['0' + i] = (byte)i;
+		}
+		for (int i = 0; i < 6; ++i) {
+			DIGITS['a' + i] = (byte)(10 + i);
+			DIGITS['A' + i] = (byte)(10 + i);
+		}
+	}
+}
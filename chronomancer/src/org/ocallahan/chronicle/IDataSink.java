@@ -20,7 +20,11 @@ Contributor(s): robert@ocallahan.org
 
 package org.ocallahan.chronicle;
 
+/**
+ * Receives the result of IDataSource.read(). Sinks that want validity as a
+ * boolean[] can extend BooleanDataSink.
+ */
 public interface IDataSink {
-	// Called on the Session thread.
-	public void receive(byte[] data, boolean[] valid);
+	// Called on the Session thread. 'valid' has one bit per byte of data.
+	public void receive(byte[] data, ValidityMask valid);
 }
@@ -53,10 +53,19 @@ public class InfoQuery extends Query {
 			if (architecture == null)
 				throw new JSONParserException("Unknown architecture '" + archName + "'");
 			endTStamp = r.getLongRequired("endTStamp");
+			binaryFrames = r.getBooleanOptional("binaryFrames", false);
 		}
 	}
 	
+	/**
+	 * @return whether the agent can send bulk data in binary frames
+	 */
+	public boolean supportsBinaryFrames() {
+		return binaryFrames;
+	}
+	
 	private long endTStamp;
 	private Architecture architecture;
+	private boolean binaryFrames;
 	private Listener listener;
 }
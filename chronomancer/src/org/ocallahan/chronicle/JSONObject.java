@@ -32,24 +32,71 @@ public class JSONObject {
     	this.contents = contents;
     }
     
-    public Object getValue(String fieldName) {
-    	fieldName = fieldName.intern();
+    /**
+     * @param slots the unboxed values of ReplyFields, indexed by ordinal. A
+     * field stored here has its ReplyField as its value in contents. May be
+     * null if there are none.
+     * @param fieldIndex for each ReplyField, by ordinal, one plus the index
+     * of its value in contents, or zero if the field is absent
+     */
+    JSONObject(Object[] contents, long[] slots, int[] fieldIndex) {
+    	this.contents = contents;
+    	this.slots = slots;
+    	this.fieldIndex = fieldIndex;
+    }
+    
+    private int indexOf(String fieldName) {
+    	// Keys are interned, so this usually matches by identity
         for (int i = 0; i < contents.length; i += 2) {
-        	if (contents[i] == fieldName) {
-        		return contents[i + 1];
+        	Object key = contents[i];
+        	if (key == fieldName || fieldName.equals(key)) {
+        		return i + 1;
         	}
         }
-        return null;
+        return -1;
+    }
+    
+    private int indexOf(ReplyField field) {
+    	if (fieldIndex == null)
+    		return indexOf(field.getName());
+    	return fieldIndex[field.ordinal()] - 1;
+    }
+    
+    private Object valueAt(int i) {
+    	Object o = contents[i];
+    	if (o instanceof ReplyField) {
+    		// box lazily, the same way JSONParser would have
+    		long v = slots[((ReplyField)o).ordinal()];
+			if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE)
+				return (int)v;
+			return v;
+    	}
+    	return o;
+    }
+    
+    private long longAt(int i) {
+    	Object o = contents[i];
+    	if (o instanceof ReplyField)
+    		return slots[((ReplyField)o).ordinal()];
+    	return ((Number)o).longValue();
+    }
+    
+    private boolean isNumberAt(int i) {
+    	Object o = contents[i];
+    	return o instanceof ReplyField || o instanceof Number;
+    }
+    
+    public Object getValue(String fieldName) {
+    	int i = indexOf(fieldName);
+    	return i < 0 ? null : valueAt(i);
     }
     
     public boolean hasValue(String fieldName) {
-    	fieldName = fieldName.intern();
-        for (int i = 0; i < contents.length; i += 2) {
-        	if (contents[i] == fieldName) {
-        		return true;
-        	}
-        }
-        return false;
+    	return indexOf(fieldName) >= 0;
+    }
+    
+    public boolean hasValue(ReplyField field) {
+    	return indexOf(field) >= 0;
     }
     
     public JSONObject getObject(String fieldName) {
@@ -94,6 +141,20 @@ public class JSONObject {
     	throw new JSONParserException("Expected string for field " + fieldName);
     }
     
+    public String getString(ReplyField field) {
+    	int i = indexOf(field);
+    	if (i >= 0 && contents[i] instanceof String)
+    		return (String)contents[i];
+    	return null;
+    }
+    
+    public String getStringRequired(ReplyField field) throws JSONParserException {
+    	String o = getString(field);
+    	if (o != null)
+    		return o;
+    	throw new JSONParserException("Expected string for field " + field.getName());
+    }
+    
     public Integer getInt(String fieldName) throws JSONParserException {
     	Number n = getNumber(fieldName);
     	if (n == null)
@@ -104,16 +165,16 @@ public class JSONObject {
     }
     
     public int getIntOptional(String fieldName, int def) throws JSONParserException {
-    	Integer o = getInt(fieldName);
-    	if (o == null)
+    	int i = indexOf(fieldName);
+    	if (i < 0 || !isNumberAt(i))
     		return def;
-    	return o;
+    	return (int)longAt(i);
     }
     
     public int getIntRequired(String fieldName) throws JSONParserException {
-    	Integer o = getInt(fieldName);
-    	if (o != null)
-    		return o;
+    	int i = indexOf(fieldName);
+    	if (i >= 0 && isNumberAt(i))
+    		return (int)longAt(i);
     	throw new JSONParserException("Expected integer for field " + fieldName);
     }
 
@@ -134,17 +195,36 @@ public class JSONObject {
     }
     
     public long getLongRequired(String fieldName) throws JSONParserException {
-    	Long o = getLong(fieldName);
-    	if (o != null)
-    		return o;
+    	int i = indexOf(fieldName);
+    	if (i >= 0 && isNumberAt(i))
+    		return longAt(i);
     	throw new JSONParserException("Expected long for field " + fieldName);
     }
     
     public long getLongOptional(String fieldName, long def) throws JSONParserException {
-    	Long o = getLong(fieldName);
-    	if (o == null)
+    	int i = indexOf(fieldName);
+    	if (i < 0 || !isNumberAt(i))
     		return def;
-    	return o;
+    	return longAt(i);
+    }
+    
+    public boolean hasLong(ReplyField field) {
+    	int i = indexOf(field);
+    	return i >= 0 && isNumberAt(i);
+    }
+    
+    public long getLongRequired(ReplyField field) throws JSONParserException {
+    	int i = indexOf(field);
+    	if (i >= 0 && isNumberAt(i))
+    		return longAt(i);
+    	throw new JSONParserException("Expected long for field " + field.getName());
+    }
+    
+    public long getLongOptional(ReplyField field, long def) {
+    	int i = indexOf(field);
+    	if (i < 0 || !isNumberAt(i))
+    		return def;
+    	return longAt(i);
     }
 
     public Boolean getBoolean(String fieldName) {
@@ -168,6 +248,54 @@ public class JSONObject {
     	return def;
     }
     
+    /**
+     * @return the raw bytes sent in a binary frame after this reply's line,
+     * or null if there were none
+     */
+    public byte[] getPayload() {
+    	return payload;
+    }
+    
+    void setPayload(byte[] payload) {
+    	this.payload = payload;
+    }
+    
+    /**
+     * @return roughly how many bytes this object keeps alive, not counting
+     * the interned field names
+     */
+    long getRetainedSize() {
+    	long size = 32 + 8*contents.length + sizeOf(payload);
+    	if (slots != null) {
+    		size += 16 + 8*slots.length + 16 + 4*fieldIndex.length;
+    	}
+    	for (int i = 1; i < contents.length; i += 2) {
+    		size += sizeOf(contents[i]);
+    	}
+    	return size;
+    }
+    
+    private static long sizeOf(Object o) {
+    	if (o == null || o instanceof ReplyField)
+    		return 0;
+    	if (o instanceof String)
+    		return 40 + 2*((String)o).length();
+    	if (o instanceof byte[])
+    		return 16 + ((byte[])o).length;
+    	if (o instanceof JSONObject)
+    		return ((JSONObject)o).getRetainedSize();
+    	if (o instanceof Object[]) {
+    		Object[] array = (Object[])o;
+    		long size = 16 + 8*array.length;
+    		for (Object element : array) {
+    			size += sizeOf(element);
+    		}
+    		return size;
+    	}
+    	// a boxed number or boolean
+    	return 16;
+    }
+    
     public Iterable<String> getFields() {
     	return new Iterable<String>() {
     		public Iterator<String> iterator() {
@@ -192,4 +320,7 @@ public class JSONObject {
     }
     
     private Object[] contents;
+    private long[]   slots;
+    private int[]    fieldIndex;
+    private byte[]   payload;
 }
@@ -0,0 +1,293 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers where variables live. The agent's answer to getLocation comes
+ * with the ranges of PCs over which it holds (no ranges means the whole
+ * function), so for each variable of each invocation we keep the last few
+ * answers we've had with their PC ranges. A lookup at
+ * another timestamp in the same invocation only costs a read of the PC (which
+ * the ResultCache usually has already); we go back to the agent only when the
+ * PC is outside every range we know.
+ * 
+ * Lookups for the same location that arrive while one is in flight wait for
+ * it instead of sending their own. All methods can be called on any thread;
+ * listeners are called on the SessionThread or a worker.
+ */
+public class LocationCache {
+	LocationCache(Session session) {
+		this.session = session;
+	}
+	
+	/**
+	 * The default capacity, in variable invocations.
+	 */
+	public static final int DEFAULT_CAPACITY = 0x1000;
+	
+	public static interface Listener {
+		/**
+		 * @param pieces the variable's pieces; empty if it couldn't be found
+		 */
+		public void notifyDone(VariablePiece[] pieces);
+	}
+	
+	synchronized public void setCapacity(int invocations) {
+		capacity = invocations;
+		evict();
+	}
+	
+	synchronized public void clear() {
+		entries.clear();
+	}
+	
+	synchronized public long getHits() { return hits; }
+	synchronized public long getMisses() { return misses; }
+	
+	@Override
+	synchronized public String toString() {
+		return "LocationCache: " + entries.size() + " variables, " + hits +
+		    " hits, " + misses + " misses";
+	}
+	
+	/**
+	 * Finds the pieces of var as of tStamp, in the invocation that was
+	 * current at invocationTStamp.
+	 */
+	public void getPieces(final Variable var, final long invocationTStamp,
+			final long tStamp, final Listener listener) {
+		final String key = var.getValKey() + "@" + invocationTStamp;
+		synchronized (this) {
+			Entry e = entries.get(key);
+			Location l = e == null ? null : e.findByTStamp(tStamp);
+			if (l != null) {
+				++hits;
+				deliver(l.pieces, listener);
+				return;
+			}
+			if (tStamp == invocationTStamp) {
+				++misses;
+			}
+		}
+		if (tStamp == invocationTStamp) {
+			fetch(key, var, tStamp, true, listener);
+			return;
+		}
+		
+		// Start from what we know at the invocation, then see whether the PC
+		// at tStamp is somewhere we know about
+		getPieces(var, invocationTStamp, invocationTStamp, new Listener() {
+			public void notifyDone(final VariablePiece[] invocationPieces) {
+				new ReadRegQuery(session, tStamp,
+						new String[] { Architecture.getPCReg() },
+						session.getArchitecture().getPointerSize()*8,
+						new ReadRegQuery.Listener() {
+					public void notifyDone(ReadRegQuery q, boolean complete,
+							RegisterValues values) {
+						String pcReg = Architecture.getPCReg();
+						VariablePiece[] pieces = null;
+						synchronized (LocationCache.this) {
+							Entry e = entries.get(key);
+							if (complete && e != null && values.getValue(pcReg) != null) {
+								pieces = e.findByPC(values.getLongValue(pcReg));
+							}
+							if (pieces == null) {
+								++misses;
+							} else {
+								++hits;
+							}
+						}
+						if (pieces != null) {
+							listener.notifyDone(pieces);
+							return;
+						}
+						fetch(key, var, tStamp, false, new Listener() {
+							public void notifyDone(VariablePiece[] pieces) {
+								// If it's not found we're probably not in its
+								// function any more; what we knew at the
+								// invocation is the best we can do
+								listener.notifyDone(pieces.length > 0
+										? pieces : invocationPieces);
+							}
+						});
+					}
+				}).send();
+			}
+		});
+	}
+	
+	private void deliver(final VariablePiece[] pieces, final Listener listener) {
+		session.runOnThread(new Runnable() {
+			public void run() {
+				listener.notifyDone(pieces);
+			}
+		});
+	}
+	
+	// Wraps listener so that it's called in the caller's scope, and not at
+	// all once that's closed.
+	private Listener inCallersScope(final Listener listener) {
+		final QueryScope scope = session.getCurrentScope();
+		if (scope == session.getRootScope())
+			return listener;
+		return new Listener() {
+			public void notifyDone(final VariablePiece[] pieces) {
+				scope.wrap(new Runnable() {
+					public void run() {
+						listener.notifyDone(pieces);
+					}
+				}).run();
+			}
+		};
+	}
+	
+	// Asks the agent, unless someone already is.
+	private void fetch(final String key, Variable var, final long tStamp,
+			final boolean keepEmpty, Listener listener) {
+		final String fetchKey = key + "/" + tStamp;
+		listener = inCallersScope(listener);
+		synchronized (this) {
+			ArrayList<Listener> waiting = inFlight.get(fetchKey);
+			if (waiting != null) {
+				waiting.add(listener);
+				return;
+			}
+			waiting = new ArrayList<Listener>();
+			waiting.add(listener);
+			inFlight.put(fetchKey, waiting);
+		}
+		
+		// Everyone who asks shares the query, so it must not be cancelled
+		// along with whoever asked first
+		QueryScope old = session.setCurrentScope(session.getRootScope());
+		try {
+			sendFetch(key, fetchKey, var, tStamp, keepEmpty);
+		} finally {
+			session.setCurrentScope(old);
+		}
+	}
+	
+	private void sendFetch(final String key, final String fetchKey,
+			Variable var, final long tStamp, final boolean keepEmpty) {
+		GetLocationQuery q = new GetLocationQuery(session, tStamp, var,
+				var.getType(), new GetLocationQuery.Listener() {
+			public void notifyDone(GetLocationQuery q, boolean complete,
+					VariablePiece[] pieces, MemRange[] validForInstructionsInRanges) {
+				ArrayList<Listener> listeners;
+				synchronized (LocationCache.this) {
+					listeners = inFlight.remove(fetchKey);
+					if (complete && (pieces.length > 0 || keepEmpty)) {
+						Entry e = entries.get(key);
+						if (e == null) {
+							e = new Entry();
+							entries.put(key, e);
+							evict();
+						}
+						e.add(new Location(tStamp, pieces,
+								validForInstructionsInRanges));
+					}
+				}
+				for (Listener l : listeners) {
+					l.notifyDone(pieces);
+				}
+			}
+		});
+		// We keep the answers ourselves, so the ResultCache needn't
+		q.bypassCache = true;
+		q.send();
+	}
+	
+	// Called with our lock held.
+	private void evict() {
+		Iterator<Entry> iter = entries.values().iterator();
+		while (entries.size() > capacity && iter.hasNext()) {
+			iter.next();
+			iter.remove();
+		}
+	}
+	
+	// What the agent told us about one lookup
+	private static class Location {
+		Location(long tStamp, VariablePiece[] pieces, MemRange[] pcRanges) {
+			this.tStamp = tStamp;
+			this.pieces = pieces;
+			this.pcRanges = pcRanges;
+		}
+		long            tStamp;
+		VariablePiece[] pieces;
+		// Null if the agent didn't say, which means the location holds for
+		// the whole function
+		MemRange[]      pcRanges;
+	}
+	
+	// Everything we know about one variable in one invocation. The first
+	// location is the one at the invocation, which every lookup starts from,
+	// so it stays; after that, the oldest makes way for the newest.
+	private static class Entry {
+		void add(Location l) {
+			if (locations.size() >= MAX_LOCATIONS) {
+				locations.remove(1);
+			}
+			locations.add(l);
+		}
+		VariablePiece[] findByPC(long pc) {
+			for (Location l : locations) {
+				if (l.pcRanges == null) {
+					// Not finding it says nothing about other PCs
+					if (l.pieces.length > 0)
+						return l.pieces;
+					continue;
+				}
+				for (MemRange r : l.pcRanges) {
+					if (r.getStart() <= pc && pc < r.getEnd())
+						return l.pieces;
+				}
+			}
+			return null;
+		}
+		Location findByTStamp(long tStamp) {
+			for (Location l : locations) {
+				if (l.tStamp == tStamp)
+					return l;
+			}
+			return null;
+		}
+		ArrayList<Location> locations = new ArrayList<Location>();
+	}
+	
+	// The most lookups we remember for one variable invocation
+	private static final int MAX_LOCATIONS = 16;
+	
+	private Session session;
+	// In least recently used order
+	private LinkedHashMap<String,Entry> entries =
+		new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	private HashMap<String,ArrayList<Listener>> inFlight =
+		new HashMap<String,ArrayList<Listener>>();
+	private int     capacity = DEFAULT_CAPACITY;
+	private long    hits;
+	private long    misses;
+}
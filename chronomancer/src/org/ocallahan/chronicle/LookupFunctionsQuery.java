@@ -44,7 +44,9 @@ public class LookupFunctionsQuery extends Query {
 	@Override
 	void handleResult(JSONObject r) throws JSONParserException {
 		if (r.hasValue("entryPoint")) {
-			listener.notifyFunctionResult(this, new Function(session, r));
+			Function f = new Function(session, r);
+			session.getFunctionMap().add(f);
+			listener.notifyFunctionResult(this, f);
 		}
 	}
 	
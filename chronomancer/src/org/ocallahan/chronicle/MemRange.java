@@ -51,8 +51,8 @@ public class MemRange {
 		this.end = end;
 	}
 	public MemRange(JSONObject obj) throws JSONParserException {
-	    start = obj.getLongRequired("start");
-	    long length = obj.getLongRequired("length");
+	    start = obj.getLongRequired(ReplyField.START);
+	    long length = obj.getLongRequired(ReplyField.LENGTH);
 	    if (length < 0)
 	    	throw new JSONParserException("Negative length: " + length);
 	    end = start + length;
@@ -34,14 +34,30 @@ public class MemoryDataSource implements IDataSource {
     public Session getSession() {
     	return session;
     }
+    
+    long getStart() {
+    	return start;
+    }
 
     public long getTStamp() {
     	return tStamp;
     }
 
-	public void findNextChangeTStamp(long offset, long length, final TStampReceiver receiver) {
+	public void findNextChangeTStamp(long offset, long length, TStampReceiver receiver) {
+		long from = start + offset;
+		WriteHistory h = session.getWriteHistoryCache().getForNavigation(from,
+				from + length);
+		if (h != null) {
+			h.findNextChangeTStamp(tStamp, from, from + length, receiver);
+		} else {
+			scanNextChange(session, tStamp, from, from + length, receiver);
+		}
+	}
+	
+	static void scanNextChange(final Session session, long tStamp, long from,
+			long to, final TStampReceiver receiver) {
 		ScanWriteQuery q = new ScanWriteQuery(session, tStamp + 1, session.getEndTStamp(),
-				new MemRange[] { new MemRange(start + offset, start + offset + length) },
+				new MemRange[] { new MemRange(from, to) },
 				ScanQuery.Termination.FIRST,
 				new ScanWriteQuery.Listener() {
 			private void accumulate(long tStamp, long start, long end) {
@@ -75,9 +91,21 @@ public class MemoryDataSource implements IDataSource {
 		q.send();
 	}
 
-	public void findPreviousChangeTStamp(long offset, long length, final TStampReceiver receiver) {
+	public void findPreviousChangeTStamp(long offset, long length, TStampReceiver receiver) {
+		long from = start + offset;
+		WriteHistory h = session.getWriteHistoryCache().getForNavigation(from,
+				from + length);
+		if (h != null) {
+			h.findPreviousChangeTStamp(tStamp, from, from + length, receiver);
+		} else {
+			scanPreviousChange(session, tStamp, from, from + length, receiver);
+		}
+	}
+	
+	static void scanPreviousChange(Session session, long tStamp, long from,
+			long to, final TStampReceiver receiver) {
 		ScanWriteQuery q = new ScanWriteQuery(session, 0, tStamp,
-				new MemRange[] { new MemRange(start + offset, start + offset + length) },
+				new MemRange[] { new MemRange(from, to) },
 				ScanQuery.Termination.LAST,
 				new ScanWriteQuery.Listener() {
 			private void accumulate(long tStamp, long start, long end) {
@@ -115,14 +143,12 @@ public class MemoryDataSource implements IDataSource {
 	}
 
 	public void read(long offset, int length, final IDataSink sink) {
-		ReadMemQuery q = new ReadMemQuery(session, tStamp,
-				new MemRange[] { new MemRange(start + offset, start + offset + length) },
-				new ReadMemQuery.Listener() {
-			public void notifyDone(ReadMemQuery q, boolean complete,
-					byte[] data, boolean[] valid) {
-				sink.receive(data, valid);
-			}
-		});
-		q.send();		
+		WriteHistory h = session.getWriteHistoryCache().getForReading(
+				start + offset, start + offset + length);
+		if (h != null) {
+			h.read(tStamp, start + offset, length, sink);
+			return;
+		}
+		session.getPageCache().read(tStamp, start + offset, length, sink);
 	}
 }
@@ -0,0 +1,330 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+package org.ocallahan.chronicle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The history of the address space over the whole trace, gathered by a
+ * single MEM_MAP scan with no termination when the session starts. Once
+ * it's built, whether an address is mapped at a timestamp, and where the
+ * mapped memory around it ends, are found without asking the agent.
+ * 
+ * Each mapping is kept as a rectangle: a range of addresses and the
+ * timestamps over which it was mapped there. The rectangles don't overlap.
+ * They are kept in parallel primitive arrays sorted by start address, with
+ * the greatest end so far alongside, so the ones containing an address are
+ * found by binary search and a short walk back. A mapping change made at
+ * timestamp T is seen at timestamps after T, as with a scan's endTStamp.
+ * 
+ * Requests made before the scan has finished wait for it. If the scan
+ * fails they are answered the ordinary way instead, and the next request
+ * tries the scan again, a few times at most. All methods can be called on
+ * any thread; results are delivered on the SessionThread.
+ */
+public class MemoryMapIndex {
+	MemoryMapIndex(Session session) {
+		this.session = session;
+	}
+	
+	/**
+	 * How many times we try the scan before giving up.
+	 */
+	public static final int MAX_ATTEMPTS = 3;
+	
+	synchronized public boolean isComplete() {
+		return complete;
+	}
+	
+	synchronized public int getMappingCount() {
+		return count;
+	}
+	
+	@Override
+	synchronized public String toString() {
+		return "MemoryMapIndex: " + count + " mappings, " +
+		    (complete ? "complete" : building ? "building" : "not built") +
+		    ", " + hits + " hits, " + misses + " misses";
+	}
+	
+	// Starts the scan. Everyone shares it, so it doesn't belong to the scope
+	// of whoever caused it.
+	void build() {
+		synchronized (this) {
+			if (complete || building)
+				return;
+			building = true;
+			++attempts;
+			events = new ArrayList<long[]>();
+		}
+		QueryScope old = session.setCurrentScope(session.getRootScope());
+		try {
+			new ScanMMapQuery(session, 0, session.getEndTStamp(),
+					new MemRange[] { new MemRange(0, Long.MAX_VALUE) },
+					ScanQuery.Termination.NONE, new ScanMMapQuery.Listener() {
+				public void notifyMMapResult(ScanQuery q, long tStamp,
+						long start, long end, MMapInfo info) {
+					add(tStamp, start, end, info.isMapped());
+				}
+				public void notifyDone(ScanQuery q, boolean complete) {
+					finish(complete);
+				}
+			}).send();
+		} finally {
+			session.setCurrentScope(old);
+		}
+	}
+	
+	/**
+	 * @return false only if we know 'address' was not mapped at 'tStamp';
+	 * true if it was or we don't know yet
+	 */
+	synchronized public boolean isMapped(long tStamp, long address) {
+		if (!complete)
+			return true;
+		return find(tStamp, address) >= 0;
+	}
+	
+	/**
+	 * @return the end of the run of mapped memory starting at 'address' at
+	 * 'tStamp' (so 'address' itself if it wasn't mapped), or -1 if we don't
+	 * know yet
+	 */
+	synchronized public long getMappedEnd(long tStamp, long address) {
+		if (!complete) {
+			++misses;
+			return -1;
+		}
+		++hits;
+		long end = address;
+		while (true) {
+			int i = find(tStamp, end);
+			if (i < 0)
+				return end;
+			end = ends[i];
+		}
+	}
+	
+	/**
+	 * @return the timestamps [from, to) over which the mapping containing
+	 * 'address' at 'tStamp' stayed unchanged, or null if it wasn't mapped or
+	 * we don't know yet
+	 */
+	synchronized long[] getMappingTimes(long tStamp, long address) {
+		if (!complete)
+			return null;
+		int i = find(tStamp, address);
+		return i < 0 ? null : new long[] { fromTStamps[i], toTStamps[i] };
+	}
+	
+	/**
+	 * Finds the end of mapped memory at 'address' at time 'tStamp', like
+	 * QueryUtils.findMemoryEnd. If we can't, runs 'ifFailed' instead.
+	 */
+	void findMemoryEnd(final long tStamp, final long address,
+			final QueryUtils.MemoryEndReceiver receiver, Runnable ifFailed) {
+		whenComplete(new Runnable() {
+			public void run() {
+				receiver.receiveEnd(Math.max(getMappedEnd(tStamp, address),
+						address + 1));
+			}
+		}, ifFailed);
+	}
+	
+	// Runs ifComplete once the index is built, or ifFailed if it can't be,
+	// in the caller's scope
+	private void whenComplete(Runnable ifComplete, Runnable ifFailed) {
+		boolean wait = false;
+		boolean retry = false;
+		synchronized (this) {
+			if (!complete && (building || attempts < MAX_ATTEMPTS)) {
+				// Otherwise they'd run in the scan's scope
+				QueryScope scope = session.getCurrentScope();
+				waiting.add(scope.wrap(ifComplete));
+				fallbacks.add(scope.wrap(ifFailed));
+				wait = true;
+				retry = !building;
+			}
+		}
+		if (retry) {
+			build();
+		}
+		if (wait)
+			return;
+		if (isComplete()) {
+			session.runOnThread(ifComplete);
+		} else {
+			ifFailed.run();
+		}
+	}
+	
+	// Called with our lock held. Finds a mapping containing 'address' at
+	// 'tStamp'; there is at most one.
+	private int find(long tStamp, long address) {
+		// the last mapping starting at or before address
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] <= address) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		for (int i = low - 1; i >= 0 && maxEnds[i] > address; --i) {
+			if (ends[i] > address && fromTStamps[i] <= tStamp &&
+				tStamp < toTStamps[i])
+				return i;
+		}
+		return -1;
+	}
+	
+	// runs on SessionThread
+	private synchronized void add(long tStamp, long start, long end,
+			boolean mapped) {
+		if (start < end) {
+			events.add(new long[] { tStamp, start, end, mapped ? 1 : 0 });
+		}
+	}
+	
+	// runs on SessionThread
+	private void finish(boolean ok) {
+		ArrayList<Runnable> toRun;
+		synchronized (this) {
+			building = false;
+			if (ok) {
+				index(events);
+				complete = true;
+				toRun = waiting;
+			} else {
+				toRun = fallbacks;
+			}
+			events = null;
+			waiting = new ArrayList<Runnable>();
+			fallbacks = new ArrayList<Runnable>();
+		}
+		for (Runnable r : toRun) {
+			r.run();
+		}
+	}
+	
+	// Called with our lock held. Replays the mapping changes in timestamp
+	// order, keeping the mappings live at each point in 'live' (start to
+	// { end, first visible timestamp }), and turns each into a rectangle when
+	// something replaces part of it.
+	private void index(ArrayList<long[]> changes) {
+		// stable, so changes at the same timestamp stay in the order reported
+		Collections.sort(changes, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+			}
+		});
+		ArrayList<long[]> mappings = new ArrayList<long[]>();
+		TreeMap<Long,long[]> live = new TreeMap<Long,long[]>();
+		for (long[] c : changes) {
+			long visible = c[0] + 1;
+			long start = c[1];
+			long end = c[2];
+			// a mapping starting before this one may overlap it
+			Long first = start;
+			SortedMap<Long,long[]> before = live.headMap(start);
+			if (!before.isEmpty() && live.get(before.lastKey())[0] > start) {
+				first = before.lastKey();
+			}
+			ArrayList<long[]> remnants = new ArrayList<long[]>();
+			Iterator<Map.Entry<Long,long[]>> iter =
+				live.subMap(first, end).entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<Long,long[]> e = iter.next();
+				long s = e.getKey();
+				long[] m = e.getValue();
+				if (m[1] < visible) {
+					mappings.add(new long[] { s, m[0], m[1], visible });
+				}
+				iter.remove();
+				// what's left of it starts afresh
+				if (s < start) {
+					remnants.add(new long[] { s, start, visible });
+				}
+				if (m[0] > end) {
+					remnants.add(new long[] { end, m[0], visible });
+				}
+			}
+			for (long[] r : remnants) {
+				live.put(r[0], new long[] { r[1], r[2] });
+			}
+			if (c[3] != 0) {
+				live.put(start, new long[] { end, visible });
+			}
+		}
+		for (Map.Entry<Long,long[]> e : live.entrySet()) {
+			long[] m = e.getValue();
+			mappings.add(new long[] { e.getKey(), m[0], m[1], Long.MAX_VALUE });
+		}
+		
+		Collections.sort(mappings, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+			}
+		});
+		count = mappings.size();
+		starts = new long[count];
+		ends = new long[count];
+		fromTStamps = new long[count];
+		toTStamps = new long[count];
+		maxEnds = new long[count];
+		for (int i = 0; i < count; ++i) {
+			long[] m = mappings.get(i);
+			starts[i] = m[0];
+			ends[i] = m[1];
+			fromTStamps[i] = m[2];
+			toTStamps[i] = m[3];
+			maxEnds[i] = i == 0 ? ends[i] : Math.max(maxEnds[i - 1], ends[i]);
+		}
+	}
+	
+	private Session             session;
+	private boolean             complete;
+	private boolean             building;
+	private int                 attempts;
+	private ArrayList<Runnable> waiting = new ArrayList<Runnable>();
+	private ArrayList<Runnable> fallbacks = new ArrayList<Runnable>();
+	// { tStamp, start, end, mapped } while the scan runs
+	private ArrayList<long[]>   events;
+	private long                hits;
+	private long                misses;
+	
+	// The mappings, sorted by start address; each covers
+	// [starts[i], ends[i]) over timestamps [fromTStamps[i], toTStamps[i])
+	private int                 count;
+	private long[]              starts = new long[0];
+	private long[]              ends = new long[0];
+	private long[]              fromTStamps = new long[0];
+	private long[]              toTStamps = new long[0];
+	// maxEnds[i] is the greatest of ends[0..i]
+	private long[]              maxEnds = new long[0];
+}
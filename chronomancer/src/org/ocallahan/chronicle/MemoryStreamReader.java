@@ -0,0 +1,301 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Reads a range of memory that may be too big to hold at once, handing it to
+ * a listener in fixed-size chunks as they arrive. Each chunk is fetched with
+ * its own readMem query and decoded straight into a ByteBuffer taken from a
+ * small pool. At most 'window' chunks are fetched ahead of what the listener
+ * has released, so memory use is bounded by window*chunkSize however big the
+ * range is, and a slow consumer holds back the agent instead of piling up
+ * replies.
+ * 
+ * The chunk queries are created in the scope and with the priority that were
+ * current when the reader was created, whichever thread releases buffers.
+ */
+public class MemoryStreamReader {
+	public MemoryStreamReader(Session session, long tStamp, long start,
+			long end, Listener listener) {
+		this(session, tStamp, start, end, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW,
+				false, listener);
+	}
+	
+	/**
+	 * @param direct whether to use direct ByteBuffers for the chunks
+	 */
+	public MemoryStreamReader(Session session, long tStamp, long start,
+			long end, int chunkSize, int window, boolean direct,
+			Listener listener) {
+		if (chunkSize <= 0 || window <= 0)
+			throw new IllegalArgumentException("Bad chunk size or window");
+		if (end < start)
+			throw new IllegalArgumentException("Negative length");
+		this.session = session;
+		this.tStamp = tStamp;
+		this.next = start;
+		this.end = end;
+		this.chunkSize = chunkSize;
+		this.window = window;
+		this.direct = direct;
+		this.listener = listener;
+		scope = session.getCurrentScope();
+		priority = session.getCurrentPriority();
+	}
+	
+	public static final int DEFAULT_CHUNK_SIZE = 0x10000;
+	public static final int DEFAULT_WINDOW = 4;
+	
+	public static interface Listener {
+		/**
+		 * Called for each chunk in address order, never concurrently, on the
+		 * SessionThread or a worker. The data runs from position 0 to the
+		 * buffer's limit. Call release() with the buffer when done with it;
+		 * it need not be right away, or on this thread.
+		 */
+		public void receiveChunk(MemoryStreamReader reader, long address,
+				ByteBuffer data, ValidityMask valid);
+		/**
+		 * Called once, after the last chunk or as soon as the read fails or
+		 * is cancelled.
+		 */
+		public void notifyDone(MemoryStreamReader reader, boolean complete);
+	}
+	
+	public void start() {
+		fill();
+		deliver();
+	}
+	
+	/**
+	 * Gives back a buffer passed to receiveChunk, so another chunk can be
+	 * fetched into it.
+	 */
+	public void release(ByteBuffer buffer) {
+		synchronized (this) {
+			--outstanding;
+			if (buffer.capacity() == chunkSize) {
+				buffer.clear();
+				free.add(buffer);
+			}
+		}
+		fill();
+	}
+	
+	public void cancel() {
+		synchronized (this) {
+			if (stopped)
+				return;
+			stopped = true;
+		}
+		cancelPending();
+		deliver();
+	}
+	
+	// Starts fetching as many chunks as the window allows
+	private void fill() {
+		ArrayList<ChunkQuery> toSend = new ArrayList<ChunkQuery>();
+		QueryScope oldScope = session.setCurrentScope(scope);
+		Query.Priority oldPriority = session.setCurrentPriority(priority);
+		try {
+			synchronized (this) {
+				while (!stopped && next < end && outstanding < window) {
+					ByteBuffer buffer = free.poll();
+					if (buffer == null) {
+						buffer = direct ? ByteBuffer.allocateDirect(chunkSize)
+								: ByteBuffer.allocate(chunkSize);
+					}
+					int length = (int)Math.min(chunkSize, end - next);
+					buffer.limit(length);
+					Chunk c = new Chunk(next, buffer);
+					c.query = new ChunkQuery(session, c);
+					pending.add(c);
+					toSend.add(c.query);
+					++outstanding;
+					next += length;
+				}
+			}
+			for (ChunkQuery q : toSend) {
+				q.send();
+			}
+		} finally {
+			session.setCurrentScope(oldScope);
+			session.setCurrentPriority(oldPriority);
+		}
+	}
+	
+	// Hands over the chunks that are ready, in order. Only one thread
+	// delivers at a time; the others just update the state it looks at.
+	private void deliver() {
+		synchronized (this) {
+			if (delivering)
+				return;
+			delivering = true;
+		}
+		for (;;) {
+			Chunk c = null;
+			boolean complete;
+			synchronized (this) {
+				Chunk head = pending.peek();
+				if (!stopped && head != null && head.finished) {
+					c = pending.poll();
+				} else if (!doneSent && (stopped || (head == null && next >= end))) {
+					doneSent = true;
+				} else {
+					delivering = false;
+					return;
+				}
+				complete = !stopped;
+			}
+			if (c != null) {
+				listener.receiveChunk(this, c.address, c.buffer, c.valid);
+			} else {
+				listener.notifyDone(this, complete);
+			}
+		}
+	}
+	
+	private void chunkDone(Chunk c, boolean complete) {
+		boolean failed = false;
+		synchronized (this) {
+			c.finished = true;
+			if (!complete && !stopped) {
+				stopped = true;
+				failed = true;
+			}
+		}
+		if (failed) {
+			// Don't leave the rest of the range being read for nothing
+			cancelPending();
+		}
+		deliver();
+	}
+	
+	private void cancelPending() {
+		ArrayList<ChunkQuery> toCancel = new ArrayList<ChunkQuery>();
+		synchronized (this) {
+			for (Chunk c : pending) {
+				if (!c.finished) {
+					toCancel.add(c.query);
+				}
+			}
+		}
+		for (ChunkQuery q : toCancel) {
+			q.cancel();
+		}
+	}
+	
+	private static class Chunk {
+		Chunk(long address, ByteBuffer buffer) {
+			this.address = address;
+			this.buffer = buffer;
+			valid = new ValidityMask(buffer.limit());
+		}
+		long         address;
+		ByteBuffer   buffer;
+		ValidityMask valid;
+		ChunkQuery   query;
+		// Set under the reader's lock
+		boolean      finished;
+	}
+	
+	private class ChunkQuery extends Query {
+		ChunkQuery(Session session, Chunk chunk) {
+			super(session, "readMem");
+			this.chunk = chunk;
+			builder.append("TStamp", tStamp);
+			MemRange.writeTo(new MemRange[] { new MemRange(chunk.address,
+					chunk.address + chunk.buffer.limit()) },
+					builder.appendArray("ranges"));
+			acceptsPayload = true;
+			// Keeping chunks around would defeat the point
+			bypassCache = true;
+		}
+		
+		@Override
+		void handleDone(boolean complete) {
+			chunkDone(chunk, complete);
+		}
+		
+		@Override
+		void handleResult(JSONObject object) throws JSONParserException {
+			byte[] payload = object.getPayload();
+			String s = payload == null ? object.getString(ReplyField.BYTES) : null;
+			if (payload == null && s == null)
+				return;
+			long start = object.getLongRequired(ReplyField.START);
+			long length = object.getLongRequired(ReplyField.LENGTH);
+			if ((payload != null && payload.length != length) ||
+				(s != null && s.length() != length*2))
+				throw new JSONParserException("Wrong amount of data for " +
+						length + " bytes");
+			long from = Math.max(start, chunk.address);
+			long to = Math.min(start + length, chunk.address + chunk.buffer.limit());
+			if (from >= to)
+				return;
+			int offset = (int)(from - chunk.address);
+			int srcOffset = (int)(from - start);
+			int len = (int)(to - from);
+			ByteBuffer buffer = chunk.buffer;
+			if (payload == null && buffer.hasArray()) {
+				HexDecoder.decode(s, srcOffset*2, (srcOffset + len)*2,
+						buffer.array(), buffer.arrayOffset() + offset);
+			} else {
+				if (payload == null) {
+					payload = new byte[len];
+					HexDecoder.decode(s, srcOffset*2, (srcOffset + len)*2,
+							payload, 0);
+					srcOffset = 0;
+				}
+				ByteBuffer b = buffer.duplicate();
+				b.position(offset);
+				b.put(payload, srcOffset, len);
+			}
+			chunk.valid.setRange(offset, offset + len, true);
+		}
+		
+		private Chunk chunk;
+	}
+	
+	private Session           session;
+	private long              tStamp;
+	private long              end;
+	private int               chunkSize;
+	private int               window;
+	private boolean           direct;
+	private Listener          listener;
+	private QueryScope        scope;
+	private Query.Priority    priority;
+	// The rest is guarded by our lock
+	private long              next;
+	// Chunks fetched or being fetched and not yet released
+	private int               outstanding;
+	// Chunks not yet delivered, in address order
+	private ArrayDeque<Chunk> pending = new ArrayDeque<Chunk>();
+	private ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private boolean           stopped;
+	private boolean           delivering;
+	private boolean           doneSent;
+}
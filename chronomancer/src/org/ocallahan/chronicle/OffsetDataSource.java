@@ -42,6 +42,14 @@ public class OffsetDataSource implements IDataSource {
 		return source.getSession();
 	}
 	
+	IDataSource getSource() {
+		return source;
+	}
+	
+	long getOffset() {
+		return offset;
+	}
+	
 	public void read(long offset, int length, IDataSink sink) {
 		source.read(offset + this.offset, length, sink);
 	}
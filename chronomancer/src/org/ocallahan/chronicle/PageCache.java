@@ -0,0 +1,487 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Caches memory contents in fixed-size pages, so that reading the same
+ * memory at a nearby timestamp doesn't have to go back to the agent.
+ * 
+ * Each cached page holds its bytes as read at some timestamp together with
+ * the interval of timestamps over which nothing wrote it or changed its
+ * mapping, found with a pair of MEM_WRITE scans (which also report mmap
+ * changes) looking back and forward from the read. A read at any timestamp
+ * in that interval is answered from the cache. Pages that are missing are
+ * fetched whole; the reader gets the data as soon as they arrive, and the
+ * pages are cached when the scans finish.
+ * 
+ * Reads at the same timestamp are combined: everything that misses before
+ * the SessionThread gets to the first of them is fetched with a single
+ * multi-range ReadMemQuery, and the result is split back up for each
+ * reader. So rendering a struct field by field costs one query, not one per
+ * field. The pages fetched together share one validity interval, bounded
+ * by the nearest writes to any of them. Reads are combined the same way
+ * when the cache is disabled.
+ * 
+ * Pages are evicted least recently used first. All methods can be called on
+ * any thread. Readers are always called back on the SessionThread, or the
+ * worker pool, never synchronously.
+ */
+public class PageCache {
+	PageCache(Session session) {
+		this.session = session;
+	}
+	
+	/**
+	 * The size and alignment of cached pages, in bytes.
+	 */
+	public static final int PAGE_SIZE = 1024;
+	
+	/**
+	 * The default capacity, in pages.
+	 */
+	public static final int DEFAULT_CAPACITY = 0x1000;
+	
+	synchronized public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * When disabled, every read goes to the agent. Disabling doesn't drop
+	 * what is already cached, but it isn't used.
+	 */
+	synchronized public void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+	
+	/**
+	 * @param pages the most page versions to keep
+	 */
+	synchronized public void setCapacity(int pages) {
+		capacity = pages;
+		evict();
+	}
+	
+	synchronized public void clear() {
+		pages.clear();
+		size = 0;
+	}
+	
+	synchronized public long getHits() { return hits; }
+	synchronized public long getMisses() { return misses; }
+	synchronized public long getEvictions() { return evictions; }
+	/**
+	 * @return the number of page versions held
+	 */
+	synchronized public int getSize() { return size; }
+	
+	@Override
+	synchronized public String toString() {
+		return "PageCache: " + size + " pages, " + hits + " hits, " +
+		    misses + " misses, " + evictions + " evictions";
+	}
+	
+	/**
+	 * Reads memory as of tStamp, from the cache where possible.
+	 */
+	public void read(long tStamp, long start, int length, IDataSink sink) {
+		Request r = new Request(start, length, sink);
+		Batch batch;
+		synchronized (this) {
+			if (!enabled) {
+				batch = addToBatch(uncachedBatches, tStamp, false, r);
+				batch.ranges.add(new MemRange(start, start + length));
+			} else {
+				long firstPage = start & ~(long)(PAGE_SIZE - 1);
+				int count = (int)((start + length - firstPage + PAGE_SIZE - 1)/PAGE_SIZE);
+				r.pages = new Page[count];
+				boolean missed = false;
+				for (int i = 0; i < count; ++i) {
+					r.pages[i] = lookup(firstPage + (long)i*PAGE_SIZE, tStamp);
+					if (r.pages[i] != null) {
+						++hits;
+					} else {
+						++misses;
+						missed = true;
+					}
+				}
+				if (!missed) {
+					final Request hit = r;
+					session.runOnThread(new Runnable() {
+						public void run() {
+							hit.deliver();
+						}
+					});
+					return;
+				}
+				batch = addToBatch(batches, tStamp, true, r);
+				for (int i = 0; i < count; ++i) {
+					if (r.pages[i] == null) {
+						long address = firstPage + (long)i*PAGE_SIZE;
+						batch.ranges.add(new MemRange(address, address + PAGE_SIZE));
+					}
+				}
+			}
+			if (batch.requests.size() > 1)
+				return;
+		}
+		
+		// Send the batch once everything that is already running has had a
+		// chance to add to it. It's shared, so it mustn't belong to the
+		// caller's scope.
+		final Batch toSend = batch;
+		QueryScope oldScope = session.setCurrentScope(session.getRootScope());
+		try {
+			session.runOnThread(new Runnable() {
+				public void run() {
+					toSend.send();
+				}
+			});
+		} finally {
+			session.setCurrentScope(oldScope);
+		}
+	}
+	
+	// Called with our lock held.
+	private Batch addToBatch(HashMap<Long,Batch> map, long tStamp,
+			boolean cache, Request r) {
+		Batch batch = map.get(tStamp);
+		if (batch == null) {
+			batch = new Batch(map, tStamp, cache);
+			map.put(tStamp, batch);
+		}
+		batch.requests.add(r);
+		Query.Priority p = session.getCurrentPriority();
+		if (p.compareTo(batch.priority) < 0) {
+			batch.priority = p;
+		}
+		return batch;
+	}
+	
+	// Called with our lock held.
+	private Page lookup(long address, long tStamp) {
+		ArrayList<Page> versions = pages.get(address);
+		if (versions == null)
+			return null;
+		for (Page p : versions) {
+			if (p.from <= tStamp && tStamp <= p.to)
+				return p;
+		}
+		return null;
+	}
+	
+	synchronized private void put(Page page) {
+		ArrayList<Page> versions = pages.get(page.address);
+		if (versions == null) {
+			versions = new ArrayList<Page>();
+			pages.put(page.address, versions);
+		}
+		// Drop versions the new one makes redundant
+		for (Iterator<Page> iter = versions.iterator(); iter.hasNext();) {
+			Page p = iter.next();
+			if (page.from <= p.from && p.to <= page.to) {
+				iter.remove();
+				--size;
+			}
+		}
+		versions.add(page);
+		++size;
+		evict();
+	}
+	
+	// Called with our lock held.
+	private void evict() {
+		Iterator<ArrayList<Page>> iter = pages.values().iterator();
+		while (size > capacity && iter.hasNext()) {
+			size -= iter.next().size();
+			iter.remove();
+			++evictions;
+		}
+	}
+	
+	private static class Page {
+		Page(long address, byte[] data, ValidityMask valid, int offset) {
+			this.address = address;
+			this.data = new byte[PAGE_SIZE];
+			System.arraycopy(data, offset, this.data, 0, PAGE_SIZE);
+			this.valid = valid.subMask(offset, PAGE_SIZE);
+		}
+		long         address;
+		byte[]       data;
+		ValidityMask valid;
+		// The timestamps at which these contents are known to be current
+		long         from;
+		long         to;
+	}
+	
+	// A read that is waiting for its batch
+	private class Request {
+		Request(long start, int length, IDataSink sink) {
+			this.start = start;
+			this.length = length;
+			this.sink = sink;
+			scope = session.getCurrentScope();
+		}
+		
+		// Runs on the SessionThread or a worker
+		void deliver() {
+			byte[] data = new byte[length];
+			ValidityMask valid = new ValidityMask(length);
+			long end = start + length;
+			for (Page p : pages) {
+				long s = Math.max(start, p.address);
+				long e = Math.min(end, p.address + PAGE_SIZE);
+				System.arraycopy(p.data, (int)(s - p.address), data,
+						(int)(s - start), (int)(e - s));
+				p.valid.copyTo((int)(s - p.address), valid,
+						(int)(s - start), (int)(e - s));
+			}
+			deliver(data, valid);
+		}
+		
+		void deliver(final byte[] data, final ValidityMask valid) {
+			Runnable r = new Runnable() {
+				public void run() {
+					sink.receive(data, valid);
+				}
+			};
+			if (scope != session.getRootScope()) {
+				r = scope.wrap(r);
+			}
+			r.run();
+		}
+		
+		long            start;
+		int             length;
+		IDataSink       sink;
+		QueryScope      scope;
+		// The pages covering the read, null where they must be fetched. Null
+		// if the read isn't cached.
+		Page[]          pages;
+	}
+	
+	/**
+	 * All the reads at one timestamp that arrive before the SessionThread
+	 * gets around to sending them. They are fetched with one ReadMemQuery for
+	 * the union of what they need, and, if they are cached, share one pair
+	 * of validity scans.
+	 */
+	private class Batch {
+		Batch(HashMap<Long,Batch> map, long tStamp, boolean cache) {
+			this.map = map;
+			this.tStamp = tStamp;
+			this.cache = cache;
+		}
+		
+		// runs on SessionThread
+		void send() {
+			synchronized (PageCache.this) {
+				map.remove(tStamp);
+			}
+			final MemRange[] merged = merge(ranges);
+			Query.Priority oldPriority = session.setCurrentPriority(priority);
+			try {
+				ReadMemQuery q = new ReadMemQuery(session, tStamp, merged,
+						new ReadMemQuery.Listener() {
+					public void notifyDone(ReadMemQuery q, boolean complete,
+							byte[] data, ValidityMask valid) {
+						received(merged, complete, data, valid);
+					}
+				});
+				// We keep the pages, so the ResultCache needn't
+				q.bypassCache = cache;
+				q.send();
+			} finally {
+				session.setCurrentPriority(oldPriority);
+			}
+			if (!cache)
+				return;
+			
+			// Finding out how long the pages stay valid can wait
+			oldPriority = session.setCurrentPriority(Query.Priority.BACKGROUND);
+			try {
+				new ScanWriteQuery(session, 0, tStamp + 1, merged,
+						ScanQuery.Termination.LAST, new Bound(false)).send();
+				if (tStamp < session.getEndTStamp()) {
+					new ScanWriteQuery(session, tStamp, session.getEndTStamp(),
+							merged, ScanQuery.Termination.FIRST, new Bound(true)).send();
+				} else {
+					done(true);
+				}
+			} finally {
+				session.setCurrentPriority(oldPriority);
+			}
+		}
+		
+		private void received(MemRange[] merged, boolean complete,
+				byte[] data, ValidityMask valid) {
+			if (!cache) {
+				for (Request r : requests) {
+					byte[] d = new byte[r.length];
+					int offset = offsetOf(merged, r.start);
+					System.arraycopy(data, offset, d, 0, r.length);
+					r.deliver(d, valid.subMask(offset, r.length));
+				}
+				return;
+			}
+			
+			HashMap<Long,Page> fetched = new HashMap<Long,Page>();
+			for (MemRange m : merged) {
+				int offset = offsetOf(merged, m.getStart());
+				for (long a = m.getStart(); a < m.getEnd(); a += PAGE_SIZE) {
+					Page p = new Page(a, data, valid, offset);
+					fetched.put(a, p);
+					pages.add(p);
+					offset += PAGE_SIZE;
+				}
+			}
+			for (Request r : requests) {
+				long firstPage = r.start & ~(long)(PAGE_SIZE - 1);
+				for (int i = 0; i < r.pages.length; ++i) {
+					if (r.pages[i] == null) {
+						r.pages[i] = fetched.get(firstPage + (long)i*PAGE_SIZE);
+					}
+				}
+				r.deliver();
+			}
+			done(complete);
+		}
+		
+		synchronized void done(boolean complete) {
+			if (!complete) {
+				failed = true;
+			}
+			if (++finished < 3 || failed)
+				return;
+			long from = lastWrite < 0 ? 0 : lastWrite + 1;
+			long to = firstWrite < 0 ? Long.MAX_VALUE : firstWrite - 1;
+			if (lastWrite == tStamp) {
+				// Written right here, so it might be either version
+				from = to = tStamp;
+			}
+			for (Page p : pages) {
+				p.from = from;
+				p.to = to;
+				put(p);
+			}
+		}
+		
+		class Bound implements ScanWriteQuery.Listener {
+			Bound(boolean forward) {
+				this.forward = forward;
+			}
+			private void accumulate(long t) {
+				synchronized (Batch.this) {
+					if (forward) {
+						if (firstWrite < 0 || t < firstWrite) {
+							firstWrite = t;
+						}
+					} else if (t > lastWrite) {
+						lastWrite = t;
+					}
+				}
+			}
+			public void notifyWriteResult(ScanWriteQuery q, long tStamp,
+					long start, long end, byte[] data) {
+				accumulate(tStamp);
+			}
+			public void notifyMMapResult(ScanQuery q, long tStamp, long start,
+					long end, MMapInfo info) {
+				accumulate(tStamp);
+			}
+			public void notifyDone(ScanQuery q, boolean complete) {
+				done(complete);
+			}
+			private boolean forward;
+		}
+		
+		private HashMap<Long,Batch> map;
+		private long                tStamp;
+		private boolean             cache;
+		// Added to with the PageCache lock held, until the batch is sent
+		ArrayList<Request>          requests = new ArrayList<Request>();
+		ArrayList<MemRange>         ranges = new ArrayList<MemRange>();
+		Query.Priority              priority = Query.Priority.BULK;
+		// The pages fetched, to be cached once their interval is known
+		private ArrayList<Page>     pages = new ArrayList<Page>();
+		private long                lastWrite = -1;
+		private long                firstWrite = -1;
+		private int                 finished;
+		private boolean             failed;
+	}
+	
+	// Sorts the ranges and merges those that overlap or touch
+	private static MemRange[] merge(ArrayList<MemRange> ranges) {
+		Collections.sort(ranges, new Comparator<MemRange>() {
+			public int compare(MemRange a, MemRange b) {
+				return a.getStart() < b.getStart() ? -1
+						: a.getStart() > b.getStart() ? 1 : 0;
+			}
+		});
+		ArrayList<MemRange> merged = new ArrayList<MemRange>();
+		MemRange current = null;
+		for (MemRange r : ranges) {
+			if (current != null && r.getStart() <= current.getEnd()) {
+				if (r.getEnd() > current.getEnd()) {
+					current = new MemRange(current.getStart(), r.getEnd());
+				}
+				continue;
+			}
+			if (current != null) {
+				merged.add(current);
+			}
+			current = r;
+		}
+		merged.add(current);
+		return merged.toArray(new MemRange[merged.size()]);
+	}
+	
+	// Where the byte at address is in the data read for the merged ranges
+	private static int offsetOf(MemRange[] merged, long address) {
+		long offset = 0;
+		for (MemRange m : merged) {
+			if (address >= m.getStart() && address < m.getEnd())
+				return (int)(offset + address - m.getStart());
+			offset += m.getEnd() - m.getStart();
+		}
+		throw new IllegalArgumentException("Address not read");
+	}
+	
+	private Session session;
+	private boolean enabled = true;
+	// In least recently used order
+	private LinkedHashMap<Long,ArrayList<Page>> pages =
+		new LinkedHashMap<Long,ArrayList<Page>>(16, 0.75f, true);
+	// Reads waiting to be sent, by timestamp
+	private HashMap<Long,Batch> batches = new HashMap<Long,Batch>();
+	private HashMap<Long,Batch> uncachedBatches = new HashMap<Long,Batch>();
+	private int     size = 0;
+	private int     capacity = DEFAULT_CAPACITY;
+	private long    hits;
+	private long    misses;
+	private long    evictions;
+}
@@ -20,6 +20,8 @@ Contributor(s): robert@ocallahan.org
 
 package org.ocallahan.chronicle;
 
+import java.util.ArrayList;
+
 /**
  * An object representing a query.
  * @author roc
@@ -29,8 +31,12 @@ public abstract class Query {
     protected Query(Session session, String cmd) {
     	this.session = session;
 		id = session.allocateID();
+		priority = session.getCurrentPriority();
+		scope = session.getCurrentScope();
+		this.cmd = cmd;
+		// The id goes on last, in send(), so everything before it is the
+		// same for identical queries
 		builder.append("cmd", cmd);
-		builder.append("id", id);
 	}
 
     abstract void handleDone(boolean complete);
@@ -46,12 +52,101 @@ public abstract class Query {
 	
 	public int getID() { return id; }
 	
+	/**
+	 * Make this query's callbacks run on the SessionThread even when the
+	 * session dispatches callbacks to a worker pool. For code that relies
+	 * on the SessionThread's serialization. Call before send().
+	 */
+	public void pinToSessionThread() {
+		pinned = true;
+	}
+	
+	boolean isPinnedToSessionThread() { return pinned; }
+	
+	/**
+	 * How urgently the user needs this query's answer. Higher priority
+	 * queries are written to the agent first, their results are dispatched
+	 * first, and the priority is passed on to the agent as a hint.
+	 */
+	public static enum Priority {
+		INTERACTIVE("interactive"),
+		VISIBLE("visible"),
+		BACKGROUND("background"),
+		BULK("bulk");
+		
+		Priority(String name) {
+			this.name = name;
+		}
+		
+		private String name;
+	}
+	
+	/**
+	 * A query gets the session's current priority for the thread that
+	 * creates it (see Session.setCurrentPriority); queries created by a
+	 * query's callbacks get that query's priority. Call before send().
+	 */
+	public void setPriority(Priority priority) {
+		if (builder == null)
+			throw new IllegalStateException("Query already sent");
+		this.priority = priority;
+	}
+	
+	public Priority getPriority() { return priority; }
+	
+	public String getCommand() { return cmd; }
+	
+	/**
+	 * The scope that was current when the query was created. If it is
+	 * closed, the query is cancelled and none of its callbacks run.
+	 */
+	public QueryScope getScope() { return scope; }
+	
     public void send() {
-    	session.sendQuery(this, builder);
+    	// The command and parameters identify the result
+    	String cacheKey = !bypassCache && session.getResultCache().isEnabled(cmd) ?
+    			text.toString() : null;
+    	builder.append("id", id);
+    	if (priority != Priority.VISIBLE) {
+    		builder.append("priority", priority.name);
+    	}
+    	JSONObjectBuilder b = builder;
     	builder = null;
+    	text = null;
+    	if (!scope.add(this))
+    		return;
+    	session.sendQuery(this, b, cacheKey);
+    	// The scope may have been closed before the query was registered,
+    	// when closing it couldn't cancel us
+    	if (scope.isClosed()) {
+    		cancel();
+    	}
     }
 
    	private   int               id;
 	protected Session           session;
-	protected JSONObjectBuilder builder = new JSONObjectBuilder();
+	private   String            cmd;
+	private   StringBuilder     text = new StringBuilder();
+	protected JSONObjectBuilder builder = new JSONObjectBuilder(text);
+	private   boolean           pinned;
+	private   Priority          priority;
+	private   QueryScope        scope;
+	// Created by the SessionThread when callbacks go to the worker pool
+	SerialLane                  lane;
+	// While the reply is being recorded for the ResultCache; SessionThread only
+	String                      cacheKey;
+	ArrayList<JSONObject>       recordedReplies;
+	// Answered from the ResultCache
+	boolean                     isReplay;
+	// As queued in its channel's pendingOutput, and whether it was taken
+	// out again before being written; guarded by the channel's outputLock
+	String                      queuedText;
+	boolean                     withdrawn;
+	// The agent it was sent to, and whether it counts as a scan there
+	Session.Channel             channel;
+	boolean                     isScan;
+	// Set by queries that can use a binary payload instead of hex
+	boolean                     acceptsPayload;
+	// Set by queries whose replies mustn't go in the ResultCache
+	boolean                     bypassCache;
 }
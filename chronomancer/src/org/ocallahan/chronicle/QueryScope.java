@@ -0,0 +1,155 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * A group of queries that are abandoned together, such as everything a view
+ * has asked for about the current event.
+ * 
+ * A query belongs to the scope that is current on the thread that creates it
+ * (see Session.setCurrentScope). While a query's callbacks run its scope is
+ * current, and Runnables passed to Session.runOnThread() run in the caller's
+ * scope, so whole cascades of queries stay in the scope they were started in.
+ * 
+ * Closing a scope closes its child scopes, sends cancel for every query in
+ * them that is still running, and suppresses all further callbacks of those
+ * queries, including handleDone. Queries created in a closed scope are never
+ * sent. Code that needs to see every one of its queries finish (such as the
+ * TypeManager) should create them in the session's root scope, which cannot
+ * be closed.
+ */
+public class QueryScope {
+	QueryScope(Session session, QueryScope parent) {
+		this.session = session;
+		this.parent = parent;
+	}
+	
+	public Session getSession() {
+		return session;
+	}
+	
+	/**
+	 * @return a new scope that will be closed when this one is. It starts
+	 * out closed if this one is already closed.
+	 */
+	public QueryScope createChild() {
+		QueryScope child = new QueryScope(session, this);
+		synchronized (this) {
+			if (!isClosed) {
+				children.add(child);
+				return child;
+			}
+		}
+		child.isClosed = true;
+		return child;
+	}
+	
+	public boolean isClosed() {
+		return isClosed;
+	}
+	
+	/**
+	 * Cancel everything in this scope and its descendants. Call on any
+	 * thread. Callbacks that are already running finish, but nothing in the
+	 * scope is called after they return.
+	 */
+	public void close() {
+		if (parent == null)
+			throw new IllegalStateException("Cannot close the root scope");
+		ArrayList<Query> live;
+		ArrayList<QueryScope> closing;
+		synchronized (this) {
+			if (isClosed)
+				return;
+			isClosed = true;
+			live = new ArrayList<Query>(queries);
+			closing = new ArrayList<QueryScope>(children);
+			queries.clear();
+			children.clear();
+		}
+		parent.removeChild(this);
+		for (QueryScope child : closing) {
+			child.close();
+		}
+		for (Query q : live) {
+			q.cancel();
+		}
+	}
+	
+	/**
+	 * @return a Runnable that runs r in this scope, unless the scope has been
+	 * closed by then
+	 */
+	public Runnable wrap(final Runnable r) {
+		return new Runnable() {
+			public void run() {
+				if (isClosed)
+					return;
+				QueryScope old = session.setCurrentScope(QueryScope.this);
+				try {
+					r.run();
+				} finally {
+					session.setCurrentScope(old);
+				}
+			}
+		};
+	}
+	
+	private synchronized void removeChild(QueryScope child) {
+		children.remove(child);
+	}
+	
+	/**
+	 * Called when the query is sent.
+	 * @return false if the scope is closed, in which case the query must not
+	 * be sent
+	 */
+	boolean add(Query q) {
+		// The root scope can't be closed, so it needn't track anything
+		if (parent == null)
+			return true;
+		synchronized (this) {
+			if (isClosed)
+				return false;
+			queries.add(q);
+			return true;
+		}
+	}
+	
+	// Called when the query has been removed from the session
+	void remove(Query q) {
+		if (parent == null)
+			return;
+		synchronized (this) {
+			queries.remove(q);
+		}
+	}
+	
+	private Session              session;
+	private QueryScope           parent;
+	private volatile boolean     isClosed;
+	// Queries sent in this scope that haven't finished
+	private HashSet<Query>       queries = new HashSet<Query>();
+	private HashSet<QueryScope>  children = new HashSet<QueryScope>();
+}
@@ -0,0 +1,224 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The table of in-flight queries, keyed by query ID without boxing.
+ * 
+ * IDs are spread over independent segments by their low bits (IDs are
+ * allocated sequentially, so this is round-robin). Each segment is an
+ * open-addressed table probed linearly: an int array of IDs, which serve
+ * as the tags, alongside the array of queries. Lookups take no lock, just
+ * volatile reads. Inserts and removes lock only their segment; removed
+ * slots become tombstones until the segment is rehashed.
+ */
+class QueryTable {
+	QueryTable() {
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; ++i) {
+			segments[i] = new Segment(INITIAL_SLOTS);
+		}
+	}
+	
+	Query get(int id) {
+		Table t = segments[id & SEGMENT_MASK].table;
+		int mask = t.mask;
+		int i = home(id, mask);
+		for (int probes = 0; probes <= mask; ++probes) {
+			int tag = t.ids.get(i);
+			if (tag == id) {
+				// The slot is written before its tag, so this is our query,
+				// unless it has been removed. Once it's removed the slot can
+				// be reused, and we may see the new query under our old tag;
+				// IDs are unique, so then ours is gone.
+				Object o = t.queries.get(i);
+				if (o instanceof Query && ((Query)o).getID() == id)
+					return (Query)o;
+				return null;
+			}
+			if (tag == 0)
+				return null;
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+	
+	void put(Query q) {
+		segments[q.getID() & SEGMENT_MASK].put(q);
+	}
+	
+	/**
+	 * @return the query removed, or null if it wasn't there
+	 */
+	Query remove(int id) {
+		return segments[id & SEGMENT_MASK].remove(id);
+	}
+	
+	/**
+	 * @return a snapshot of the queries in the table
+	 */
+	ArrayList<Query> values() {
+		ArrayList<Query> result = new ArrayList<Query>();
+		for (Segment s : segments) {
+			AtomicReferenceArray<Object> queries = s.table.queries;
+			for (int i = 0; i < queries.length(); ++i) {
+				Object o = queries.get(i);
+				if (o instanceof Query) {
+					result.add((Query)o);
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the number of queries in the table; only a snapshot
+	 */
+	int size() {
+		int n = 0;
+		for (Segment s : segments) {
+			n += s.count;
+		}
+		return n;
+	}
+	
+	/**
+	 * Several senders each issuing a burst of queries produce interleaved
+	 * runs of consecutive IDs. Mapping consecutive IDs to consecutive slots
+	 * would let those runs collide and merge into long probe sequences, so
+	 * scatter them with Fibonacci hashing.
+	 */
+	private static int home(int id, int mask) {
+		int h = (id >>> SEGMENT_BITS)*0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+	
+	/**
+	 * Writers hold the segment lock, so they only need ordered (lazySet)
+	 * stores: a slot's query is stored before its tag.
+	 * 
+	 * A slot is free if its tag is 0 (IDs start at 1), or a tombstone if its
+	 * query is TOMBSTONE; a tombstone keeps its old tag, which can never
+	 * match again since IDs aren't reused.
+	 */
+	private static class Table {
+		Table(int size) {
+			ids = new AtomicIntegerArray(size);
+			queries = new AtomicReferenceArray<Object>(size);
+			mask = size - 1;
+		}
+		final AtomicIntegerArray           ids;
+		final AtomicReferenceArray<Object> queries;
+		final int                          mask;
+	}
+	
+	private static class Segment {
+		Segment(int size) {
+			table = new Table(size);
+		}
+		
+		synchronized void put(Query q) {
+			if ((used + 1)*4 > (table.mask + 1)*3) {
+				rehash();
+			}
+			// IDs are never reused, so there's no need to look for an
+			// existing entry; take the first free slot
+			Table t = table;
+			int id = q.getID();
+			int i = home(id, t.mask);
+			for (;;) {
+				if (t.ids.get(i) == 0) {
+					++used;
+					break;
+				}
+				if (t.queries.get(i) == TOMBSTONE)
+					break;
+				i = (i + 1) & t.mask;
+			}
+			t.queries.lazySet(i, q);
+			t.ids.lazySet(i, id);
+			++count;
+		}
+		
+		synchronized Query remove(int id) {
+			Table t = table;
+			int i = home(id, t.mask);
+			for (int probes = 0; probes <= t.mask; ++probes) {
+				int tag = t.ids.get(i);
+				if (tag == 0)
+					return null;
+				if (tag == id) {
+					Object o = t.queries.get(i);
+					if (o == TOMBSTONE)
+						return null;
+					t.queries.lazySet(i, TOMBSTONE);
+					--count;
+					return (Query)o;
+				}
+				i = (i + 1) & t.mask;
+			}
+			return null;
+		}
+		
+		// Called with our lock held. Drops the tombstones, and grows the
+		// table if it's still more than half full. Readers still probing
+		// the old table see a consistent (if stale) view of it.
+		private void rehash() {
+			Table old = table;
+			int size = old.mask + 1;
+			if (count*2 > size) {
+				size *= 2;
+			}
+			Table fresh = new Table(size);
+			for (int j = 0; j <= old.mask; ++j) {
+				Object o = old.queries.get(j);
+				if (!(o instanceof Query))
+					continue;
+				int id = old.ids.get(j);
+				int i = home(id, fresh.mask);
+				while (fresh.ids.get(i) != 0) {
+					i = (i + 1) & fresh.mask;
+				}
+				fresh.queries.set(i, o);
+				fresh.ids.set(i, id);
+			}
+			used = count;
+			table = fresh;
+		}
+		
+		volatile Table table;
+		// Guarded by our lock; count is volatile only for size()
+		volatile int   count;
+		int            used;
+	}
+	
+	private static final int SEGMENT_BITS = 4;
+	private static final int SEGMENTS = 1 << SEGMENT_BITS;
+	private static final int SEGMENT_MASK = SEGMENTS - 1;
+	private static final int INITIAL_SLOTS = 64;
+	private static final Object TOMBSTONE = new Object();
+	
+	private Segment[] segments;
+}
@@ -26,6 +26,9 @@ import java.util.Collections;
 /**
  * Utilities providing compound queries for useful operations such as finding
  * the start or end of the function invocation active at a given time.
+ * Each operation runs in the current QueryScope: every query in the cascade
+ * is issued from a callback of the first, so closing the scope stops the
+ * whole operation and the receiver is not called.
  * @author roc
  *
  */
@@ -61,16 +64,38 @@ public class QueryUtils {
 		public void receiveFunction(Function function);
 	}
 
+	// Like EndReceiver, but tells a definite "never returned" from a failed
+	// lookup
+	static interface CheckedEndReceiver {
+		public void receiveEnd(long tStamp);
+		public void receiveNothing(boolean complete);
+	}
+
 	private static final int DEFAULT_BUMP = 0x10000;
 
+	/**
+	 * Answers come from the session's CallFrameCache when it has them, and
+	 * are added to it when it doesn't.
+	 */
 	public static void findStartOfCallWithRegs(final Session s, final long tStamp,
-			long sp,
+			final long sp,
 	        final long stackEnd, final int thread, final StartReceiver receiver) {
+		CallIndex index = s.getCallIndex();
+		if (index != null && index.isComplete()) {
+			index.findStartOfCall(tStamp, thread, receiver);
+			return;
+		}
+		final CallFrameCache cache = s.getCallFrameCache();
+		if (cache.deliverCaller(thread, tStamp, sp, receiver))
+			return;
 		ScanEnterSPQuery q = new ScanEnterSPQuery(s,
 				0, tStamp, new MemRange[] { new MemRange(sp, stackEnd) },
 				ScanQuery.Termination.LAST, new ScanEnterSPQuery.Listener() {
 			public void notifyDone(ScanQuery q, boolean complete) {
 				if (!found) {
+					if (complete) {
+						cache.putCaller(thread, tStamp, sp, null);
+					}
 					receiver.receiveNothing();
 				}
 			}
@@ -80,25 +105,35 @@ public class QueryUtils {
 				final long beforeCallSP = enterSP + s.getArchitecture().getPointerSize();
 				// This might be the call ... or it might be a previous call
 				// by the same caller that returned before tStamp.
-				findEndOfCallWithRegs(s, enterTStamp + 1, enterSP, thread,
-						new EndReceiver() {
+				findEndOfCallChecked(s, enterTStamp + 1, enterSP, thread,
+						new CheckedEndReceiver() {
 					public void receiveEnd(long endTStamp) {
 						if (endTStamp > tStamp) {
 							// This call contains tStamp so it's the one we want
-							receiver.receiveStart(enterTStamp, endTStamp,
-									beforeCallSP, stackEnd, thread);
+							found(endTStamp, true);
 							return;
 						}
 						// This call returned before tStamp. Spawn another
 						// query to find out who called it, that will be the one
 						// we want.
 						findStartOfCallWithRegs(s, enterTStamp, beforeCallSP,
-								stackEnd, thread, receiver);
+								stackEnd, thread, cache.recordingAlso(thread,
+										tStamp, sp, enterTStamp, beforeCallSP,
+										receiver));
 					}
-					public void receiveNothing() {
-						// This call did not end, so this must be the one we want
-						receiver.receiveStart(enterTStamp, s.getEndTStamp(),
-								beforeCallSP, stackEnd, thread);
+					public void receiveNothing(boolean complete) {
+						// This call did not end, so this must be the one we
+						// want. If we couldn't tell, it's our best guess but
+						// not worth keeping.
+						found(s.getEndTStamp(), complete);
+					}
+					private void found(long endTStamp, boolean keep) {
+						CallFrameCache.Frame f = new CallFrameCache.Frame(thread,
+								enterTStamp, endTStamp, beforeCallSP, stackEnd);
+						if (keep) {
+							cache.putCaller(thread, tStamp, sp, f);
+						}
+						f.deliver(receiver);
 					}
 				});
 			}
@@ -111,6 +146,11 @@ public class QueryUtils {
 
 	public static void findStartOfCall(final Session s, final long tStamp,
 			final StartReceiver receiver) {
+		CallIndex index = s.getCallIndex();
+		if (index != null && index.isComplete()) {
+			index.findStartOfCall(tStamp, receiver);
+			return;
+		}
 		Architecture arch = s.getArchitecture();
 		final String spReg = arch.getSPReg();
 		final String threadReg = Architecture.getThreadReg();
@@ -137,10 +177,17 @@ public class QueryUtils {
 
 	/**
 	 * Finds the end of mapped memory at 'address' at time 'tStamp'.
+	 * The session's MemoryMapIndex answers this once it's built; if it
+	 * can't be built, we scan.
 	 */
-	public static void findMemoryEnd(Session s, long tStamp,
-		 long address, MemoryEndReceiver receiver) {
-		findMemoryEnd(s, tStamp, address, DEFAULT_BUMP, receiver);
+	public static void findMemoryEnd(final Session s, final long tStamp,
+		 final long address, final MemoryEndReceiver receiver) {
+		s.getMemoryMapIndex().findMemoryEnd(tStamp, address, receiver,
+				new Runnable() {
+			public void run() {
+				findMemoryEnd(s, tStamp, address, DEFAULT_BUMP, receiver);
+			}
+		});
 	}
 
 	/**
@@ -190,6 +237,29 @@ public class QueryUtils {
 	 */
 	public static void findEndOfCallWithRegs(Session s, long tStamp, long sp,
 			int thread, final EndReceiver receiver) {
+		findEndOfCallChecked(s, tStamp, sp, thread, new CheckedEndReceiver() {
+			public void receiveEnd(long tStamp) {
+				receiver.receiveEnd(tStamp);
+			}
+			public void receiveNothing(boolean complete) {
+				receiver.receiveNothing();
+			}
+		});
+	}
+	
+	static void findEndOfCallChecked(Session s, long tStamp, long sp,
+			int thread, final CheckedEndReceiver receiver) {
+		CallIndex index = s.getCallIndex();
+		if (index != null && index.isComplete() &&
+			index.findEndOfCall(tStamp, new EndReceiver() {
+				public void receiveEnd(long tStamp) {
+					receiver.receiveEnd(tStamp);
+				}
+				public void receiveNothing() {
+					receiver.receiveNothing(true);
+				}
+			}))
+			return;
 		FindGreaterSPQuery q = new FindGreaterSPQuery(s,
 				tStamp, s.getEndTStamp(), sp, thread,
 				new FindGreaterSPQuery.Listener() {
@@ -198,7 +268,7 @@ public class QueryUtils {
 				if (tStamp != null) {
 					receiver.receiveEnd(tStamp + 1);
 				} else {
-					receiver.receiveNothing();
+					receiver.receiveNothing(complete);
 				}
 			}
 		});
@@ -211,6 +281,10 @@ public class QueryUtils {
 	 */
 	public static void findEndOfCall(final Session s, final long tStamp,
 			final EndReceiver receiver) {
+		CallIndex index = s.getCallIndex();
+		if (index != null && index.isComplete() &&
+			index.findEndOfCall(tStamp, receiver))
+			return;
 		Architecture arch = s.getArchitecture();
 		final String spReg = arch.getSPReg();
 		final String threadReg = Architecture.getThreadReg();
@@ -232,6 +306,15 @@ public class QueryUtils {
 	
 	public static void findRunningFunction(final Session s, final long tStamp,
 			final FunctionReceiver receiver) {
+		CallIndex index = s.getCallIndex();
+		if (index != null && index.isComplete()) {
+			// At the start of a call the index knows the PC
+			long pc = index.getEntryPC(tStamp);
+			if (pc >= 0) {
+				findFunctionAt(s, pc, tStamp, receiver);
+				return;
+			}
+		}
 		final String pcReg = Architecture.getPCReg();
 		ReadRegQuery q = new ReadRegQuery(s,
 				tStamp, new String[] { pcReg }, 64,
@@ -239,22 +322,7 @@ public class QueryUtils {
 			public void notifyDone(ReadRegQuery q, boolean complete,
 					final RegisterValues values) {
 				if (complete) {
-					final long address = values.getLongValue(pcReg);
-					FindContainingFunctionQuery fq = new FindContainingFunctionQuery(s, address, tStamp,
-							new FindContainingFunctionQuery.Listener() {
-						public void notifyDone(FindContainingFunctionQuery q,
-								boolean complete, Function function) {
-							if (complete) {
-								if (function == null) {
-									function = new Function(s, address);
-								}
-								receiver.receiveFunction(function);
-							} else {
-								receiver.receiveFunction(null);
-							}
-						}
-					});
-					fq.send();
+					findFunctionAt(s, values.getLongValue(pcReg), tStamp, receiver);
 				} else {
 	                receiver.receiveFunction(null);
 				}
@@ -262,4 +330,27 @@ public class QueryUtils {
 		});
 		q.send();
 	}
+	
+	// Functions we've seen before are in the session's FunctionMap
+	private static void findFunctionAt(final Session s, final long address,
+			final long tStamp, final FunctionReceiver receiver) {
+		if (s.getFunctionMap().deliverFunction(address, tStamp, receiver))
+			return;
+		FindContainingFunctionQuery fq = new FindContainingFunctionQuery(s, address, tStamp,
+				new FindContainingFunctionQuery.Listener() {
+			public void notifyDone(FindContainingFunctionQuery q,
+					boolean complete, Function function) {
+				if (complete) {
+					if (function == null) {
+						s.getFunctionMap().addMissing(address, tStamp);
+						function = new Function(s, address);
+					}
+					receiver.receiveFunction(function);
+				} else {
+					receiver.receiveFunction(null);
+				}
+			}
+		});
+		fq.send();
+	}
 }
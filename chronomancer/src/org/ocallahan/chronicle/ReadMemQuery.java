@@ -20,8 +20,6 @@ Contributor(s): robert@ocallahan.org
 
 package org.ocallahan.chronicle;
 
-import java.util.Arrays;
-
 public class ReadMemQuery extends Query {
     public ReadMemQuery(Session session, long tStamp, MemRange[] ranges,
     		Listener listener) {
@@ -36,13 +34,14 @@ public class ReadMemQuery extends Query {
         if (totalLen > Integer.MAX_VALUE)
         	throw new IllegalArgumentException("Memory size overflow");
         this.data = new byte[(int)totalLen];
-        this.valid = new boolean[(int)totalLen];
+        this.valid = new ValidityMask((int)totalLen);
         this.ranges = ranges;
+        acceptsPayload = true;
     }
     
     public static interface Listener {
     	public void notifyDone(ReadMemQuery q, boolean complete,
-    			byte[] data, boolean[] valid);
+    			byte[] data, ValidityMask valid);
     }
     
 	@Override
@@ -52,27 +51,42 @@ public class ReadMemQuery extends Query {
 
 	@Override
 	void handleResult(JSONObject object) throws JSONParserException {
-		String s = object.getString("bytes");
-		if (s != null) {
-			long start = object.getLongRequired("start");
-			long length = object.getLongRequired("length");
-			byte[] data = VariablePiece.parseData(s);
-			int offset = 0;
+		byte[] payload = object.getPayload();
+		String s = payload == null ? object.getString(ReplyField.BYTES) : null;
+		if (payload != null || s != null) {
+			long start = object.getLongRequired(ReplyField.START);
+			long length = object.getLongRequired(ReplyField.LENGTH);
+			if (payload != null && payload.length != length)
+				throw new JSONParserException("Expected " + length +
+						" payload bytes, got " + payload.length);
+			if (s != null && s.length() != length*2)
+				throw new JSONParserException("Expected " + length*2 +
+						" hex digits, got " + s.length());
+			// Decode each intersecting part of the result straight into
+			// its place in our data
+			long offset = 0;
 			for (MemRange r : ranges) {
 				MemRange intersection = r.intersect(start, start + length);
 				if (intersection != null) {
-					int iStart = offset + (int)(intersection.getStart() - r.getStart());
-					int iEnd = offset + (int)(intersection.getEnd() - r.getStart());
-					Arrays.fill(valid, offset + iStart, offset + iEnd, true);
-					System.arraycopy(data, (int)(intersection.getStart() - start),
-							this.data, offset + iStart, iEnd - iStart);
+					int iStart = (int)(offset + intersection.getStart() - r.getStart());
+					int iEnd = (int)(offset + intersection.getEnd() - r.getStart());
+					int sStart = (int)(intersection.getStart() - start);
+					if (payload != null) {
+						System.arraycopy(payload, sStart, data, iStart,
+								iEnd - iStart);
+					} else {
+						HexDecoder.decode(s, sStart*2, (sStart + iEnd - iStart)*2,
+								data, iStart);
+					}
+					valid.setRange(iStart, iEnd, true);
 				}
+				offset += r.getEnd() - r.getStart();
 			}
 		}
 	}
 
 	private Listener listener;
 	private byte[] data;
-	private boolean[] valid;
+	private ValidityMask valid;
 	private MemRange[] ranges;
 }
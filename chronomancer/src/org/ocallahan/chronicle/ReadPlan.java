@@ -0,0 +1,432 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+
+/**
+ * A read of a composed data source, flattened. Compiling walks the stack of
+ * OffsetDataSources, ShiftDataSources and ConcatenationDataSources down to
+ * the MemoryDataSources and RegisterDataSources at the bottom and records,
+ * for each run of result bits, where it comes from. Executing it then makes
+ * one memory read per contiguous range at each timestamp (and the PageCache
+ * combines those into a single readMem), one readReg for all the registers
+ * at each timestamp, and assembles the result bits in one pass into the
+ * caller's buffer, with no intermediate buffers or callbacks per layer.
+ * 
+ * Any other kind of source is read as it is, as a leaf.
+ * 
+ * Bits are numbered from the least significant bit of each byte, as in
+ * ConcatenationDataSource. A result byte is valid only if all its bits came
+ * from valid source bytes.
+ * 
+ * A plan can be executed any number of times.
+ */
+public class ReadPlan {
+	private ReadPlan(Session session, int length) {
+		this.session = session;
+		this.length = length;
+	}
+	
+	/**
+	 * Plans reading 'length' bytes at 'offset' from source.
+	 */
+	public static ReadPlan compile(IDataSource source, long offset, int length) {
+		ReadPlan plan = new ReadPlan(source.getSession(), length);
+		ArrayList<Leaf> leaves = new ArrayList<Leaf>();
+		flatten(source, offset*8, 0, (long)length*8, leaves);
+		plan.planFetches(leaves);
+		return plan;
+	}
+	
+	/**
+	 * Reads into new buffers and passes them to sink.
+	 */
+	public void execute(IDataSink sink) {
+		execute(new byte[length], new ValidityMask(length), sink);
+	}
+	
+	/**
+	 * Reads into data and valid, which must be at least as long as the plan
+	 * and should be all zero and invalid, and then passes them to sink.
+	 */
+	public void execute(byte[] data, ValidityMask valid, IDataSink sink) {
+		new Execution(data, valid, sink).start();
+	}
+	
+	/**
+	 * @return how many fetches the plan makes; registers read together
+	 * count as one
+	 */
+	public int getFetchCount() {
+		return fetches.size();
+	}
+	
+	// A run of result bits from one bottom-level source, before the fetches
+	// are planned
+	static class Leaf {
+		Leaf(IDataSource source, long bit, long destBit, long numBits) {
+			this.source = source;
+			this.bit = bit;
+			this.destBit = destBit;
+			this.numBits = numBits;
+		}
+		IDataSource source;
+		// For memory, the bit address relative to the source's start;
+		// otherwise the bit offset into the source
+		long        bit;
+		long        destBit;
+		long        numBits;
+	}
+	
+	// Collects the leaves that supply numBits bits of source from srcBit,
+	// to go at destBit in the result
+	static void flatten(IDataSource source, long srcBit, long destBit,
+			long numBits, ArrayList<Leaf> leaves) {
+		if (numBits <= 0)
+			return;
+		if (source instanceof OffsetDataSource) {
+			OffsetDataSource o = (OffsetDataSource)source;
+			flatten(o.getSource(), srcBit + o.getOffset()*8, destBit, numBits, leaves);
+		} else if (source instanceof ShiftDataSource) {
+			ShiftDataSource s = (ShiftDataSource)source;
+			flatten(s.getSource(), srcBit + s.getShift(), destBit, numBits, leaves);
+		} else if (source instanceof ConcatenationDataSource) {
+			for (ConcatenationDataSource.Element e :
+				    ((ConcatenationDataSource)source).getElements()) {
+				long from = Math.max(srcBit, e.destStartBit);
+				long to = Math.min(srcBit + numBits, e.destStartBit + e.numBits);
+				if (from < to) {
+					flatten(e.source, from - e.destStartBit + e.sourceStartBit,
+							destBit + from - srcBit, to - from, leaves);
+				}
+			}
+		} else {
+			leaves.add(new Leaf(source, srcBit, destBit, numBits));
+		}
+	}
+	
+	static int bytesFor(long bit, long numBits) {
+		long bytes = ((bit & 7) + numBits + 7) >> 3;
+		if (bytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Read too large");
+		return (int)bytes;
+	}
+	
+	private void planFetches(ArrayList<Leaf> leaves) {
+		// Memory leaves by timestamp, and register leaves by timestamp
+		LinkedHashMap<Long,ArrayList<Leaf>> memory =
+			new LinkedHashMap<Long,ArrayList<Leaf>>();
+		LinkedHashMap<Long,ArrayList<Leaf>> registers =
+			new LinkedHashMap<Long,ArrayList<Leaf>>();
+		for (Leaf l : leaves) {
+			LinkedHashMap<Long,ArrayList<Leaf>> map = null;
+			if (l.source instanceof MemoryDataSource) {
+				map = memory;
+			} else if (l.source instanceof RegisterDataSource &&
+					   l.bit >= 0) {
+				map = registers;
+			}
+			if (map == null) {
+				if (l.bit < 0) {
+					// Before the start of the source; leave it invalid
+					continue;
+				}
+				fetches.add(new LeafFetch(l.source, l.bit >> 3,
+						bytesFor(l.bit, l.numBits), inputCount));
+				segments.add(new Segment(inputCount++, l.bit & 7, l.destBit,
+						l.numBits));
+				continue;
+			}
+			ArrayList<Leaf> list = map.get(l.source.getTStamp());
+			if (list == null) {
+				list = new ArrayList<Leaf>();
+				map.put(l.source.getTStamp(), list);
+			}
+			list.add(l);
+		}
+		
+		for (ArrayList<Leaf> list : memory.values()) {
+			planMemory(list);
+		}
+		for (ArrayList<Leaf> list : registers.values()) {
+			planRegisters(list);
+		}
+	}
+	
+	static long addressOf(Leaf l) {
+		return ((MemoryDataSource)l.source).getStart() + (l.bit >> 3);
+	}
+	
+	// One read per contiguous range
+	private void planMemory(ArrayList<Leaf> list) {
+		Collections.sort(list, new Comparator<Leaf>() {
+			public int compare(Leaf a, Leaf b) {
+				long x = addressOf(a);
+				long y = addressOf(b);
+				return x < y ? -1 : x > y ? 1 : 0;
+			}
+		});
+		MemoryFetch current = null;
+		for (Leaf l : list) {
+			long address = addressOf(l);
+			long end = address + bytesFor(l.bit, l.numBits);
+			if (current == null || address > current.end) {
+				current = new MemoryFetch(l.source.getTStamp(), address, inputCount++);
+				fetches.add(current);
+			}
+			current.end = Math.max(current.end, end);
+			segments.add(new Segment(current.input,
+					(address - current.start)*8 + (l.bit & 7), l.destBit, l.numBits));
+		}
+	}
+	
+	// One readReg for all the registers
+	private void planRegisters(ArrayList<Leaf> list) {
+		LinkedHashMap<String,Integer> inputs = new LinkedHashMap<String,Integer>();
+		int bytes = 0;
+		for (Leaf l : list) {
+			String reg = ((RegisterDataSource)l.source).getRegister();
+			Integer input = inputs.get(reg);
+			if (input == null) {
+				input = inputCount++;
+				inputs.put(reg, input);
+			}
+			bytes = Math.max(bytes, (int)((l.bit + l.numBits + 7) >> 3));
+			segments.add(new Segment(input, l.bit, l.destBit, l.numBits));
+		}
+		fetches.add(new RegisterFetch(list.get(0).source.getTStamp(),
+				inputs, bytes));
+	}
+	
+	// A run of result bits from one input
+	private static class Segment {
+		Segment(int input, long srcBit, long destBit, long numBits) {
+			this.input = input;
+			this.srcBit = srcBit;
+			this.destBit = destBit;
+			this.numBits = numBits;
+		}
+		int  input;
+		long srcBit;
+		long destBit;
+		long numBits;
+	}
+	
+	// Something to read. Each provides one or more inputs.
+	private static abstract class Fetch {
+		abstract void fetch(Execution e);
+	}
+	
+	private class MemoryFetch extends Fetch {
+		MemoryFetch(long tStamp, long start, int input) {
+			this.tStamp = tStamp;
+			this.start = start;
+			this.end = start;
+			this.input = input;
+		}
+		@Override
+		void fetch(final Execution e) {
+			session.getPageCache().read(tStamp, start, (int)(end - start),
+					new IDataSink() {
+				public void receive(byte[] data, ValidityMask valid) {
+					e.received(input, data, valid);
+					e.fetchDone();
+				}
+			});
+		}
+		long tStamp;
+		long start;
+		long end;
+		int  input;
+	}
+	
+	private class RegisterFetch extends Fetch {
+		RegisterFetch(long tStamp, LinkedHashMap<String,Integer> inputs, int bytes) {
+			this.tStamp = tStamp;
+			this.inputs = inputs;
+			this.bytes = bytes;
+		}
+		@Override
+		void fetch(final Execution e) {
+			String[] regs = inputs.keySet().toArray(new String[inputs.size()]);
+			new ReadRegQuery(session, tStamp, regs, bytes*8,
+					new ReadRegQuery.Listener() {
+				public void notifyDone(ReadRegQuery q, boolean complete,
+						RegisterValues values) {
+					for (String reg : inputs.keySet()) {
+						byte[] data = toBytes(values.getValue(reg));
+						ValidityMask valid = new ValidityMask(data.length, true);
+						e.received(inputs.get(reg), data, valid);
+					}
+					e.fetchDone();
+				}
+			}).send();
+		}
+		// The value's bytes in memory order, like RegisterDataSource
+		private byte[] toBytes(RegisterValues.Value v) {
+			if (v == null)
+				return new byte[0];
+			if (!session.getArchitecture().isLittleEndian())
+				throw new IllegalArgumentException("Only little-endian handled currently");
+			byte[] result = new byte[v.getBits()/8];
+			if (result.length <= 8) {
+				long l = v.getLong();
+				for (int i = 0; i < result.length; ++i) {
+					result[i] = (byte)(l >> (i*8));
+				}
+			} else {
+				byte[] big = v.getBig().toByteArray();
+				for (int i = 0; i < result.length && i < big.length; ++i) {
+					result[i] = big[big.length - 1 - i];
+				}
+			}
+			return result;
+		}
+		
+		long                          tStamp;
+		LinkedHashMap<String,Integer> inputs;
+		int                           bytes;
+	}
+	
+	private static class LeafFetch extends Fetch {
+		LeafFetch(IDataSource source, long offset, int length, int input) {
+			this.source = source;
+			this.offset = offset;
+			this.length = length;
+			this.input = input;
+		}
+		@Override
+		void fetch(final Execution e) {
+			source.read(offset, length, new IDataSink() {
+				public void receive(byte[] data, ValidityMask valid) {
+					e.received(input, data, valid);
+					e.fetchDone();
+				}
+			});
+		}
+		IDataSource source;
+		long        offset;
+		int         length;
+		int         input;
+	}
+	
+	private class Execution {
+		Execution(byte[] data, ValidityMask valid, IDataSink sink) {
+			this.data = data;
+			this.valid = valid;
+			this.sink = sink;
+			inputs = new byte[inputCount][];
+			inputValid = new ValidityMask[inputCount];
+		}
+		
+		void start() {
+			if (fetches.isEmpty()) {
+				session.runOnThread(new Runnable() {
+					public void run() {
+						finish();
+					}
+				});
+				return;
+			}
+			pending = fetches.size();
+			for (Fetch f : fetches) {
+				f.fetch(this);
+			}
+		}
+		
+		synchronized void received(int input, byte[] d, ValidityMask v) {
+			inputs[input] = d;
+			inputValid[input] = v;
+		}
+		
+		void fetchDone() {
+			synchronized (this) {
+				if (--pending > 0)
+					return;
+			}
+			finish();
+		}
+		
+		private void finish() {
+			// Which bits of each result byte have been filled in
+			byte[] covered = new byte[length];
+			synchronized (this) {
+				for (Segment s : segments) {
+					copy(s, covered);
+				}
+			}
+			for (int i = 0; i < length; ++i) {
+				if (covered[i] == (byte)0xFF) {
+					valid.set(i, true);
+				}
+			}
+			sink.receive(data, valid);
+		}
+		
+		private void copy(Segment s, byte[] covered) {
+			byte[] src = inputs[s.input];
+			ValidityMask srcValid = inputValid[s.input];
+			long k = 0;
+			if ((s.srcBit & 7) == 0 && (s.destBit & 7) == 0) {
+				// Whole bytes
+				int from = (int)(s.srcBit >> 3);
+				int dest = (int)(s.destBit >> 3);
+				int count = (int)Math.max(0, Math.min(s.numBits >> 3, src.length - from));
+				for (int i = 0; i < count; ++i) {
+					if (srcValid.get(from + i)) {
+						data[dest + i] = src[from + i];
+						covered[dest + i] = (byte)0xFF;
+					}
+				}
+				k = (long)count*8;
+			}
+			for (; k < s.numBits; ++k) {
+				long sb = s.srcBit + k;
+				int si = (int)(sb >> 3);
+				if (si >= src.length || !srcValid.get(si))
+					continue;
+				int bit = (src[si] >> (sb & 7)) & 1;
+				long db = s.destBit + k;
+				int di = (int)(db >> 3);
+				int mask = 1 << (db & 7);
+				data[di] = (byte)((data[di] & ~mask) | (bit << (db & 7)));
+				covered[di] |= mask;
+			}
+		}
+		
+		private byte[]         data;
+		private ValidityMask   valid;
+		private IDataSink      sink;
+		private byte[][]       inputs;
+		private ValidityMask[] inputValid;
+		private int            pending;
+	}
+	
+	private Session            session;
+	private int                length;
+	private ArrayList<Fetch>   fetches = new ArrayList<Fetch>();
+	private ArrayList<Segment> segments = new ArrayList<Segment>();
+	private int                inputCount;
+}
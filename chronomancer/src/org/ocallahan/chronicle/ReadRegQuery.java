@@ -30,6 +30,7 @@ public class ReadRegQuery extends Query {
         }
         this.listener = listener;
         this.regs = regs;
+        acceptsPayload = true;
     }
     
     public static interface Listener {
@@ -20,8 +20,6 @@ Contributor(s): robert@ocallahan.org
 
 package org.ocallahan.chronicle;
 
-import java.util.Arrays;
-
 public class RegisterDataSource implements IDataSource {
 	private Session session;
 	private long tStamp;
@@ -34,18 +32,20 @@ public class RegisterDataSource implements IDataSource {
 	}
 
 	public void findNextChangeTStamp(long start, long length, TStampReceiver receiver) {
-		// TODO Auto-generated method stub
-		throw new Error("Unimplemented");
+		ChangeFinder.findNext(this, start, length, receiver);
 	}
 
 	public void findPreviousChangeTStamp(long start, long length, TStampReceiver receiver) {
-		// TODO Auto-generated method stub
-		throw new Error("Unimplemented");
+		ChangeFinder.findPrevious(this, start, length, receiver);
 	}
 
 	public Session getSession() {
 		return session;
 	}
+	
+	String getRegister() {
+		return register;
+	}
 
 	public IDataSource getSourceAtTime(long newTStamp) {
 		return new RegisterDataSource(session, newTStamp, register);
@@ -71,10 +71,10 @@ public class RegisterDataSource implements IDataSource {
 				RegisterValues.Value v = values.getValue(register);
 				int vBytes = v.getBits()/8;
 				byte[] result = new byte[length];
-				boolean[] resultValid = new boolean[length];
+				ValidityMask resultValid = new ValidityMask(length);
 				if (intOffset < vBytes) {
 					int resultBytes = Math.min(length, vBytes - intOffset);
-					Arrays.fill(resultValid, 0, resultBytes, true);
+					resultValid.setRange(0, resultBytes, true);
 					if (vBytes <= 8) {
 						long l = v.getLong();
 						for (int i = 0; i < resultBytes; ++i) {
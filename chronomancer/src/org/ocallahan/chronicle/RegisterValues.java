@@ -28,6 +28,10 @@ public class RegisterValues {
 	}
 	
 	public void parseValues(JSONObject object) throws JSONParserException {
+		JSONObject payloadFields = object.getObject("payloadFields");
+		if (payloadFields != null && object.getPayload() != null) {
+			parsePayloadValues(payloadFields, object.getPayload());
+		}
 		for (String f : object.getFields()) {
 		    String s = object.getString(f);
 		    if (s != null) {
@@ -39,6 +43,32 @@ public class RegisterValues {
 		}
 	}
 	
+	// The payload holds the listed registers in order, each big-endian
+	// with the given number of bytes
+	private void parsePayloadValues(JSONObject fields, byte[] payload)
+	        throws JSONParserException {
+		int offset = 0;
+		for (String f : fields.getFields()) {
+			int len = fields.getIntRequired(f);
+			if (len < 0 || offset + len > payload.length)
+				throw new JSONParserException("Register " + f +
+						" overruns payload");
+			long v = 0;
+			for (int i = 0; i < len; ++i) {
+				v = (v << 8) | (payload[offset + i] & 0xFF);
+			}
+			String name = f.intern();
+			if (len > 8) {
+				byte[] b = new byte[len];
+				System.arraycopy(payload, offset, b, 0, len);
+				vList.add(new Value(name, len*8, v, new BigInteger(1, b)));
+			} else {
+				vList.add(new Value(name, len*8, v));
+			}
+			offset += len;
+		}
+	}
+	
 	public static int parseHexChar(char ch) throws JSONParserException {
 		int v = parseHexCharWithFailure(ch);
 		if (v < 0)
@@ -47,26 +77,20 @@ public class RegisterValues {
 	}
 	
 	public static int parseHexCharWithFailure(char ch) {
-		if (ch >= '0' && ch <= '9')
-			return ch - '0';
-		if (ch >= 'A' && ch <= 'F')
-			return ch - 'A' + 10;
-		if (ch >= 'a' && ch <= 'f')
-			return ch - 'a' + 10;
-		return -1;
+		return HexDecoder.digit(ch);
 	}
 	
 	static Value parseValue(String name, String s) {
 		long v = 0;
 		int bits = s.length()*4;
 		for (int i = 0; i < s.length(); ++i) {
-			int digit = parseHexCharWithFailure(s.charAt(i));
+			int digit = HexDecoder.digit(s.charAt(i));
 			if (digit < 0)
 				return null;
 			v = v*16 + digit;
 		}
 		if (bits > 64)
-			return new Value(name, bits, v, new BigInteger(name, 16));
+			return new Value(name, bits, v, new BigInteger(s, 16));
 		return new Value(name, bits, v);
 	}
 	
@@ -0,0 +1,495 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads agent replies, one JSON object per line, straight from the bytes the
+ * agent writes. Lines are split and parsed in place in a reusable buffer, so
+ * a reply is never decoded into an intermediate String. The ReplyField keys
+ * are recognized without interning or allocation and their numeric values
+ * are stored unboxed in the JSONObject; other keys go through a small cache
+ * so repeated keys don't allocate either.
+ * 
+ * A line may be followed by a binary frame: when the line has a "payload"
+ * field, exactly that many raw bytes follow its newline, and the next line
+ * starts after them. The Session reads them with readPayload().
+ * 
+ * Only used by the Session's ReadThread, so it's not thread-safe.
+ */
+class ReplyDecoder {
+	ReplyDecoder(InputStream in) {
+		this.in = in;
+		buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		buffer.limit(0);
+		buf = buffer.array();
+	}
+	
+	/**
+	 * Advances to the next non-empty line, reading more input as needed.
+	 * @return false at the end of the input
+	 */
+	boolean nextLine() throws IOException {
+		int scanFrom = buffer.position();
+		for (;;) {
+			int limit = buffer.limit();
+			for (int j = scanFrom; j < limit; ++j) {
+				if (buf[j] != '\n')
+					continue;
+				lineStart = buffer.position();
+				lineEnd = j;
+				buffer.position(j + 1);
+				if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') {
+					--lineEnd;
+				}
+				if (lineEnd > lineStart)
+					return true;
+			}
+			
+			// No complete line left; move the partial line to the start of
+			// the buffer and read more
+			scanFrom = limit - buffer.position();
+			buffer.compact();
+			if (!buffer.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity()*2);
+				buffer.flip();
+				bigger.put(buffer);
+				buffer = bigger;
+				buf = buffer.array();
+			}
+			int n = in.read(buf, buffer.position(), buffer.remaining());
+			if (n > 0) {
+				buffer.position(buffer.position() + n);
+			}
+			buffer.flip();
+			if (n < 0) {
+				// an unterminated last line still counts
+				lineStart = 0;
+				lineEnd = buffer.limit();
+				buffer.position(lineEnd);
+				return lineEnd > 0;
+			}
+		}
+	}
+	
+	/**
+	 * Reads the binary payload that follows the current line. The line
+	 * must have been parsed (and says how long the payload is); the next
+	 * line starts after the payload.
+	 */
+	byte[] readPayload(long length) throws IOException {
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Payload too large: " + length);
+		byte[] payload = new byte[(int)length];
+		int n = Math.min(payload.length, buffer.remaining());
+		buffer.get(payload, 0, n);
+		// Read the rest directly, it's not worth buffering
+		while (n < payload.length) {
+			int r = in.read(payload, n, payload.length - n);
+			if (r < 0)
+				throw new EOFException("Truncated payload");
+			n += r;
+		}
+		return payload;
+	}
+	
+	/**
+	 * Builds a String for the current line. Only needed for tracing.
+	 */
+	String getLineString() {
+		return new String(buf, lineStart, lineEnd - lineStart, UTF8);
+	}
+	
+	/**
+	 * Parses the current line, which must be a single JSON object.
+	 */
+	JSONObject parseLine() throws JSONParserException {
+		i = lineStart;
+		end = lineEnd;
+		sp = 0;
+		skipWhitespace();
+		JSONObject o = parseObject();
+		if (i != end)
+			throw new JSONParserException("Leftover characters: " + text(i, end));
+		return o;
+	}
+	
+	void close() throws IOException {
+		in.close();
+	}
+	
+	private void skipWhitespace() {
+		while (i < end) {
+			switch (buf[i]) {
+			case '\n':
+			case '\r':
+			case ' ':
+			case '\t':
+				break;
+			default:
+				return;
+			}
+			++i;
+		}
+	}
+	
+	private Object parseValue(ReplyField field) throws JSONParserException {
+		if (i >= end)
+			throw new JSONParserException("Expected value, found end of line");
+		switch (buf[i]) {
+		case '[': return parseArray();
+		case 't': consumeToken(TRUE); return Boolean.TRUE;
+		case 'f': consumeToken(FALSE); return Boolean.FALSE;
+		case 'n': consumeToken(NULL); return null;
+		case '"': return parseString(field);
+		case '{': return parseObject();
+		default:
+			long v = parseLong();
+			if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE)
+				return (int)v;
+			return v;
+		}
+	}
+	
+	private JSONObject parseObject() throws JSONParserException {
+		int base = sp;
+		long[] slots = null;
+		int[] fieldIndex = NO_FIELDS;
+		
+		consumeToken('{');
+		while (!isChar('}')) {
+			push(parseKey());
+			ReplyField field = keyField;
+			consumeToken(':');
+			if (field != null) {
+				if (fieldIndex == NO_FIELDS) {
+					fieldIndex = new int[ReplyField.ALL.length];
+				}
+				// the value goes at sp
+				fieldIndex[field.ordinal()] = sp - base + 1;
+			}
+			if (field != null && isNumberStart()) {
+				if (slots == null) {
+					slots = new long[ReplyField.ALL.length];
+				}
+				slots[field.ordinal()] = parseLong();
+				push(field);
+			} else {
+				push(parseValue(field));
+			}
+			if (isChar(',')) {
+				consumeToken(',');
+			}
+		}
+		consumeToken('}');
+		
+		return new JSONObject(pop(base), slots, fieldIndex);
+	}
+	
+	private Object[] parseArray() throws JSONParserException {
+		int base = sp;
+		consumeToken('[');
+		while (!isChar(']')) {
+			push(parseValue(null));
+			if (isChar(',')) {
+				consumeToken(',');
+			}
+		}
+		consumeToken(']');
+		return pop(base);
+	}
+	
+	/**
+	 * Finds the closing quote of the string starting at i, leaving i just
+	 * after the opening quote. Sets stringIsPlain if the string has no
+	 * escapes or non-ASCII characters.
+	 * @return the index of the closing quote
+	 */
+	private int scanString() throws JSONParserException {
+		consume('"');
+		boolean plain = true;
+		int j = i;
+		for (;;) {
+			if (j >= end)
+				throw new JSONParserException("String was not terminated");
+			byte b = buf[j];
+			if (b == '"')
+				break;
+			if (b == '\\') {
+				plain = false;
+				++j;
+			} else if (b < 0) {
+				plain = false;
+			}
+			++j;
+		}
+		stringIsPlain = plain;
+		return j;
+	}
+	
+	private String parseKey() throws JSONParserException {
+		int close = scanString();
+		int start = i;
+		int len = close - start;
+		String s;
+		keyField = null;
+		if (stringIsPlain) {
+			keyField = ReplyField.match(buf, start, len);
+			s = keyField != null ? keyField.getName() : lookupKey(start, len);
+		} else {
+			s = decodeString(start, close).intern();
+		}
+		i = close + 1;
+		skipWhitespace();
+		return s;
+	}
+	
+	private String lookupKey(int start, int len) {
+		int h = 0;
+		for (int j = 0; j < len; ++j) {
+			h = h*31 + buf[start + j];
+		}
+		h = (h ^ (h >>> 16)) & (KEY_CACHE_SIZE - 1);
+		byte[] k = keyCacheBytes[h];
+		if (k != null && k.length == len) {
+			int j = 0;
+			while (j < len && k[j] == buf[start + j]) {
+				++j;
+			}
+			if (j == len)
+				return keyCacheStrings[h];
+		}
+		k = new byte[len];
+		System.arraycopy(buf, start, k, 0, len);
+		String s = new String(buf, start, len, LATIN1).intern();
+		keyCacheBytes[h] = k;
+		keyCacheStrings[h] = s;
+		return s;
+	}
+	
+	private String parseString(ReplyField field) throws JSONParserException {
+		int close = scanString();
+		int start = i;
+		String s;
+		if (!stringIsPlain) {
+			s = decodeString(start, close);
+		} else if (field == ReplyField.TYPE || field == ReplyField.TERMINATED) {
+			s = commonValue(start, close - start);
+		} else {
+			s = new String(buf, start, close - start, LATIN1);
+		}
+		i = close + 1;
+		skipWhitespace();
+		return s;
+	}
+	
+	private String commonValue(int start, int len) {
+		for (int v = 0; v < COMMON_VALUES.length; ++v) {
+			byte[] b = COMMON_VALUE_BYTES[v];
+			if (b.length != len)
+				continue;
+			int j = 0;
+			while (j < len && b[j] == buf[start + j]) {
+				++j;
+			}
+			if (j == len)
+				return COMMON_VALUES[v];
+		}
+		return new String(buf, start, len, LATIN1);
+	}
+	
+	// Handles escapes and UTF-8 sequences in [start, close)
+	private String decodeString(int start, int close) throws JSONParserException {
+		StringBuilder sb = new StringBuilder();
+		int run = start;
+		int j = start;
+		while (j < close) {
+			if (buf[j] != '\\') {
+				++j;
+				continue;
+			}
+			sb.append(new String(buf, run, j - run, UTF8));
+			char ch = (char)buf[j + 1];
+			j += 2;
+			switch (ch) {
+			case 'n': ch = '\n'; break;
+			case 't': ch = '\t'; break;
+			case 'r': ch = '\r'; break;
+			case 'f': ch = '\f'; break;
+			case 'b': ch = '\b'; break;
+			case 'u':
+				if (j + 4 > close)
+					throw new JSONParserException("Bad \\u escape: " + text(j - 2, close));
+				ch = (char)((RegisterValues.parseHexChar((char)buf[j]) << 12) |
+						    (RegisterValues.parseHexChar((char)buf[j + 1]) << 8) |
+						    (RegisterValues.parseHexChar((char)buf[j + 2]) << 4) |
+						    RegisterValues.parseHexChar((char)buf[j + 3]));
+				j += 4;
+				break;
+			default: break;
+			}
+			sb.append(ch);
+			run = j;
+		}
+		sb.append(new String(buf, run, close - run, UTF8));
+		return sb.toString();
+	}
+	
+	private boolean isNumberStart() {
+		if (i >= end)
+			return false;
+		byte b = buf[i];
+		return (b >= '0' && b <= '9') || b == '-' || b == '+';
+	}
+	
+	private long parseLong() throws JSONParserException {
+		// TODO handle floats, maybe BigInteger/BigDecimal
+		int start = i;
+		byte ch = consumeByte();
+		int sign = 1;
+		if (ch == '+') {
+			ch = consumeByte();
+		} else if (ch == '-') {
+			sign = -1;
+			ch = consumeByte();
+		}
+		if (ch < '0' || ch > '9')
+			throw new JSONParserException("Found '" + (char)ch + "', expected digit");
+		long v = 0;
+		for (;;) {
+			if (v > Long.MAX_VALUE/10)
+				throw new JSONParserException("Long value out of bounds at '" + text(start, end) + "'");
+			v *= 10;
+			long newV = v + sign*(ch - '0');
+			// check for overflow
+			if (sign < 0 ? newV > v : newV < v)
+				throw new JSONParserException("Long value out of bounds at '" + text(start, end) + "'");
+			v = newV;
+			if (i >= end || buf[i] < '0' || buf[i] > '9') {
+				skipWhitespace();
+				return v;
+			}
+			ch = buf[i];
+			++i;
+		}
+	}
+	
+	private void consume(char ch) throws JSONParserException {
+		if (i >= end)
+			throw new JSONParserException("End of line, expected '" + ch + "'");
+		if (buf[i] != ch)
+			throw new JSONParserException("Expected '" + ch + "', got '" + (char)buf[i] + "'");
+		++i;
+	}
+	
+	private void consumeToken(byte[] token) throws JSONParserException {
+		int start = i;
+		for (int j = 0; j < token.length; ++j) {
+			if (i >= end || buf[i] != token[j])
+				throw new JSONParserException("Expected '" + new String(token, LATIN1) +
+						"', found '" + text(start, end) + "'");
+			++i;
+		}
+		skipWhitespace();
+	}
+	
+	private void consumeToken(char ch) throws JSONParserException {
+		consume(ch);
+		skipWhitespace();
+	}
+	
+	private boolean isChar(char ch) {
+		return i < end && buf[i] == ch;
+	}
+	
+	private byte consumeByte() throws JSONParserException {
+		if (i >= end)
+			throw new JSONParserException("Expected character, found end of line");
+		return buf[i++];
+	}
+	
+	private String text(int from, int to) {
+		return new String(buf, from, to - from, UTF8);
+	}
+	
+	private void push(Object o) {
+		if (sp == stack.length) {
+			Object[] bigger = new Object[sp*2];
+			System.arraycopy(stack, 0, bigger, 0, sp);
+			stack = bigger;
+		}
+		stack[sp++] = o;
+	}
+	
+	// Pops everything above base into a new array
+	private Object[] pop(int base) {
+		Object[] result = new Object[sp - base];
+		System.arraycopy(stack, base, result, 0, result.length);
+		while (sp > base) {
+			stack[--sp] = null;
+		}
+		return result;
+	}
+	
+	private static byte[] ascii(String s) {
+		byte[] b = new byte[s.length()];
+		for (int j = 0; j < b.length; ++j) {
+			b[j] = (byte)s.charAt(j);
+		}
+		return b;
+	}
+	
+	private static final int INITIAL_BUFFER_SIZE = 0x10000;
+	// shared by every object that has none of the ReplyFields
+	private static final int[] NO_FIELDS = new int[ReplyField.ALL.length];
+	private static final int KEY_CACHE_SIZE = 256;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final byte[] TRUE = ascii("true");
+	private static final byte[] FALSE = ascii("false");
+	private static final byte[] NULL = ascii("null");
+	// "type" and "terminated" values we hand out without allocating
+	private static final String[] COMMON_VALUES = { "normal", "mmap" };
+	private static final byte[][] COMMON_VALUE_BYTES = {
+		ascii(COMMON_VALUES[0]), ascii(COMMON_VALUES[1])
+	};
+	
+	private InputStream in;
+	private ByteBuffer  buffer;
+	// buffer.array(); the unconsumed input is [buffer.position(), buffer.limit())
+	private byte[]      buf;
+	private int         lineStart;
+	private int         lineEnd;
+	// parse state for the current line
+	private int         i;
+	private int         end;
+	private boolean     stringIsPlain;
+	private ReplyField  keyField;
+	private Object[]    stack = new Object[64];
+	private int         sp;
+	private byte[][]    keyCacheBytes = new byte[KEY_CACHE_SIZE][];
+	private String[]    keyCacheStrings = new String[KEY_CACHE_SIZE];
+}
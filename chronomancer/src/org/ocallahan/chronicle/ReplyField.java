@@ -0,0 +1,80 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+/**
+ * The small fixed vocabulary of fields that appear in nearly every agent
+ * reply. ReplyDecoder recognizes these keys straight from the input bytes
+ * and stores their numeric values unboxed in the JSONObject, along with
+ * where each field is, so the JSONObject accessors that take a ReplyField
+ * need no string comparison, boxing or scanning.
+ */
+public enum ReplyField {
+	ID("id"),
+	TSTAMP("TStamp"),
+	START("start"),
+	LENGTH("length"),
+	BYTES("bytes"),
+	TYPE("type"),
+	TERMINATED("terminated"),
+	// The length of the binary payload that follows the line; see ReplyDecoder
+	PAYLOAD("payload");
+	
+	ReplyField(String name) {
+		this.name = name;
+		this.bytes = new byte[name.length()];
+		for (int i = 0; i < bytes.length; ++i) {
+			bytes[i] = (byte)name.charAt(i);
+		}
+	}
+	
+	/**
+	 * @return the field name; a literal, so it's already interned
+	 */
+	public String getName() { return name; }
+	
+	/**
+	 * @return the field whose name is the given ASCII bytes, or null
+	 */
+	static ReplyField match(byte[] buf, int offset, int length) {
+		ReplyField f;
+		switch (length) {
+		case 2: f = ID; break;
+		case 4: f = TYPE; break;
+		case 5: f = buf[offset] == 's' ? START : BYTES; break;
+		case 6: f = buf[offset] == 'T' ? TSTAMP : LENGTH; break;
+		case 7: f = PAYLOAD; break;
+		case 10: f = TERMINATED; break;
+		default: return null;
+		}
+		byte[] b = f.bytes;
+		for (int i = 0; i < length; ++i) {
+			if (buf[offset + i] != b[i])
+				return null;
+		}
+		return f;
+	}
+	
+	static final ReplyField[] ALL = values();
+	
+	private String name;
+	private byte[] bytes;
+}
@@ -0,0 +1,175 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Remembers the replies to queries whose answers can't change. A trace is
+ * immutable, so commands like readMem are pure functions of their
+ * parameters; when a query is sent with the same command and parameters as
+ * one that completed earlier, the Session replays the earlier replies
+ * instead of asking the agent again.
+ * 
+ * Entries are keyed by the query text minus its id and priority. Queries
+ * that were cancelled, failed, or got a message from the agent are not
+ * cached. The cache holds replies up to a given number of bytes, as
+ * estimated by JSONObject.getRetainedSize, and evicts the least recently
+ * used queries first. A query whose replies would take more than an eighth
+ * of that isn't cached, so one huge read can't flush everything else.
+ * The PageCache and LocationCache keep their own readMem and getLocation
+ * answers, so their queries bypass this cache.
+ * 
+ * All methods can be called on any thread.
+ */
+public class ResultCache {
+	ResultCache() {
+		for (String cmd : DEFAULT_COMMANDS) {
+			enabled.add(cmd);
+		}
+	}
+	
+	/**
+	 * Commands that are cached unless disabled with setEnabled.
+	 */
+	public static final String[] DEFAULT_COMMANDS = {
+		"readMem", "readReg", "findSourceInfo", "findContainingFunction",
+		"lookupGlobalFunctions", "getLocation", "getParameters", "getLocals"
+	};
+	
+	/**
+	 * The default capacity, in bytes.
+	 */
+	public static final long DEFAULT_CAPACITY = 0x1000000;
+	
+	synchronized public boolean isEnabled(String cmd) {
+		return enabled.contains(cmd);
+	}
+	
+	/**
+	 * Turns caching on or off for one command. Only enable this for
+	 * commands whose replies depend on nothing but the query's parameters.
+	 * Disabling a command doesn't drop what is already cached, but it isn't
+	 * used.
+	 */
+	synchronized public void setEnabled(String cmd, boolean enable) {
+		if (enable) {
+			enabled.add(cmd);
+		} else {
+			enabled.remove(cmd);
+		}
+	}
+	
+	/**
+	 * @param bytes the most bytes of replies to keep; zero disables caching
+	 * altogether
+	 */
+	synchronized public void setCapacity(long bytes) {
+		capacity = bytes;
+		evict();
+	}
+	
+	synchronized public void clear() {
+		entries.clear();
+		size = 0;
+	}
+	
+	synchronized public long getHits() { return hits; }
+	synchronized public long getMisses() { return misses; }
+	synchronized public long getEvictions() { return evictions; }
+	/**
+	 * @return the estimated number of bytes held
+	 */
+	synchronized public long getSize() { return size; }
+	
+	@Override
+	synchronized public String toString() {
+		return "ResultCache: " + entries.size() + " queries, " + size +
+		    " bytes, " + hits + " hits, " + misses + " misses, " +
+		    evictions + " evictions";
+	}
+	
+	/**
+	 * @return the replies to replay, ending with the one that terminated
+	 * the query, or null on a miss. Don't modify the list.
+	 */
+	synchronized List<JSONObject> get(String key) {
+		Entry e = entries.get(key);
+		if (e == null) {
+			++misses;
+			return null;
+		}
+		++hits;
+		return e.replies;
+	}
+	
+	/**
+	 * @param replies all the replies to the query, ending with the one that
+	 * terminated it normally. The list must not be modified later.
+	 */
+	synchronized void put(String key, List<JSONObject> replies) {
+		long bytes = 0;
+		for (JSONObject r : replies) {
+			bytes += r.getRetainedSize();
+		}
+		if (bytes > capacity/8)
+			return;
+		Entry old = entries.put(key, new Entry(replies, bytes));
+		if (old != null) {
+			size -= old.size;
+		}
+		size += bytes;
+		evict();
+	}
+	
+	// Called with our lock held.
+	private void evict() {
+		Iterator<Entry> iter = entries.values().iterator();
+		while (size > capacity && iter.hasNext()) {
+			size -= iter.next().size;
+			iter.remove();
+			++evictions;
+		}
+	}
+	
+	private static class Entry {
+		Entry(List<JSONObject> replies, long size) {
+			this.replies = replies;
+			this.size = size;
+		}
+		List<JSONObject> replies;
+		long             size;
+	}
+	
+	private HashSet<String> enabled = new HashSet<String>();
+	// In least recently used order
+	private LinkedHashMap<String,Entry> entries =
+		new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	// in bytes
+	private long size = 0;
+	private long capacity = DEFAULT_CAPACITY;
+	private long hits;
+	private long misses;
+	private long evictions;
+}
@@ -29,12 +29,12 @@ public class ScanEnterSPQuery extends ScanQuery {
 
     @Override
     void handleResult(JSONObject object) throws JSONParserException {
-    	String type = object.getString("type");
+    	String type = object.getString(ReplyField.TYPE);
     	if (type != null && type.equals("normal")) {
-    		long start = object.getLongRequired("start");
-    		long end = object.getLongRequired("length") + start;
+    		long start = object.getLongRequired(ReplyField.START);
+    		long end = object.getLongRequired(ReplyField.LENGTH) + start;
     		listener.notifyEnterSPResult(this,
-    				object.getLongRequired("TStamp"), start, end);
+    				object.getLongRequired(ReplyField.TSTAMP), start, end);
     	} else {
     		super.handleResult(object);
     	}
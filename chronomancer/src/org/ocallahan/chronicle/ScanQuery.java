@@ -54,12 +54,12 @@ public abstract class ScanQuery extends Query {
     
     @Override
     void handleResult(JSONObject object) throws JSONParserException {
-    	String type = object.getString("type");
+    	String type = object.getString(ReplyField.TYPE);
     	if (type != null && type.equals("mmap")) {
-    		long start = object.getLongRequired("start");
-    		long end = object.getLongRequired("length") + start;
+    		long start = object.getLongRequired(ReplyField.START);
+    		long end = object.getLongRequired(ReplyField.LENGTH) + start;
     		getListener().notifyMMapResult(this,
-    				object.getLongRequired("TStamp"),
+    				object.getLongRequired(ReplyField.TSTAMP),
     				start, end, new MMapInfo(object));
     	}
     }
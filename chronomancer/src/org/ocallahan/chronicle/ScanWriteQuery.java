@@ -25,30 +25,28 @@ public class ScanWriteQuery extends ScanQuery {
             MemRange[] ranges, Termination termination, Listener listener) {
     	super(session, beginTStamp, endTStamp, "MEM_WRITE", ranges, termination);
     	this.listener = listener;
+    	acceptsPayload = true;
 	}
 
     public static byte[] parseBytes(String s) throws JSONParserException {
-    	int len = s.length();
-    	if ((len & 1) != 0)
-    		return parseBytes("0" + s);
-    	byte[] result = new byte[len/2];
-    	for (int i = 0; i < result.length; ++i) {
-    		result[i] = (byte)
-    			(RegisterValues.parseHexChar(s.charAt(2*i))*16 +
-    			 RegisterValues.parseHexChar(s.charAt(2*i + 1)));
-    	}
-    	return result;
+    	return HexDecoder.decode(s);
     }
     
     @Override
     void handleResult(JSONObject object) throws JSONParserException {
-    	String type = object.getString("type");
+    	String type = object.getString(ReplyField.TYPE);
     	if (type != null && type.equals("normal")) {
-    		long start = object.getLongRequired("start");
-    		long end = object.getLongRequired("length") + start;
-    		byte[] bytes = parseBytes(object.getStringRequired("bytes"));
+    		long start = object.getLongRequired(ReplyField.START);
+    		long end = object.getLongRequired(ReplyField.LENGTH) + start;
+    		byte[] bytes = object.getPayload();
+    		if (bytes == null) {
+    			bytes = parseBytes(object.getStringRequired(ReplyField.BYTES));
+    		} else if (bytes.length != end - start) {
+    			throw new JSONParserException("Expected " + (end - start) +
+    					" payload bytes, got " + bytes.length);
+    		}
     		listener.notifyWriteResult(this,
-    				object.getLongRequired("TStamp"), start, end, bytes);
+    				object.getLongRequired(ReplyField.TSTAMP), start, end, bytes);
     	} else {
     		super.handleResult(object);
     	}
@@ -0,0 +1,85 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Runs one query's reply messages on the Session's worker pool, in order
+ * and one at a time. The lane is scheduled on the pool when its first
+ * message arrives and drains everything queued before giving up its turn,
+ * so handleResult and handleDone for the query are never concurrent.
+ */
+class SerialLane implements Runnable {
+	SerialLane(Session session, Query query, ThreadPoolExecutor pool) {
+		this.session = session;
+		this.query = query;
+		this.pool = pool;
+	}
+	
+	// Called on the SessionThread.
+	void post(JSONObject message) {
+		synchronized (this) {
+			pending.add(message);
+			if (scheduled)
+				return;
+			scheduled = true;
+		}
+		try {
+			pool.execute(this);
+		} catch (RejectedExecutionException ex) {
+			// The pool has been shut down; we weren't running, so it's
+			// safe to drain here
+			run();
+		}
+	}
+	
+	public void run() {
+		while (true) {
+			ArrayList<JSONObject> messages;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					scheduled = false;
+					break;
+				}
+				messages = pending;
+				pending = new ArrayList<JSONObject>();
+			}
+			for (JSONObject m : messages) {
+				session.handleQueryMessage(query, m);
+			}
+		}
+		// Like the SessionThread, send what the callbacks issued once
+		// there's nothing else to do
+		if (pool.getQueue().isEmpty()) {
+			session.flushPending();
+		}
+	}
+	
+	private Session               session;
+	private Query                 query;
+	private ThreadPoolExecutor    pool;
+	// Guarded by our lock
+	private ArrayList<JSONObject> pending = new ArrayList<JSONObject>();
+	private boolean               scheduled;
+}
@@ -20,16 +20,22 @@ Contributor(s): robert@ocallahan.org
 
 package org.ocallahan.chronicle;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A Chronicle query session
@@ -41,77 +47,312 @@ import java.util.HashMap;
  * on the SessionThread. (Additional activities can also be scheduled on the
  * SessionThread using Session.runOnThread().) The goal for complex cascades
  * of queries to run without blocking or being blocked by the UI thread.
+ * 
+ * Outgoing queries are coalesced: they are buffered and written to the agent
+ * in one go at the end of each SessionThread batch, when flushPending() is
+ * called, when the buffer gets large, or after a short delay.
+ * 
+ * Sending a query never waits for reply processing: messages reach the
+ * SessionThread through a lock-free queue, IDs are allocated atomically,
+ * the QueryTable needs no global lock and the output has its own lock.
+ * 
+ * Optionally (see setDispatchThreads) query callbacks can run on a worker
+ * pool instead of the SessionThread, serialized per query.
+ * 
+ * Each query has a Query.Priority. Pending output is written, and work
+ * waiting for the SessionThread is run, most urgent first.
+ * 
+ * Each query also belongs to a QueryScope, which can be closed to cancel the
+ * query and everything its callbacks started.
+ * 
+ * Replies to queries with deterministic results are kept in a ResultCache;
+ * a repeated query is answered from there without going to the agent.
+ * Memory read through MemoryDataSource is also kept, page by page, in a
+ * PageCache that knows over which timestamps each page stays unchanged.
+ * Ranges whose writes are navigated repeatedly get a WriteHistory (see
+ * WriteHistoryCache). The history of the address space is gathered once,
+ * when we start, into a MemoryMapIndex. The functions the agent finds are
+ * kept in a FunctionMap.
+ * 
+ * A session can talk to several agent processes on the same trace (see
+ * SessionPool). Each has its own Channel, with its own ReadThread, output
+ * buffer and FlushThread, but they share the IDs, the QueryTable and the
+ * SessionThread, so to everyone else they look like one agent. Each query is
+ * sent to the channel with the fewest scans in progress.
+ * 
+ * Agents that say so in their info reply can send bulk data (memory
+ * contents, register values) as raw bytes in a binary frame after the
+ * reply line, instead of as hex. Queries that understand this ask for it
+ * with "binaryFrames":true; see JSONObject.getPayload().
  */
 public class Session {
-	private BufferedReader in;
-	private Writer out;
-    private HashMap<Integer,Query> queries = new HashMap<Integer,Query>();
+	private Channel[] channels;
+    private QueryTable queries = new QueryTable();
     private Listener listener;
-    private boolean isClosed = false;
+    private volatile boolean isClosed = false;
     private TypeManager typeManager = new TypeManager(this);
-    private ArrayList<Runnable> pendingRunnables = new ArrayList<Runnable>();
+    private ResultCache resultCache = new ResultCache();
+    private PageCache pageCache = new PageCache(this);
+    private LocationCache locationCache = new LocationCache(this);
+    private WriteHistoryCache writeHistoryCache = new WriteHistoryCache(this);
+    private CallFrameCache callFrameCache = new CallFrameCache(this);
+    private MemoryMapIndex memoryMapIndex = new MemoryMapIndex(this);
+    private FunctionMap functionMap = new FunctionMap(this);
+    private volatile CallIndex callIndex;
+    // Parsed messages and Runnables for the SessionThread
+    private WorkQueue work = new WorkQueue();
+    // Runs query callbacks if non-null; see setDispatchThreads
+    private volatile ThreadPoolExecutor dispatchPool = null;
     private long endTStamp;
     private Architecture architecture;
+    private volatile int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+    private volatile long flushDelay = DEFAULT_FLUSH_DELAY;
+    private volatile boolean traceMessages = true;
+    private volatile boolean allowBinaryFrames = true;
+    private ThreadLocal<Query.Priority> currentPriority =
+    	new ThreadLocal<Query.Priority>();
+    private QueryScope rootScope = new QueryScope(this, null);
+    private ThreadLocal<QueryScope> currentScope = new ThreadLocal<QueryScope>();
+    
+    private static final Query.Priority[] PRIORITIES = Query.Priority.values();
+    
+    /**
+     * Pending output is written as soon as it reaches this many characters.
+     */
+    public static final int DEFAULT_FLUSH_THRESHOLD = 0x10000;
+    /**
+     * Pending output is written at most this many milliseconds after the
+     * first query of a burst was sent.
+     */
+    public static final long DEFAULT_FLUSH_DELAY = 2;
+    
+    // Commands that keep an agent busy for a long time
+    private static final HashSet<String> scanCommands = new HashSet<String>();
+    static {
+    	scanCommands.add("scan");
+    	scanCommands.add("scanCount");
+    	scanCommands.add("findSPGreaterThan");
+    }
+    
+    /**
+     * The connection to one agent process.
+     */
+    class Channel {
+    	Channel(int index, InputStream inStream, OutputStream outStream)
+    	        throws UnsupportedEncodingException {
+    		this.index = index;
+    		in = new ReplyDecoder(inStream);
+    		out = new OutputStreamWriter(outStream, "UTF-8");
+    		for (int i = 0; i < pendingOutput.length; ++i) {
+    			pendingOutput[i] = new StringBuilder();
+    		}
+    	}
+    	
+    	String getThreadName(String name) {
+    		return channels.length == 1 ? name : name + " " + index;
+    	}
+    	
+    	int                 index;
+    	ReplyDecoder        in;
+    	Writer              out;
+    	// Set when the agent's info reply says it can send binary frames
+    	volatile boolean    binaryFrames;
+    	// Queries sent on this channel that haven't finished
+    	AtomicInteger       load = new AtomicInteger();
+    	AtomicInteger       scanLoad = new AtomicInteger();
+    	// Guards the output and everything below. Never held while calling out.
+    	Object              outputLock = new Object();
+    	// Queries sent but not yet written to the agent, by priority
+    	StringBuilder[]     pendingOutput = new StringBuilder[PRIORITIES.length];
+    	int                 pendingLength = 0;
+    }
 	
 	class ReadThread extends Thread {
-		ReadThread() {
-			super("Chronicle Session Reader");
+		ReadThread(Channel channel) {
+			super(channel.getThreadName("Chronicle Session Reader"));
+			this.channel = channel;
 		}
 		public void run() {
-			String s;
+			ReplyDecoder in = channel.in;
 			try {
-				while ((s = in.readLine()) != null) {
+				while (in.nextLine()) {
 					try {
-						handleMessage(s);
+						handleMessage(in);
+					} catch (IOException e) {
+						throw e;
 					} catch (Throwable t) {
 						t.printStackTrace();
 					}
-					synchronized (Session.this) {
-						if (isClosed)
-							break;
-					}
-				}
-			} catch (IOException e) {
-				synchronized (Session.this) {
 					if (isClosed)
-						return;
+						break;
 				}
+			} catch (IOException e) {
+				if (isClosed)
+					return;
 				listener.notifyMessage(Severity.FATAL,
 				    "I/O error reading from agent", null);
 			}
 		}
+		private Channel channel;
 	}
 	
 	class SessionThread extends Thread {
 		SessionThread() {
 			super("Chronicle Session");
 		}
+		public void run() {
+			while (!isClosed) {
+				// Sort everything that has arrived by priority, then run the
+				// most urgent item
+				Object item;
+				while ((item = work.poll()) != null) {
+					Query.Priority p;
+					if (item instanceof JSONObject) {
+						p = getMessagePriority((JSONObject)item);
+					} else {
+						p = work.getPolledPriority();
+					}
+					ready.get(p.ordinal()).add(item);
+				}
+				int p = 0;
+				while (p < ready.size() && ready.get(p).isEmpty()) {
+					++p;
+				}
+				if (p == ready.size()) {
+					// Everything the batch's callbacks sent goes out as one
+					// write
+					flushPending();
+					work.await();
+					continue;
+				}
+				item = ready.get(p).poll();
+				if (item instanceof JSONObject) {
+					handleParsedMessage((JSONObject)item);
+				} else {
+					Query.Priority old = setCurrentPriority(PRIORITIES[p]);
+					try {
+						((Runnable)item).run();
+					} finally {
+						setCurrentPriority(old);
+					}
+				}
+			}
+		}
+		
+		// Items waiting to run, by priority
+		private ArrayList<ArrayDeque<Object>> ready =
+			new ArrayList<ArrayDeque<Object>>();
+		{
+			for (int i = 0; i < PRIORITIES.length; ++i) {
+				ready.add(new ArrayDeque<Object>());
+			}
+		}
+	}
+	
+	/**
+	 * Writes coalesced query output once the flush delay has expired.
+	 */
+	class FlushThread extends Thread {
+		FlushThread(Channel channel) {
+			super(channel.getThreadName("Chronicle Session Flusher"));
+			setDaemon(true);
+			this.channel = channel;
+		}
 		public void run() {
 			while (true) {
-				ArrayList<Runnable> runnables;
-				synchronized (Session.this) {
-					if (isClosed)
-						break;
-					runnables = pendingRunnables;
-					pendingRunnables = new ArrayList<Runnable>();
-					if (runnables.isEmpty()) {
+				long delay;
+				synchronized (channel.outputLock) {
+					while (!isClosed && channel.pendingLength == 0) {
 						try {
-							Session.this.wait();
+							channel.outputLock.wait();
 						} catch (InterruptedException e) {
-							break;
+							return;
 						}
 					}
+					if (isClosed)
+						return;
+					delay = flushDelay;
 				}
-				for (Runnable r : runnables) {
-					r.run();
+				if (delay > 0) {
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						return;
+					}
 				}
+				flushPending(channel);
 			}
 		}
+		private Channel channel;
 	}
 	
-	synchronized public void runOnThread(Runnable r) {
-		pendingRunnables.add(r);
-		notifyAll();
+	/**
+	 * Runs r on the SessionThread, with the calling thread's current
+	 * priority (so queries it creates get that priority, and it runs after
+	 * anything more urgent that's waiting) and in its current scope (r
+	 * doesn't run at all if the scope is closed first).
+	 */
+	public void runOnThread(Runnable r) {
+		QueryScope scope = getCurrentScope();
+		if (scope != rootScope) {
+			r = scope.wrap(r);
+		}
+		work.offer(r, getCurrentPriority());
+	}
+	
+	/**
+	 * @return the priority queries created on this thread will get
+	 */
+	public Query.Priority getCurrentPriority() {
+		Query.Priority p = currentPriority.get();
+		return p == null ? Query.Priority.VISIBLE : p;
+	}
+	
+	/**
+	 * Sets the priority for queries created on this thread. While query
+	 * callbacks run, the current priority is the query's priority.
+	 * @return the previous priority, to be restored when done
+	 */
+	public Query.Priority setCurrentPriority(Query.Priority priority) {
+		Query.Priority old = getCurrentPriority();
+		currentPriority.set(priority);
+		return old;
+	}
+	
+	/**
+	 * @return the scope that can never be closed. Queries that aren't
+	 * created in some other scope belong to it.
+	 */
+	public QueryScope getRootScope() {
+		return rootScope;
+	}
+	
+	/**
+	 * @return the scope queries created on this thread will belong to
+	 */
+	public QueryScope getCurrentScope() {
+		QueryScope s = currentScope.get();
+		return s == null ? rootScope : s;
+	}
+	
+	/**
+	 * Sets the scope for queries created on this thread. While query
+	 * callbacks run, the current scope is the query's scope.
+	 * @return the previous scope, to be restored when done
+	 */
+	public QueryScope setCurrentScope(QueryScope scope) {
+		if (scope.getSession() != this)
+			throw new IllegalArgumentException("Scope belongs to another session");
+		QueryScope old = getCurrentScope();
+		currentScope.set(scope);
+		return old;
+	}
+	
+	/**
+	 * @return a new child of the current scope
+	 */
+	public QueryScope createScope() {
+		return getCurrentScope().createChild();
 	}
 	
 	public enum Severity { INFO, WARNING, ERROR, FATAL }
@@ -125,32 +366,107 @@ public class Session {
 	}
 	
     public Session(InputStream inStream, OutputStream outStream, Listener listener) {
+    	this(new InputStream[] { inStream }, new OutputStream[] { outStream },
+    	     listener);
+    }
+    
+    /**
+     * Talks to several agent processes on the same trace.
+     * @param inStreams the agents' outputs
+     * @param outStreams the agents' inputs, in the same order
+     */
+    public Session(InputStream[] inStreams, OutputStream[] outStreams,
+    		Listener listener) {
     	this.listener = listener;
+    	channels = new Channel[inStreams.length];
     	try {
-    		this.in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
-    		this.out = new OutputStreamWriter(outStream, "UTF-8");
+    		for (int i = 0; i < channels.length; ++i) {
+    			channels[i] = new Channel(i, inStreams[i], outStreams[i]);
+    		}
     	} catch (UnsupportedEncodingException ex) {
     		listener.notifyMessage(Severity.FATAL, "Unsupported UTF8??", null);
     	}
     	
     	endTStamp = 0;
-    	InfoQuery q = new InfoQuery(this, new InfoQuery.Listener() {
-    		public void notifyDone(InfoQuery q, boolean complete,
-    				long endTStamp, Architecture architecture) {
-    			Session.this.endTStamp = endTStamp;
-    			Session.this.architecture = architecture;
-    			Session.this.listener.notifyStarted();
-    		}
-    	});
-    	q.send();
+    	// Ask every agent what it supports; the first one also tells us
+    	// about the trace
+    	for (final Channel c : channels) {
+    		InfoQuery q = new InfoQuery(this, new InfoQuery.Listener() {
+    			public void notifyDone(InfoQuery q, boolean complete,
+    					long endTStamp, Architecture architecture) {
+    				c.binaryFrames = q.supportsBinaryFrames();
+    				if (c.index != 0)
+    					return;
+    				Session.this.endTStamp = endTStamp;
+    				Session.this.architecture = architecture;
+    				memoryMapIndex.build();
+    				Session.this.listener.notifyStarted();
+    			}
+    		});
+    		q.channel = c;
+    		q.send();
+    	}
 
-    	(new ReadThread()).start();
-    	(new SessionThread()).start();
+    	Thread sessionThread = new SessionThread();
+    	work.setConsumer(sessionThread);
+    	for (Channel c : channels) {
+    		(new ReadThread(c)).start();
+    	}
+    	sessionThread.start();
+    	for (Channel c : channels) {
+    		(new FlushThread(c)).start();
+    	}
+    }
+    
+    /**
+     * @return the number of agent processes this session talks to
+     */
+    public int getAgentCount() {
+    	return channels.length;
     }
 
     public TypeManager getTypeManager() {
     	return typeManager;
     }
+    
+    public ResultCache getResultCache() {
+    	return resultCache;
+    }
+    
+    public PageCache getPageCache() {
+    	return pageCache;
+    }
+    
+    public LocationCache getLocationCache() {
+    	return locationCache;
+    }
+    
+    public WriteHistoryCache getWriteHistoryCache() {
+    	return writeHistoryCache;
+    }
+    
+    public CallFrameCache getCallFrameCache() {
+    	return callFrameCache;
+    }
+    
+    public MemoryMapIndex getMemoryMapIndex() {
+    	return memoryMapIndex;
+    }
+    
+    public FunctionMap getFunctionMap() {
+    	return functionMap;
+    }
+    
+    /**
+     * @return the index of calls, if there is one (see CallIndex.open)
+     */
+    public CallIndex getCallIndex() {
+    	return callIndex;
+    }
+    
+    void setCallIndex(CallIndex index) {
+    	callIndex = index;
+    }
 
     private static HashMap<String,Severity> severityNames =
     	new HashMap<String,Severity>();
@@ -161,17 +477,19 @@ public class Session {
     	severityNames.put("fatal", Severity.FATAL);
     }
     
-    // runs on ReadThread. Parses the message and hands it to the SessionThread.
-	void handleMessage(String s) {
-		listener.notifyReceived(s);
-		JSONParser parser = new JSONParser(s);
+    // runs on ReadThread. Parses the current line of the decoder and hands
+    // it to the SessionThread.
+	void handleMessage(ReplyDecoder in) throws IOException {
+		if (traceMessages) {
+			listener.notifyReceived(in.getLineString());
+		}
 		try {
-    		final JSONObject obj = parser.parseObject();
-    		runOnThread(new Runnable() {
-    			public void run() {
-    				handleParsedMessage(obj);
-    			}
-    		});
+			JSONObject obj = in.parseLine();
+			long payloadLength = obj.getLongOptional(ReplyField.PAYLOAD, -1);
+			if (payloadLength >= 0) {
+				obj.setPayload(in.readPayload(payloadLength));
+			}
+    		work.offer(obj, null);
 		} catch (JSONParserException ex) {
 			listener.notifyMessage(Severity.ERROR,
 					"Failed to parse response: " + ex.getMessage(),
@@ -179,16 +497,70 @@ public class Session {
 		}
 	}
 	
+	// runs on SessionThread
+	private Query.Priority getMessagePriority(JSONObject obj) {
+		int id = (int)obj.getLongOptional(ReplyField.ID, 0);
+		Query query = id == 0 ? null : queries.get(id);
+		return query == null ? Query.Priority.VISIBLE : query.getPriority();
+	}
+	
 	// runs on SessionThread
 	void handleParsedMessage(JSONObject obj) {
 		Query query = null;
-		try {
-			Integer id = obj.getInt("id");
-			if (id != null) {
-				synchronized (this) {
-					query = queries.get(id);
-				}
+		int id = (int)obj.getLongOptional(ReplyField.ID, 0);
+		if (id != 0) {
+			query = queries.get(id);
+		}
+		if (query != null && query.cacheKey != null) {
+			recordReply(query, obj);
+		}
+		dispatch(query, obj);
+	}
+	
+	// runs on SessionThread
+	private void recordReply(Query query, JSONObject obj) {
+		if (obj.hasValue("message")) {
+			// Might be transient, and wouldn't be reported again
+			query.cacheKey = null;
+			query.recordedReplies = null;
+			return;
+		}
+		query.recordedReplies.add(obj);
+		String terminated = obj.getString(ReplyField.TERMINATED);
+		if (terminated == null)
+			return;
+		if (terminated.equals("normal")) {
+			resultCache.put(query.cacheKey, query.recordedReplies);
+		}
+		query.cacheKey = null;
+		query.recordedReplies = null;
+	}
+	
+	// runs on SessionThread
+	private void dispatch(Query query, JSONObject obj) {
+		ThreadPoolExecutor pool = dispatchPool;
+		if (query != null && pool != null && !query.isPinnedToSessionThread()) {
+			// Only this thread creates lanes
+			if (query.lane == null) {
+				query.lane = new SerialLane(this, query, pool);
 			}
+			query.lane.post(obj);
+			return;
+		}
+		handleQueryMessage(query, obj);
+	}
+	
+	// runs on SessionThread, or in the query's SerialLane
+	void handleQueryMessage(Query query, JSONObject obj) {
+		// queries created by the callbacks inherit the query's priority
+		// and scope
+		Query.Priority oldPriority = null;
+		QueryScope oldScope = null;
+		if (query != null) {
+			oldPriority = setCurrentPriority(query.getPriority());
+			oldScope = setCurrentScope(query.getScope());
+		}
+		try {
 			String message = obj.getString("message");
 			boolean fatal = false;
 			if (message != null) {
@@ -201,14 +573,16 @@ public class Session {
 			}
 			
 			if (query != null) {
-				query.handleResult(obj);
-				String terminated = obj.getString("terminated");
+				if (!query.getScope().isClosed()) {
+					query.handleResult(obj);
+				}
+				String terminated = obj.getString(ReplyField.TERMINATED);
 				if (terminated != null) {
-	                query.handleDone(terminated.equals("normal"));
+					// whoever removes the query finishes it
+					if (queries.remove(query.getID()) != null) {
+						finishQuery(query, terminated.equals("normal"));
+					}
 	                query = null;
-	                synchronized (this) {
-	                	queries.remove(id);
-	                }
 				}
 			}
 			
@@ -219,86 +593,350 @@ public class Session {
 			listener.notifyMessage(Severity.ERROR,
 					"Failed to parse response: " + ex.getMessage(),
 					query);
-			if (query != null) {
-				query.handleDone(false);
+			if (query != null && queries.remove(query.getID()) != null) {
+				finishQuery(query, false);
+			}
+		} finally {
+			if (oldPriority != null) {
+				setCurrentPriority(oldPriority);
+				setCurrentScope(oldScope);
+			}
+		}
+	}
+	
+	// Called by whoever removed the query from the table
+	private void finishQuery(Query query, boolean complete) {
+		Channel c = query.channel;
+		if (c != null) {
+			c.load.decrementAndGet();
+			if (query.isScan) {
+				c.scanLoad.decrementAndGet();
 			}
 		}
+		QueryScope scope = query.getScope();
+		scope.remove(query);
+		if (!scope.isClosed()) {
+			query.handleDone(complete);
+		}
 	}
 
 	public void close() {
-		HashMap<Integer,Query> qs;
 		synchronized (this) {
 			if (isClosed)
 				return;
-
 			isClosed = true;
-			try {
-				in.close();
-				out.close();
-			} catch (IOException e) {
+		}
+		for (Channel c : channels) {
+			synchronized (c.outputLock) {
+				try {
+					writePending(c);
+					c.in.close();
+					c.out.close();
+				} catch (IOException e) {
+				}
+				c.outputLock.notifyAll();
 			}
-			qs = queries;
-			queries = null;
-			notifyAll();
+		}
+		work.wake();
+		ThreadPoolExecutor pool = dispatchPool;
+		if (pool != null) {
+			pool.shutdown();
 		}
 		
-		for (Query q : qs.values()) {
-			q.handleDone(false);
+		for (Query q : queries.values()) {
+			if (queries.remove(q.getID()) != null) {
+				finishQuery(q, false);
+			}
 		}
     }
     
-    private int lastId = 0;
-    synchronized int allocateID() { return ++lastId; }
+    private AtomicInteger lastId = new AtomicInteger();
+    int allocateID() { return lastId.incrementAndGet(); }
 
     /**
      * @param id
      */
     void cancel(int id) {
-    	Query q;
-    	synchronized (this) {
-    		q = queries.get(id);
-    		if (q == null || isClosed)
-    			return;
+    	Query q = queries.get(id);
+    	if (q == null || q.isReplay || isClosed)
+    		return;
 
-    		JSONObjectBuilder builder = new JSONObjectBuilder();
-    		builder.append("id", id);
-    		builder.append("cmd", "cancel");
-    		try {
-    			send(builder);
+    	Channel c = q.channel;
+    	boolean withdrawn = false;
+    	synchronized (c.outputLock) {
+    		if (q.withdrawn)
     			return;
-    		} catch (IOException e) {
+    		// If the agent hasn't seen the query yet, just don't send it. A
+    		// cancel would be written ahead of it and do nothing.
+    		String text = q.queuedText;
+    		if (text == null) {
+    			withdrawn = true;
+    		} else {
+    			StringBuilder b = c.pendingOutput[q.getPriority().ordinal()];
+    			int i = b.indexOf(text);
+    			if (i >= 0) {
+    				b.delete(i, i + text.length() + 1);
+    				c.pendingLength -= text.length() + 1;
+    				withdrawn = true;
+    			}
     		}
+    		if (withdrawn) {
+    			q.withdrawn = true;
+    			q.queuedText = null;
+    		}
+    	}
+    	if (withdrawn) {
+    		// Finish it the way the agent's reply would have
+    		work.offer(new JSONObject(new Object[] {
+    				"id", id, "terminated", "cancelled" }), null);
+    		return;
+    	}
+
+    	JSONObjectBuilder builder = new JSONObjectBuilder();
+    	builder.append("id", id);
+    	builder.append("cmd", "cancel");
+    	try {
+    		// The query has been written, so nothing can overtake it.
+    		// Cancelling frees up the agent, so do it first.
+    		send(c, builder, Query.Priority.INTERACTIVE, null);
+    		return;
+    	} catch (IOException e) {
     	}
 		listener.notifyMessage(Severity.ERROR, "I/O error", q);
 	}
     
-    void send(JSONObjectBuilder builder) throws IOException {
+    /**
+     * Queues a message for the agent. The message is written when the
+     * pending output reaches the flush threshold, when the flush delay
+     * expires, or when flushPending() is called. Pending messages are
+     * written in priority order.
+     * @param query the query the message is, if any, so it can be withdrawn
+     * until it has been written
+     */
+    private void send(Channel c, JSONObjectBuilder builder,
+    		Query.Priority priority, Query query) throws IOException {
     	String s = builder.makeString();
-    	listener.notifySending(s);
-    	out.write(s);
-    	out.write('\n');
-    	out.flush();
+    	if (traceMessages) {
+    		listener.notifySending(s);
+    	}
+    	synchronized (c.outputLock) {
+    		if (isClosed)
+    			return;
+    		if (query != null) {
+    			// Cancelled before it got here
+    			if (query.withdrawn)
+    				return;
+    			query.queuedText = s;
+    		}
+    		boolean wasEmpty = c.pendingLength == 0;
+    		StringBuilder b = c.pendingOutput[priority.ordinal()];
+    		b.append(s);
+    		b.append('\n');
+    		c.pendingLength += s.length() + 1;
+    		if (c.pendingLength >= flushThreshold || flushDelay <= 0) {
+    			writePending(c);
+    		} else if (wasEmpty) {
+    			// wake up the FlushThread to start the deadline
+    			c.outputLock.notifyAll();
+    		}
+    	}
+    }
+    
+    // Called with the channel's outputLock held.
+    private static void writePending(Channel c) throws IOException {
+    	if (c.pendingLength == 0)
+    		return;
+    	c.pendingLength = 0;
+    	for (StringBuilder b : c.pendingOutput) {
+    		c.out.append(b);
+    		b.setLength(0);
+    	}
+    	c.out.flush();
+    }
+    
+    /**
+     * Writes all queries sent so far to the agent in a single write. Call
+     * this on any thread at the end of a burst of queries (e.g. after all
+     * views have been told about a new current event) so they don't wait
+     * for the flush delay.
+     */
+    public void flushPending() {
+    	for (Channel c : channels) {
+    		flushPending(c);
+    	}
+    }
+    
+    private void flushPending(Channel c) {
+    	synchronized (c.outputLock) {
+    		if (isClosed)
+    			return;
+    		try {
+    			writePending(c);
+    			return;
+    		} catch (IOException e) {
+    			c.pendingLength = 0;
+    			for (StringBuilder b : c.pendingOutput) {
+    				b.setLength(0);
+    			}
+    		}
+    	}
+		listener.notifyMessage(Severity.ERROR, "I/O error", null);
+    }
+    
+    /**
+     * @param chars pending output is written as soon as it reaches this
+     * many characters
+     */
+    public void setFlushThreshold(int chars) {
+    	flushThreshold = chars;
+    }
+    
+    /**
+     * @param millis pending output is written at most this long after the
+     * first query of a burst was sent; zero or less writes every query
+     * immediately
+     */
+    public void setFlushDelay(long millis) {
+    	flushDelay = millis;
+    	for (Channel c : channels) {
+    		synchronized (c.outputLock) {
+    			c.outputLock.notifyAll();
+    		}
+    	}
+    }
+    
+    /**
+     * @param trace whether to pass every message sent and received to the
+     * listener's notifySending/notifyReceived. Building the received
+     * strings is a significant cost, so turn this off when not logging.
+     */
+    public void setTraceMessages(boolean trace) {
+    	traceMessages = trace;
     }
 
-    void sendQuery(Query query, JSONObjectBuilder builder) {
-    	boolean ioError = false;
-    	synchronized (this) {
-    		if (!isClosed) {
-    			try {
-    				send(builder);
-    				queries.put(query.getID(), query);
-    				return;
-    			} catch (IOException e) {
-    				ioError = true;
+    /**
+     * @param allow whether queries may ask agents that support it for binary
+     * frames. When false everything comes back as JSON, e.g. to compare.
+     */
+    public void setBinaryFrames(boolean allow) {
+    	allowBinaryFrames = allow;
+    }
+
+    /**
+     * @param cacheKey if non-null, the replies may be served from and
+     * recorded into the result cache under this key
+     */
+    void sendQuery(final Query query, JSONObjectBuilder builder, String cacheKey) {
+    	int id = query.getID();
+    	if (cacheKey != null && !isClosed) {
+    		final List<JSONObject> replies = resultCache.get(cacheKey);
+    		if (replies != null) {
+    			// Nothing to cancel on the agent
+    			query.isReplay = true;
+    			queries.put(query);
+    			work.offer(new Runnable() {
+    				public void run() {
+    					for (JSONObject obj : replies) {
+    						dispatch(query, obj);
+    					}
+    				}
+    			}, query.getPriority());
+    			// If we closed meanwhile, make sure someone calls handleDone
+    			if (isClosed && queries.remove(id) != null) {
+    				finishQuery(query, false);
     			}
+    			return;
     		}
+    		query.cacheKey = cacheKey;
+    		query.recordedReplies = new ArrayList<JSONObject>();
     	}
-    	if (ioError) {
-			listener.notifyMessage(Severity.ERROR, "I/O error", query);
+    	if (!isClosed) {
+    		Channel c = chooseChannel(query);
+    		query.channel = c;
+    		if (query.acceptsPayload && c.binaryFrames && allowBinaryFrames) {
+    			builder.append("binaryFrames", true);
+    		}
+    		c.load.incrementAndGet();
+    		if (query.isScan) {
+    			c.scanLoad.incrementAndGet();
+    		}
+    		// The reply can arrive as soon as the query is written, so
+    		// register it first
+    		queries.put(query);
+    		try {
+    			send(c, builder, query.getPriority(), query);
+    			// If we closed meanwhile, make sure someone calls handleDone
+    			if (!isClosed || queries.remove(id) == null)
+    				return;
+    		} catch (IOException e) {
+    			if (queries.remove(id) == null)
+    				return;
+    			listener.notifyMessage(Severity.ERROR, "I/O error", query);
+    		}
     	}
-		query.handleDone(false);
+		finishQuery(query, false);
 	}
     
+    // Sends the query to the agent that is least busy with scans, so scans
+    // run in parallel and other queries avoid waiting behind them
+    private Channel chooseChannel(Query query) {
+    	if (query.channel != null)
+    		return query.channel;
+    	if (channels.length == 1)
+    		return channels[0];
+    	query.isScan = scanCommands.contains(query.getCommand());
+    	Channel best = channels[0];
+    	int bestScans = best.scanLoad.get();
+    	int bestLoad = best.load.get();
+    	for (int i = 1; i < channels.length; ++i) {
+    		Channel c = channels[i];
+    		int scans = c.scanLoad.get();
+    		int load = c.load.get();
+    		if (scans < bestScans || (scans == bestScans && load < bestLoad)) {
+    			best = c;
+    			bestScans = scans;
+    			bestLoad = load;
+    		}
+    	}
+    	return best;
+    }
+    
+    /**
+     * Sets how query callbacks are dispatched. With zero threads (the
+     * default) every callback runs on the SessionThread. Otherwise
+     * callbacks run on a pool of this many worker threads: a query's
+     * results and its handleDone still arrive in order and never
+     * concurrently, but different queries' callbacks may run in parallel.
+     * Queries that rely on running on the SessionThread must call
+     * Query.pinToSessionThread(). Runnables passed to runOnThread() always
+     * run on the SessionThread.
+     */
+    public void setDispatchThreads(int threads) {
+    	ThreadPoolExecutor old;
+    	synchronized (this) {
+    		if (isClosed)
+    			return;
+    		old = dispatchPool;
+    		dispatchPool = null;
+    		if (threads > 0) {
+    			dispatchPool = new ThreadPoolExecutor(threads, threads,
+    					0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+    					new ThreadFactory() {
+    				private int count = 0;
+    				synchronized public Thread newThread(Runnable r) {
+    					Thread t = new Thread(r, "Chronicle Session Worker " + ++count);
+    					t.setDaemon(true);
+    					return t;
+    				}
+    			});
+    		}
+    	}
+    	// Lanes still scheduled on the old pool drain there
+    	if (old != null) {
+    		old.shutdown();
+    	}
+    }
+    
     public boolean isClosed() {
     	return isClosed;
     }
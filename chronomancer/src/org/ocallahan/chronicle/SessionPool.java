@@ -0,0 +1,83 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Runs several agent processes on the same trace, so that long scans can
+ * run in parallel instead of queuing behind each other in one agent. The
+ * Session created by createSession() spreads queries across the agents
+ * but otherwise behaves just like a Session with one agent.
+ */
+public class SessionPool {
+	/**
+	 * Starts the agents.
+	 * @param command the command line that starts one agent
+	 * @param agents how many agents to start
+	 */
+	public SessionPool(String[] command, int agents) throws IOException {
+		if (agents < 1)
+			throw new IllegalArgumentException("Need at least one agent");
+		processes = new Process[agents];
+		ProcessBuilder pb = new ProcessBuilder(command);
+		try {
+			for (int i = 0; i < agents; ++i) {
+				processes[i] = pb.start();
+			}
+		} catch (IOException ex) {
+			destroy();
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Creates the session for the agents. Call once.
+	 */
+	public Session createSession(Session.Listener listener) {
+		InputStream[] ins = new InputStream[processes.length];
+		OutputStream[] outs = new OutputStream[processes.length];
+		for (int i = 0; i < processes.length; ++i) {
+			ins[i] = processes[i].getInputStream();
+			outs[i] = processes[i].getOutputStream();
+		}
+		return new Session(ins, outs, listener);
+	}
+	
+	public int getAgentCount() {
+		return processes.length;
+	}
+	
+	/**
+	 * Kills the agents.
+	 */
+	public void destroy() {
+		for (Process p : processes) {
+			if (p != null) {
+				p.destroy();
+			}
+		}
+	}
+	
+	private Process[] processes;
+}
@@ -54,6 +54,14 @@ public class ShiftDataSource implements IDataSource {
 	public Session getSession() {
 		return source.getSession();
 	}
+	
+	IDataSource getSource() {
+		return source;
+	}
+	
+	int getShift() {
+		return shift;
+	}
 
 	public IDataSource getSourceAtTime(long tStamp) {
 		return new ShiftDataSource(source.getSourceAtTime(tStamp), shift);
@@ -63,18 +71,7 @@ public class ShiftDataSource implements IDataSource {
 		return source.getTStamp();
 	}
 
-	public void read(long offset, final int length, final IDataSink sink) {
-		source.read(offset, length + 1, new IDataSink() {
-			public void receive(byte[] data, boolean[] valid) {
-				byte[] result = new byte[length];
-				boolean[] resultValid = new boolean[length];
-				for (int i = 0; i < length; ++i) {
-					resultValid[i] = valid[i] && valid[i + 1];
-					result[i] = (byte)((data[i] >> shift) |
-					    (data[i + 1] & ((1 << shift) - 1)));
-				}
-				sink.receive(result, resultValid);
-			}
-		});
+	public void read(long offset, int length, IDataSink sink) {
+		ReadPlan.compile(this, offset, length).execute(sink);
 	}
 }
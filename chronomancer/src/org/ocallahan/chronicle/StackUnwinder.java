@@ -0,0 +1,351 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+package org.ocallahan.chronicle;
+
+import java.util.ArrayList;
+
+/**
+ * Walks up the stack from a given time, reporting each activation record and
+ * the function running in it.
+ * 
+ * Walking with QueryUtils.findStartOfCallWithRegs alone waits for each
+ * candidate call's end to be found before scanning for the next frame. But
+ * whether a candidate call turns out to be our caller or a sibling that
+ * returned earlier, the next scan is the same one, from the candidate's
+ * entry and its stack pointer before the call. So we issue the ENTER_SP
+ * scans back to back and check the candidates' ends and look up their
+ * functions in parallel, dropping the function lookups of siblings. A stack
+ * of N frames takes about N scan round trips instead of 2N, plus the
+ * function lookups.
+ * 
+ * Everything runs in the QueryScope that was current when start() was
+ * called; closing it stops the walk and the listener is not called again.
+ */
+public class StackUnwinder {
+	public static interface Listener {
+		/**
+		 * Called for each activation record, innermost first.
+		 * @param depth 0 for the innermost record, 1 for its caller, etc
+		 * @param enterTStamp the tstamp of the call instruction
+		 * @param endTStamp the tstamp after this invocation returned (or the
+		 * end of the trace if it did not return)
+		 * @param beforeCallSP the value of the stack pointer before the call
+		 * instruction
+		 * @param stackEnd the end of the stack
+		 * @param thread the current thread
+		 */
+		public void notifyFrame(int depth, long enterTStamp, long endTStamp,
+				long beforeCallSP, long stackEnd, int thread);
+		/**
+		 * Called after notifyFrame for the same depth, in no particular
+		 * order. function is null if the lookup failed.
+		 */
+		public void notifyFunction(int depth, Function function);
+		/**
+		 * Called after the outermost record has been reported, or after
+		 * the last one we could be sure of if a lookup failed. Some
+		 * notifyFunction calls may still follow.
+		 */
+		public void notifyDone();
+	}
+	
+	/**
+	 * Listener calls are made with our lock held, on the SessionThread or
+	 * a query's worker, so they should be quick.
+	 */
+	public StackUnwinder(Session session, Listener listener) {
+		this.session = session;
+		this.listener = listener;
+		this.cache = session.getCallFrameCache();
+	}
+	
+	/**
+	 * Starts walking up from the function invocation active at tStamp.
+	 */
+	public void start(final long tStamp) {
+		CallIndex index = session.getCallIndex();
+		if (index != null && index.isComplete()) {
+			// The index answers without round trips, so there's nothing
+			// to overlap, and nothing worth caching
+			synchronized (this) {
+				indexed = true;
+			}
+			QueryUtils.findStartOfCall(session, tStamp, new IndexedWalk(tStamp));
+			return;
+		}
+		Architecture arch = session.getArchitecture();
+		final String spReg = arch.getSPReg();
+		final String threadReg = Architecture.getThreadReg();
+		ReadRegQuery q = new ReadRegQuery(session,
+				tStamp, new String[] { threadReg, spReg }, 64,
+				new ReadRegQuery.Listener() {
+			public void notifyDone(ReadRegQuery q, boolean complete,
+					final RegisterValues values) {
+				if (!complete) {
+					finishChain(false);
+					return;
+				}
+				final long sp = values.getLongValue(spReg);
+				QueryUtils.findMemoryEnd(session, tStamp, sp,
+						new QueryUtils.MemoryEndReceiver() {
+					public void receiveEnd(long end) {
+						synchronized (StackUnwinder.this) {
+							thread = values.getIntValue(threadReg);
+							stackEnd = end;
+						}
+						scanFrom(tStamp, sp);
+					}
+				});
+			}
+		});
+		q.send();
+	}
+	
+	// A call found by the scan for the frame active at (queryTStamp, querySP)
+	private static class Step {
+		Step(long queryTStamp, long querySP, long enterTStamp, long enterSP,
+				long beforeCallSP) {
+			this.queryTStamp = queryTStamp;
+			this.querySP = querySP;
+			this.enterTStamp = enterTStamp;
+			this.enterSP = enterSP;
+			this.beforeCallSP = beforeCallSP;
+		}
+		long     queryTStamp;
+		long     querySP;
+		long     enterTStamp;
+		long     enterSP;
+		long     beforeCallSP;
+		long     endTStamp;
+		// null until we know whether it's a frame or a sibling
+		Boolean  isFrame;
+		// set if we couldn't find out
+		boolean  failed;
+		boolean  functionKnown;
+		Function function;
+		// set once reported as a frame
+		int      depth = -1;
+	}
+	
+	// Finds the latest call before tStamp that pushed its return address in
+	// [sp, stackEnd). That is either the frame active at tStamp or a sibling;
+	// either way the next scan starts from it.
+	private void scanFrom(final long tStamp, final long sp) {
+		final long end;
+		final int t;
+		synchronized (this) {
+			end = stackEnd;
+			t = thread;
+		}
+		if (cache.deliverCaller(t, tStamp, sp, new QueryUtils.StartReceiver() {
+			public void receiveStart(long enterTStamp, long endTStamp,
+					long beforeCallSP, long stackEnd, int thread) {
+				Step step = new Step(tStamp, sp, enterTStamp, -1, beforeCallSP);
+				step.endTStamp = endTStamp;
+				step.isFrame = Boolean.TRUE;
+				addStep(step);
+				scanFrom(enterTStamp, beforeCallSP);
+			}
+			public void receiveNothing() {
+				setChainEnd(tStamp, sp);
+				finishChain(true);
+			}
+		}))
+			return;
+		ScanEnterSPQuery q = new ScanEnterSPQuery(session,
+				0, tStamp, new MemRange[] { new MemRange(sp, end) },
+				ScanQuery.Termination.LAST, new ScanEnterSPQuery.Listener() {
+			public void notifyDone(ScanQuery q, boolean complete) {
+				if (!found) {
+					setChainEnd(tStamp, sp);
+					finishChain(complete);
+				}
+			}
+			public void notifyEnterSPResult(ScanEnterSPQuery q, long enterTStamp,
+					long enterSP, long enterSPEnd) {
+				found = true;
+				long beforeCallSP = enterSP +
+				    session.getArchitecture().getPointerSize();
+				Step step = new Step(tStamp, sp, enterTStamp, enterSP,
+						beforeCallSP);
+				addStep(step);
+				scanFrom(enterTStamp, beforeCallSP);
+				classify(step);
+			}
+			public void notifyMMapResult(ScanQuery q, long tStamp, long start,
+					long end, MMapInfo info) {}
+			private boolean found = false;
+		});
+		q.send();
+	}
+	
+	// The candidate is our frame if it returned after the time we asked
+	// about. If we can't tell, the walk ends there.
+	private void classify(final Step step) {
+		QueryUtils.findEndOfCallChecked(session, step.enterTStamp + 1,
+				step.enterSP, thread, new QueryUtils.CheckedEndReceiver() {
+			public void receiveEnd(long endTStamp) {
+				setClass(step, endTStamp, endTStamp > step.queryTStamp);
+			}
+			public void receiveNothing(boolean complete) {
+				if (complete) {
+					setClass(step, session.getEndTStamp(), true);
+				} else {
+					setFailed(step);
+				}
+			}
+		});
+	}
+	
+	private void addStep(final Step step) {
+		synchronized (this) {
+			steps.add(step);
+			advance();
+		}
+		// Speculative: wasted if the step turns out to be a sibling
+		QueryUtils.findRunningFunction(session, step.enterTStamp + 1,
+				new QueryUtils.FunctionReceiver() {
+			public void receiveFunction(Function function) {
+				synchronized (StackUnwinder.this) {
+					step.function = function;
+					step.functionKnown = true;
+					if (step.depth >= 0) {
+						listener.notifyFunction(step.depth, function);
+					}
+				}
+			}
+		});
+	}
+	
+	synchronized private void setClass(Step step, long endTStamp,
+			boolean isFrame) {
+		step.endTStamp = endTStamp;
+		step.isFrame = Boolean.valueOf(isFrame);
+		advance();
+	}
+	
+	synchronized private void setFailed(Step step) {
+		step.failed = true;
+		advance();
+	}
+	
+	synchronized private void setChainEnd(long tStamp, long sp) {
+		chainEndTStamp = tStamp;
+		chainEndSP = sp;
+	}
+	
+	synchronized private void finishChain(boolean complete) {
+		chainDone = true;
+		chainComplete = complete;
+		advance();
+	}
+	
+	// Called with our lock held. Reports the steps we can, in order, and
+	// records what we learned in the CallFrameCache.
+	private void advance() {
+		while (delivered < steps.size()) {
+			Step step = steps.get(delivered);
+			if (step.failed) {
+				// Nothing past here can be trusted, or kept
+				chainDone = true;
+				chainComplete = false;
+				unanswered.clear();
+				break;
+			}
+			if (step.isFrame == null)
+				return;
+			++delivered;
+			if (!indexed) {
+				unanswered.add(step);
+			}
+			if (!step.isFrame.booleanValue())
+				continue;
+			
+			// This frame is the answer for every query since the last frame
+			CallFrameCache.Frame f = new CallFrameCache.Frame(thread,
+					step.enterTStamp, step.endTStamp, step.beforeCallSP, stackEnd);
+			for (Step s : unanswered) {
+				cache.putCaller(thread, s.queryTStamp, s.querySP, f);
+			}
+			unanswered.clear();
+			step.depth = depth++;
+			listener.notifyFrame(step.depth, step.enterTStamp, step.endTStamp,
+					step.beforeCallSP, stackEnd, thread);
+			if (step.functionKnown) {
+				listener.notifyFunction(step.depth, step.function);
+			}
+		}
+		if (!chainDone || doneNotified)
+			return;
+		if (chainComplete) {
+			for (Step s : unanswered) {
+				cache.putCaller(thread, s.queryTStamp, s.querySP, null);
+			}
+			cache.putCaller(thread, chainEndTStamp, chainEndSP, null);
+		}
+		unanswered.clear();
+		doneNotified = true;
+		listener.notifyDone();
+	}
+	
+	// Used when the CallIndex is complete
+	private class IndexedWalk implements QueryUtils.StartReceiver {
+		IndexedWalk(long tStamp) {
+			this.tStamp = tStamp;
+		}
+		public void receiveStart(long enterTStamp, long endTStamp,
+				long beforeCallSP, long stackEnd, int thread) {
+			Step step = new Step(tStamp, 0, enterTStamp, -1, beforeCallSP);
+			step.endTStamp = endTStamp;
+			step.isFrame = Boolean.TRUE;
+			synchronized (StackUnwinder.this) {
+				StackUnwinder.this.thread = thread;
+				StackUnwinder.this.stackEnd = stackEnd;
+			}
+			addStep(step);
+			tStamp = enterTStamp;
+			QueryUtils.findStartOfCallWithRegs(session, enterTStamp,
+					beforeCallSP, stackEnd, thread, this);
+		}
+		public void receiveNothing() {
+			finishChain(false);
+		}
+		private long tStamp;
+	}
+	
+	private Session         session;
+	private Listener        listener;
+	private CallFrameCache  cache;
+	private boolean         indexed;
+	private int             thread;
+	private long            stackEnd;
+	// Every call the scans found, in the order found
+	private ArrayList<Step> steps = new ArrayList<Step>();
+	// How many steps we've dealt with
+	private int             delivered;
+	// Steps dealt with since the last frame
+	private ArrayList<Step> unanswered = new ArrayList<Step>();
+	private int             depth;
+	private boolean         chainDone;
+	private boolean         chainComplete;
+	private long            chainEndTStamp;
+	private long            chainEndSP;
+	private boolean         doneNotified;
+}
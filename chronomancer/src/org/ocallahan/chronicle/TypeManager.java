@@ -55,11 +55,27 @@ public class TypeManager {
     }
     
     // Called with our lock held. Ensure that the receiver is called when
-    // the pending type is loaded.
+    // the pending type is loaded, in the caller's scope.
     void realizePromise(Type.Promise promise, final Type.Receiver receiver) {
     	String key = promise.getTypeKey();
     	PendingType pt = pendingTypes.get(key);
-    	pt.receivers.add(receiver);
+    	final QueryScope scope = session.getCurrentScope();
+    	if (scope == session.getRootScope()) {
+    		pt.receivers.add(receiver);
+    		return;
+    	}
+    	pt.receivers.add(new Type.Receiver() {
+    		public void receive(Type t) {
+    			if (scope.isClosed())
+    				return;
+    			QueryScope old = session.setCurrentScope(scope);
+    			try {
+    				receiver.receive(t);
+    			} finally {
+    				session.setCurrentScope(old);
+    			}
+    		}
+    	});
     }
     
     // Called with our lock held.
@@ -72,8 +88,17 @@ public class TypeManager {
     	pt = new PendingType(key);
     	pendingTypes.put(key, pt);
     	
-    	TQuery q = new TQuery(session, key, pt);
-    	q.send();
+    	// Type loads are shared by everyone who asks for the type, so they
+    	// must not be cancelled along with whoever asked first
+    	QueryScope old = session.setCurrentScope(session.getRootScope());
+    	try {
+    		TQuery q = new TQuery(session, key, pt);
+    		// We count on all type loads completing on the session thread
+    		q.pinToSessionThread();
+    		q.send();
+    	} finally {
+    		session.setCurrentScope(old);
+    	}
     	
     	return pt;
     }
@@ -200,6 +225,7 @@ public class TypeManager {
 				notifyTQueryDoneAlias(pt, type);
 			}
 		});
+		q.pinToSessionThread();
 		q.send();
     }
     
@@ -0,0 +1,205 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+/**
+ * Says which bytes of a block of data are valid, one bit per byte, packed
+ * into longs so that whole words can be tested and copied at once. Bits past
+ * the length are always zero.
+ * 
+ * Not thread-safe; a mask is filled in by one thread and then handed on.
+ */
+public class ValidityMask {
+	/**
+	 * Creates a mask with every byte invalid.
+	 */
+	public ValidityMask(int length) {
+		this(length, false);
+	}
+	
+	public ValidityMask(int length, boolean valid) {
+		if (length < 0)
+			throw new IllegalArgumentException("Negative length: " + length);
+		this.length = length;
+		words = new long[(length + 63) >>> 6];
+		if (valid) {
+			setRange(0, length, true);
+		}
+	}
+	
+	public static ValidityMask fromArray(boolean[] valid) {
+		ValidityMask m = new ValidityMask(valid.length);
+		for (int i = 0; i < valid.length; ++i) {
+			if (valid[i]) {
+				m.words[i >>> 6] |= 1L << i;
+			}
+		}
+		return m;
+	}
+	
+	public boolean[] toArray() {
+		boolean[] valid = new boolean[length];
+		for (int i = 0; i < length; ++i) {
+			valid[i] = get(i);
+		}
+		return valid;
+	}
+	
+	public int getLength() {
+		return length;
+	}
+	
+	public boolean get(int i) {
+		checkRange(i, i + 1);
+		return (words[i >>> 6] & (1L << i)) != 0;
+	}
+	
+	public void set(int i, boolean valid) {
+		setRange(i, i + 1, valid);
+	}
+	
+	/**
+	 * Sets the bytes from 'from' up to but not including 'to'.
+	 */
+	public void setRange(int from, int to, boolean valid) {
+		checkRange(from, to);
+		if (from == to)
+			return;
+		int first = from >>> 6;
+		int last = (to - 1) >>> 6;
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+		if (first == last) {
+			setBits(first, firstMask & lastMask, valid);
+			return;
+		}
+		setBits(first, firstMask, valid);
+		for (int w = first + 1; w < last; ++w) {
+			words[w] = valid ? -1L : 0;
+		}
+		setBits(last, lastMask, valid);
+	}
+	
+	/**
+	 * @return true if every byte is valid (including when there are none)
+	 */
+	public boolean isAllValid() {
+		return firstInvalid() == length;
+	}
+	
+	/**
+	 * @return the index of the first invalid byte, or the length if they are
+	 * all valid; i.e. the length of the valid prefix
+	 */
+	public int firstInvalid() {
+		for (int w = 0; w < words.length; ++w) {
+			if (words[w] != -1L) {
+				int i = (w << 6) + Long.numberOfTrailingZeros(~words[w]);
+				return Math.min(i, length);
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * Copies count bits starting at srcOffset in this mask into dest
+	 * starting at destOffset.
+	 */
+	public void copyTo(int srcOffset, ValidityMask dest, int destOffset, int count) {
+		checkRange(srcOffset, srcOffset + count);
+		dest.checkRange(destOffset, destOffset + count);
+		for (int i = 0; i < count; i += 64) {
+			int n = Math.min(64, count - i);
+			dest.putBits(destOffset + i, n, getBits(srcOffset + i));
+		}
+	}
+	
+	/**
+	 * @return a new mask for count bytes starting at offset
+	 */
+	public ValidityMask subMask(int offset, int count) {
+		ValidityMask m = new ValidityMask(count);
+		copyTo(offset, m, 0, count);
+		return m;
+	}
+	
+	/**
+	 * Makes invalid every byte that isn't also valid in other, which must be
+	 * at least as long.
+	 */
+	public void and(ValidityMask other) {
+		if (other.length < length)
+			throw new IllegalArgumentException("Mask too short");
+		for (int w = 0; w < words.length; ++w) {
+			words[w] &= other.words[w];
+		}
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; ++i) {
+			sb.append(get(i) ? '1' : '0');
+		}
+		return sb.toString();
+	}
+	
+	private void checkRange(int from, int to) {
+		if (from < 0 || to > length || from > to)
+			throw new IndexOutOfBoundsException("Range " + from + "-" + to +
+					" outside mask of length " + length);
+	}
+	
+	private void setBits(int w, long mask, boolean valid) {
+		if (valid) {
+			words[w] |= mask;
+		} else {
+			words[w] &= ~mask;
+		}
+	}
+	
+	// The 64 bits starting at bit i; bits past the end are zero
+	private long getBits(int i) {
+		int w = i >>> 6;
+		int shift = i & 63;
+		long bits = words[w] >>> shift;
+		if (shift != 0 && w + 1 < words.length) {
+			bits |= words[w + 1] << (64 - shift);
+		}
+		return bits;
+	}
+	
+	// Stores the low n bits of bits starting at bit i
+	private void putBits(int i, int n, long bits) {
+		int w = i >>> 6;
+		int shift = i & 63;
+		long mask = n == 64 ? -1L : (1L << n) - 1;
+		bits &= mask;
+		words[w] = (words[w] & ~(mask << shift)) | (bits << shift);
+		if (shift != 0 && shift + n > 64) {
+			words[w + 1] = (words[w + 1] & ~(mask >>> (64 - shift))) |
+			    (bits >>> (64 - shift));
+		}
+	}
+	
+	private int    length;
+	private long[] words;
+}
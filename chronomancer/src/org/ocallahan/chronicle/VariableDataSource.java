@@ -30,9 +30,8 @@ public class VariableDataSource implements IDataSource {
 	private long invocationTStamp;
 	private long currentTStamp;
 	private Variable var;
-	private ArrayList<ReadRequest> requests;
+	private ArrayList<Runnable> requests;
 	private VariablePiece[] pieces;
-	// private MemRange[] validForInstructionsInRanges;
 	
 	public VariableDataSource(Session session,
 			long currentTStamp, Variable var) {
@@ -46,28 +45,34 @@ public class VariableDataSource implements IDataSource {
 		this.currentTStamp = currentTStamp;
 		this.var = var;
 		
-		if (invocationTStamp != currentTStamp) {
-			// TODO figure out what to use here
-		}
-		
-		GetLocationQuery q = new GetLocationQuery(session, invocationTStamp,
-				var, var.getType(), new GetLocationQuery.Listener() {
-			public void notifyDone(GetLocationQuery q, boolean complete,
-					VariablePiece[] pieces, MemRange[] validForInstructionsInRanges) {
-				setPieces(pieces, validForInstructionsInRanges);
+		// Where the variable is at currentTStamp depends on the PC there;
+		// the LocationCache usually knows without asking the agent
+		session.getLocationCache().getPieces(var, invocationTStamp,
+				currentTStamp, new LocationCache.Listener() {
+			public void notifyDone(VariablePiece[] pieces) {
+				setPieces(pieces);
 			}
 		});
-		q.send();
 	}
 	
-	public void findNextChangeTStamp(long start, long length, TStampReceiver receiver) {
-		// TODO Auto-generated method stub
-		throw new Error("Unimplemented");
+	public void findNextChangeTStamp(final long start, final long length,
+			final TStampReceiver receiver) {
+		whenPiecesKnown(new Runnable() {
+			public void run() {
+				ChangeFinder.findNext(makeConcatenatedSource(start + length),
+						start, length, receiver);
+			}
+		});
 	}
 
-	public void findPreviousChangeTStamp(long start, long length, TStampReceiver receiver) {
-		// TODO Auto-generated method stub
-		throw new Error("Unimplemented");
+	public void findPreviousChangeTStamp(final long start, final long length,
+			final TStampReceiver receiver) {
+		whenPiecesKnown(new Runnable() {
+			public void run() {
+				ChangeFinder.findPrevious(makeConcatenatedSource(start + length),
+						start, length, receiver);
+			}
+		});
 	}
 
 	public Session getSession() {
@@ -82,41 +87,41 @@ public class VariableDataSource implements IDataSource {
 		return currentTStamp;
 	}
 
-	private static class ReadRequest {
-		long offset;
-		int length;
-		IDataSink sink;
-		public ReadRequest(long offset, int length, IDataSink sink) {
-			this.offset = offset;
-			this.length = length;
-			this.sink = sink;
-		}
-	}
-
 	public void read(final long offset, final int length,
 			final IDataSink sink) {
 		if (length > 1000000)
 			throw new IllegalArgumentException("Oversized request!");
+		whenPiecesKnown(new Runnable() {
+			public void run() {
+				doRead(offset, length, sink);
+			}
+		});
+	}
+	
+	// Runs r now if we know where the variable is, otherwise once we do
+	private void whenPiecesKnown(Runnable r) {
 		synchronized (this) {
 			if (pieces == null) {
 				if (requests == null) {
-					requests = new ArrayList<ReadRequest>();
+					requests = new ArrayList<Runnable>();
 				}
-				requests.add(new ReadRequest(offset, length, sink));
+				requests.add(r);
 				return;
 			}
 		}
-		doRead(offset, length, sink);
+		r.run();
 	}
 	
-	private void setPieces(VariablePiece[] pieces, MemRange[] validForInstructionsInRanges) {
+	private void setPieces(VariablePiece[] pieces) {
+		ArrayList<Runnable> requests;
 		synchronized (this) {
 			this.pieces = pieces;
-			// this.validForInstructionsInRanges = validForInstructionsInRanges;
+			requests = this.requests;
+			this.requests = null;
 		}
 		if (requests != null) {
-			for (ReadRequest r : requests) {
-				doRead(r.offset, r.length, r.sink);
+			for (Runnable r : requests) {
+				r.run();
 			}
 		}
 	}
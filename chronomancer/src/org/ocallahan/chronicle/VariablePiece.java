@@ -20,8 +20,6 @@ Contributor(s): robert@ocallahan.org
 
 package org.ocallahan.chronicle;
 
-import java.util.Arrays;
-
 public abstract class VariablePiece {
     protected int bitStart;
     protected int bitLength;
@@ -121,12 +119,7 @@ public abstract class VariablePiece {
     public static byte[] parseData(String hexData) throws JSONParserException {
     	if (hexData.length()%2 != 0)
     		throw new JSONParserException("Odd length in string: " + hexData);
-    	byte[] data = new byte[hexData.length()/2];
-    	for (int i = 0; i < data.length; ++i) {
-    		data[i] = (byte)(RegisterValues.parseHexChar(hexData.charAt(i*2))*16 +
-    		                 RegisterValues.parseHexChar(hexData.charAt(i*2 + 1)));
-    	}
-    	return data;
+    	return HexDecoder.decode(hexData);
     }
     
     public static class Constant extends VariablePiece {
@@ -171,11 +164,11 @@ public abstract class VariablePiece {
         			session.runOnThread(new Runnable() {
         				public void run() {
         					byte[] result = new byte[length];
-        					boolean[] resultValid = new boolean[length];
+        					ValidityMask resultValid = new ValidityMask(length);
         					if (offset < data.length) {
         						int intOffset = (int)offset;
         						int len = Math.min(data.length - intOffset, length);
-        						Arrays.fill(resultValid, 0, len, true);
+        						resultValid.setRange(0, len, true);
         						System.arraycopy(data, intOffset, result, 0, len);
         					}
         					sink.receive(result, resultValid);
@@ -226,8 +219,7 @@ public abstract class VariablePiece {
 		session.runOnThread(new Runnable() {
 			public void run() {
 				byte[] data = new byte[length];
-				boolean[] valid = new boolean[length];
-				sink.receive(data, valid);
+				sink.receive(data, new ValidityMask(length));
 			}
 		});    	
     }
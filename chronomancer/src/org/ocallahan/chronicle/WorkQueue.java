@@ -0,0 +1,121 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The queue of work for the SessionThread: parsed reply messages and
+ * Runnables. Any number of threads can offer without taking a lock; only
+ * the consumer thread may poll. This is an intrusive linked list in the
+ * style of Vyukov's MPSC queue: producers swap themselves in as the tail
+ * and then link the previous tail to their node.
+ * 
+ * The consumer parks when the queue is empty and producers unpark it.
+ */
+class WorkQueue {
+	WorkQueue() {
+		Node stub = new Node(null, null);
+		head = stub;
+		tail = new AtomicReference<Node>(stub);
+	}
+	
+	/**
+	 * Must be called before anything is offered.
+	 */
+	void setConsumer(Thread consumer) {
+		this.consumer = consumer;
+	}
+	
+	/**
+	 * Called on any thread.
+	 * @param priority returned by getPolledPriority() when item is polled
+	 */
+	void offer(Object item, Query.Priority priority) {
+		Node n = new Node(item, priority);
+		Node prev = tail.getAndSet(n);
+		prev.next = n;
+		if (waiting) {
+			LockSupport.unpark(consumer);
+		}
+	}
+	
+	/**
+	 * Called on the consumer thread only.
+	 * @return the oldest item, or null if there's none (or the producer
+	 * offering it hasn't finished linking it in yet)
+	 */
+	Object poll() {
+		Node next = head.next;
+		if (next == null)
+			return null;
+		head = next;
+		Object item = next.item;
+		next.item = null;
+		polledPriority = next.priority;
+		return item;
+	}
+	
+	/**
+	 * Called on the consumer thread only.
+	 * @return the priority offered with the last item polled
+	 */
+	Query.Priority getPolledPriority() {
+		return polledPriority;
+	}
+	
+	/**
+	 * Called on the consumer thread only. Blocks until something is
+	 * offered or wake() is called; may also return spuriously.
+	 */
+	void await() {
+		waiting = true;
+		// recheck after setting waiting, so a producer either sees
+		// waiting or we see its node
+		if (head.next == null) {
+			LockSupport.park(this);
+		}
+		waiting = false;
+	}
+	
+	// Called on any thread.
+	void wake() {
+		LockSupport.unpark(consumer);
+	}
+	
+	private static class Node {
+		Node(Object item, Query.Priority priority) {
+			this.item = item;
+			this.priority = priority;
+		}
+		volatile Node  next;
+		Object         item;
+		Query.Priority priority;
+	}
+	
+	// only touched by the consumer
+	private Node                  head;
+	private AtomicReference<Node> tail;
+	private Thread                consumer;
+	private Query.Priority        polledPriority;
+	private volatile boolean      waiting;
+}
@@ -0,0 +1,417 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Every write to one range of memory over the whole trace, gathered by a
+ * single MEM_WRITE scan with no termination. Once it's built, the next or
+ * previous write to any part of the range, and the range's contents at any
+ * timestamp, are found by binary search without asking the agent.
+ * 
+ * The writes are kept in parallel primitive arrays in timestamp order, with
+ * the bytes written packed into one array. A write made at timestamp T is
+ * seen by reads at timestamps after T, as with a scan's endTStamp.
+ * 
+ * Requests made before the scan has finished wait for it. If the scan
+ * fails, or finds more than MAX_WRITES writes (a hot loop variable, say),
+ * they are answered the ordinary way instead. All methods can be
+ * called on any thread; results are delivered on the SessionThread.
+ */
+public class WriteHistory {
+	WriteHistory(Session session, long start, long end) {
+		this.session = session;
+		this.start = start;
+		this.end = end;
+		firstWrite = new int[(int)(end - start)];
+		Arrays.fill(firstWrite, -1);
+	}
+	
+	/**
+	 * The most writes we keep for one range.
+	 */
+	public static final int MAX_WRITES = 0x10000;
+	
+	public long getStart() {
+		return start;
+	}
+	
+	public long getEnd() {
+		return end;
+	}
+	
+	synchronized public boolean isComplete() {
+		return complete;
+	}
+	
+	synchronized public int getWriteCount() {
+		return count;
+	}
+	
+	boolean covers(long from, long to) {
+		return start <= from && to <= end;
+	}
+	
+	// Starts the scan. Everyone who asks about the range shares it, so it
+	// doesn't belong to the scope of whoever asked first.
+	void build() {
+		QueryScope old = session.setCurrentScope(session.getRootScope());
+		try {
+			scan = new ScanWriteQuery(session, 0, session.getEndTStamp(),
+					new MemRange[] { new MemRange(start, end) },
+					ScanQuery.Termination.NONE, new ScanWriteQuery.Listener() {
+				public void notifyWriteResult(ScanWriteQuery q, long tStamp,
+						long from, long to, byte[] data) {
+					add(tStamp, from, to, data);
+				}
+				public void notifyMMapResult(ScanQuery q, long tStamp,
+						long from, long to, MMapInfo info) {
+					add(tStamp, from, to, null);
+				}
+				public void notifyDone(ScanQuery q, boolean complete) {
+					finish(complete);
+				}
+			});
+			scan.send();
+		} finally {
+			session.setCurrentScope(old);
+		}
+	}
+	
+	/**
+	 * Finds the first write to [from, to) after tStamp, like
+	 * MemoryDataSource.findNextChangeTStamp.
+	 */
+	public void findNextChangeTStamp(final long tStamp, final long from,
+			final long to, final IDataSource.TStampReceiver receiver) {
+		whenComplete(new Runnable() {
+			public void run() {
+				deliverChange(findChange(tStamp, from, to, true), true, receiver);
+			}
+		}, new Runnable() {
+			public void run() {
+				MemoryDataSource.scanNextChange(session, tStamp, from, to, receiver);
+			}
+		});
+	}
+	
+	/**
+	 * Finds the last write to [from, to) before tStamp, like
+	 * MemoryDataSource.findPreviousChangeTStamp.
+	 */
+	public void findPreviousChangeTStamp(final long tStamp, final long from,
+			final long to, final IDataSource.TStampReceiver receiver) {
+		whenComplete(new Runnable() {
+			public void run() {
+				deliverChange(findChange(tStamp, from, to, false), false, receiver);
+			}
+		}, new Runnable() {
+			public void run() {
+				MemoryDataSource.scanPreviousChange(session, tStamp, from, to, receiver);
+			}
+		});
+	}
+	
+	/**
+	 * Reads [from, from + length) as of tStamp. If some of it wasn't written
+	 * before tStamp, or the history isn't ready, this is an ordinary read.
+	 */
+	public void read(final long tStamp, final long from, final int length,
+			final IDataSink sink) {
+		byte[] data = null;
+		synchronized (this) {
+			if (complete) {
+				data = readLocally(tStamp, from, length);
+			}
+		}
+		if (data == null) {
+			session.getPageCache().read(tStamp, from, length, sink);
+			return;
+		}
+		final byte[] result = data;
+		session.runOnThread(new Runnable() {
+			public void run() {
+				sink.receive(result, new ValidityMask(length, true));
+			}
+		});
+	}
+	
+	// Runs ifComplete once the history is built, or ifFailed if it can't be,
+	// in the caller's scope
+	private void whenComplete(Runnable ifComplete, Runnable ifFailed) {
+		synchronized (this) {
+			if (!complete && !failed) {
+				// Otherwise they'd run in the scan's scope
+				QueryScope scope = session.getCurrentScope();
+				waiting.add(scope.wrap(ifComplete));
+				fallbacks.add(scope.wrap(ifFailed));
+				return;
+			}
+		}
+		if (complete) {
+			session.runOnThread(ifComplete);
+		} else {
+			ifFailed.run();
+		}
+	}
+	
+	// runs on SessionThread
+	private synchronized void add(long tStamp, long from, long to, byte[] bytes) {
+		long s = Math.max(from, start);
+		long e = Math.min(to, end);
+		if (s >= e || overflowed)
+			return;
+		if (count == MAX_WRITES) {
+			// Not worth keeping; drop what we have and stop the scan
+			overflowed = true;
+			tStamps = new long[0];
+			offsets = new int[0];
+			lengths = new int[0];
+			dataOffsets = new int[0];
+			data = new byte[0];
+			firstWrite = new int[0];
+			count = 0;
+			dataLength = 0;
+			scan.cancel();
+			return;
+		}
+		if (count == tStamps.length) {
+			int size = Math.max(16, count*2);
+			long[] t = new long[size];
+			System.arraycopy(tStamps, 0, t, 0, count);
+			tStamps = t;
+			offsets = grow(offsets, size);
+			lengths = grow(lengths, size);
+			dataOffsets = grow(dataOffsets, size);
+		}
+		tStamps[count] = tStamp;
+		offsets[count] = (int)(s - start);
+		lengths[count] = (int)(e - s);
+		if (bytes == null) {
+			// A mapping change; the contents are unknown
+			dataOffsets[count] = -1;
+		} else {
+			if (dataLength + lengths[count] > data.length) {
+				byte[] d = new byte[Math.max(dataLength + lengths[count],
+						data.length*2)];
+				System.arraycopy(data, 0, d, 0, dataLength);
+				data = d;
+			}
+			System.arraycopy(bytes, (int)(s - from), data, dataLength, lengths[count]);
+			dataOffsets[count] = dataLength;
+			dataLength += lengths[count];
+		}
+		++count;
+	}
+	
+	private int[] grow(int[] a, int size) {
+		int[] result = new int[size];
+		System.arraycopy(a, 0, result, 0, count);
+		return result;
+	}
+	
+	// runs on SessionThread
+	private void finish(boolean ok) {
+		ArrayList<Runnable> toRun;
+		synchronized (this) {
+			ok = ok && !overflowed;
+			if (ok) {
+				sort();
+				for (int i = count - 1; i >= 0; --i) {
+					for (int j = 0; j < lengths[i]; ++j) {
+						firstWrite[offsets[i] + j] = i;
+					}
+				}
+				complete = true;
+				toRun = waiting;
+			} else {
+				failed = true;
+				toRun = fallbacks;
+			}
+			waiting = null;
+			fallbacks = null;
+		}
+		for (Runnable r : toRun) {
+			r.run();
+		}
+		// An overflowed history stays in the cache, so the range isn't
+		// scanned in full again; it just answers the ordinary way
+		if (!ok && !overflowed) {
+			session.getWriteHistoryCache().remove(this);
+		}
+	}
+	
+	// Called with our lock held. The agent usually reports writes in order
+	// already.
+	private void sort() {
+		boolean sorted = true;
+		for (int i = 1; i < count && sorted; ++i) {
+			sorted = tStamps[i - 1] <= tStamps[i];
+		}
+		if (sorted)
+			return;
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; ++i) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long x = tStamps[a];
+				long y = tStamps[b];
+				return x < y ? -1 : x > y ? 1 : 0;
+			}
+		});
+		long[] t = new long[count];
+		int[] o = new int[count];
+		int[] l = new int[count];
+		int[] d = new int[count];
+		for (int i = 0; i < count; ++i) {
+			t[i] = tStamps[order[i]];
+			o[i] = offsets[order[i]];
+			l[i] = lengths[order[i]];
+			d[i] = dataOffsets[order[i]];
+		}
+		tStamps = t;
+		offsets = o;
+		lengths = l;
+		dataOffsets = d;
+	}
+	
+	// Called with our lock held. The index of the first write at or after
+	// tStamp.
+	private int lowerBound(long tStamp) {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (tStamps[mid] < tStamp) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	private boolean overlaps(int i, long from, long to) {
+		long s = start + offsets[i];
+		return s < to && from < s + lengths[i];
+	}
+	
+	// The nearest write to part of a range
+	private static class Change {
+		Change(long tStamp, MemRange range) {
+			this.tStamp = tStamp;
+			this.range = range;
+		}
+		long     tStamp;
+		MemRange range;
+	}
+	
+	// The nearest write to [from, to), or null
+	private synchronized Change findChange(long tStamp, long from, long to,
+			boolean forward) {
+		int i = forward ? lowerBound(tStamp + 1) : lowerBound(tStamp) - 1;
+		int step = forward ? 1 : -1;
+		for (; i >= 0 && i < count; i += step) {
+			if (overlaps(i, from, to))
+				break;
+		}
+		if (i < 0 || i >= count)
+			return null;
+		long found = tStamps[i];
+		MemRange range = null;
+		for (; i >= 0 && i < count && tStamps[i] == found; i += step) {
+			if (overlaps(i, from, to)) {
+				long s = start + offsets[i];
+				range = range == null ? new MemRange(s, s + lengths[i])
+				    : range.union(s, s + lengths[i]);
+			}
+		}
+		return new Change(found, range);
+	}
+	
+	private void deliverChange(Change change, boolean forward,
+			IDataSource.TStampReceiver receiver) {
+		if (change == null) {
+			receiver.receiveEndOfScope(forward ? session.getEndTStamp() : 0);
+		} else {
+			receiver.receiveChange(change.tStamp, change.range.getStart(),
+					change.range.getLength());
+		}
+	}
+	
+	// Called with our lock held. Walks back from tStamp until every byte has
+	// been found, or returns null if some weren't written before tStamp.
+	private byte[] readLocally(long tStamp, long from, int length) {
+		if (!covers(from, from + length))
+			return null;
+		int base = (int)(from - start);
+		byte[] result = new byte[length];
+		boolean[] found = new boolean[length];
+		int missing = length;
+		int i = lowerBound(tStamp) - 1;
+		for (int j = 0; j < length; ++j) {
+			int first = firstWrite[base + j];
+			if (first < 0 || first > i)
+				return null;
+		}
+		for (; i >= 0 && missing > 0; --i) {
+			int s = Math.max(offsets[i], base);
+			int e = Math.min(offsets[i] + lengths[i], base + length);
+			for (int a = s; a < e; ++a) {
+				if (found[a - base])
+					continue;
+				if (dataOffsets[i] < 0)
+					return null;
+				result[a - base] = data[dataOffsets[i] + a - offsets[i]];
+				found[a - base] = true;
+				--missing;
+			}
+		}
+		return result;
+	}
+	
+	private Session             session;
+	private long                start;
+	private long                end;
+	private boolean             complete;
+	private boolean             failed;
+	private ScanWriteQuery      scan;
+	// Set once the scan found more than MAX_WRITES writes
+	private boolean             overflowed;
+	private ArrayList<Runnable> waiting = new ArrayList<Runnable>();
+	private ArrayList<Runnable> fallbacks = new ArrayList<Runnable>();
+	// The writes, in timestamp order once complete
+	private int                 count;
+	private long[]              tStamps = new long[0];
+	private int[]               offsets = new int[0];
+	private int[]               lengths = new int[0];
+	// Where each write's bytes are in data, or -1 if they're unknown
+	private int[]               dataOffsets = new int[0];
+	private byte[]              data = new byte[0];
+	private int                 dataLength;
+	// For each byte of the range, the index of the first write to it, or -1
+	private int[]               firstWrite;
+}
@@ -0,0 +1,153 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The WriteHistories for the ranges people keep navigating around. The first
+ * request to find a write to a range is answered with an ordinary scan; if
+ * the same range comes up again we build a WriteHistory for it, since it is
+ * evidently being watched, and answer from that from then on. A history
+ * answers for any part of its range.
+ */
+public class WriteHistoryCache {
+	WriteHistoryCache(Session session) {
+		this.session = session;
+	}
+	
+	/**
+	 * The default capacity, in histories.
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+	/**
+	 * The largest range we keep a history for.
+	 */
+	public static final int MAX_RANGE = 0x10000;
+	
+	synchronized public void setCapacity(int histories) {
+		capacity = histories;
+		evict();
+	}
+	
+	synchronized public void clear() {
+		histories.clear();
+		requested.clear();
+	}
+	
+	synchronized public long getHits() { return hits; }
+	synchronized public long getMisses() { return misses; }
+	
+	@Override
+	synchronized public String toString() {
+		int writes = 0;
+		for (WriteHistory h : histories.values()) {
+			writes += h.getWriteCount();
+		}
+		return "WriteHistoryCache: " + histories.size() + " histories, " +
+		    writes + " writes, " + hits + " hits, " + misses + " misses";
+	}
+	
+	/**
+	 * Finds a history covering [start, end) for navigating around it. If
+	 * there isn't one but the range has been asked about before, starts
+	 * building one.
+	 * @return the history, which may still be building, or null
+	 */
+	public WriteHistory getForNavigation(long start, long end) {
+		WriteHistory h;
+		synchronized (this) {
+			h = find(start, end);
+			if (h != null) {
+				++hits;
+				return h;
+			}
+			++misses;
+			if (end - start > MAX_RANGE || end <= start)
+				return null;
+			String key = start + "+" + (end - start);
+			if (requested.put(key, Boolean.TRUE) == null) {
+				if (requested.size() > capacity*4) {
+					Iterator<String> iter = requested.keySet().iterator();
+					iter.next();
+					iter.remove();
+				}
+				return null;
+			}
+			requested.remove(key);
+			h = new WriteHistory(session, start, end);
+			histories.put(key, h);
+			evict();
+		}
+		h.build();
+		return h;
+	}
+	
+	/**
+	 * Finds a complete history covering [start, end) for reading it.
+	 * @return the history, or null
+	 */
+	synchronized public WriteHistory getForReading(long start, long end) {
+		WriteHistory h = find(start, end);
+		return h != null && h.isComplete() ? h : null;
+	}
+	
+	synchronized void remove(WriteHistory h) {
+		histories.values().remove(h);
+	}
+	
+	// Called with our lock held.
+	private WriteHistory find(long start, long end) {
+		String key = start + "+" + (end - start);
+		WriteHistory h = histories.get(key);
+		if (h != null)
+			return h;
+		for (WriteHistory candidate : histories.values()) {
+			if (candidate.covers(start, end)) {
+				// Touch it
+				return histories.get(candidate.getStart() + "+" +
+						(candidate.getEnd() - candidate.getStart()));
+			}
+		}
+		return null;
+	}
+	
+	// Called with our lock held.
+	private void evict() {
+		Iterator<WriteHistory> iter = histories.values().iterator();
+		while (histories.size() > capacity && iter.hasNext()) {
+			iter.next();
+			iter.remove();
+		}
+	}
+	
+	private Session                            session;
+	// In least recently used order
+	private LinkedHashMap<String,WriteHistory> histories =
+		new LinkedHashMap<String,WriteHistory>(16, 0.75f, true);
+	// Ranges asked about once, oldest first
+	private LinkedHashMap<String,Boolean>      requested =
+		new LinkedHashMap<String,Boolean>();
+	private int                                capacity = DEFAULT_CAPACITY;
+	private long                               hits;
+	private long                               misses;
+}
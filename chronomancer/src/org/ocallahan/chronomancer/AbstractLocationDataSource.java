@@ -39,13 +39,50 @@ public class AbstractLocationDataSource implements IDataSource {
 	}
 
 	public void findNextChangeTStamp(long start, long length, TStampReceiver receiver) {
-		// TODO Auto-generated method stub
-		throw new Error("unimplemented");
+		findChangeTStamp(start, length, true, receiver);
 	}
 
 	public void findPreviousChangeTStamp(long start, long length, TStampReceiver receiver) {
-		// TODO Auto-generated method stub
-		throw new Error("unimplemented");
+		findChangeTStamp(start, length, false, receiver);
+	}
+	
+	// Searches the current home. Moving to another home counts as a change
+	// at the boundary, if nothing was written before then.
+	private void findChangeTStamp(final long start, final long length,
+			final boolean forward, final TStampReceiver receiver) {
+		AbstractLocation.Home home = location.getHomeFor(tStamp);
+		IDataSource source;
+		TStampReceiver r;
+		if (home == null) {
+			source = new VariablePiece.InvalidDataSource(session, tStamp);
+			r = receiver;
+		} else {
+			source = new MemoryDataSource(session, tStamp, home.getAddress());
+			final long boundary = forward ? home.getEndTStamp() : home.getBeginTStamp();
+			final boolean hasBoundary = forward ? boundary < session.getEndTStamp()
+					: boundary > 0;
+			r = new TStampReceiver() {
+				public void receiveChange(long stamp, long offset, long len) {
+					if (hasBoundary && (forward ? stamp >= boundary : stamp < boundary)) {
+						receiver.receiveChange(boundary, start, length);
+					} else {
+						receiver.receiveChange(stamp, offset, len);
+					}
+				}
+				public void receiveEndOfScope(long stamp) {
+					if (hasBoundary) {
+						receiver.receiveChange(boundary, start, length);
+					} else {
+						receiver.receiveEndOfScope(stamp);
+					}
+				}
+			};
+		}
+		if (forward) {
+			source.findNextChangeTStamp(start, length, r);
+		} else {
+			source.findPreviousChangeTStamp(start, length, r);
+		}
 	}
 
 	public Session getSession() {
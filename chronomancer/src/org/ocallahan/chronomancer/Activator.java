@@ -91,4 +91,28 @@ public class Activator extends AbstractUIPlugin {
     public static void log(String msg) {
     	log(msg, null);
     }
+    
+    public static boolean isLogging() {
+    	return logging;
+    }
+    
+    private static int agentCount = Integer.getInteger("chronomancer.agents", 1);
+    
+    /**
+     * @return how many agent processes to start per trace; set with
+     * -Dchronomancer.agents=N
+     */
+    public static int getAgentCount() {
+    	return Math.max(1, agentCount);
+    }
+    
+    private static boolean indexingCalls = Boolean.getBoolean("chronomancer.indexCalls");
+    
+    /**
+     * @return whether to build (or load) an index of every call in the
+     * trace when it's opened; set with -Dchronomancer.indexCalls=true
+     */
+    public static boolean isIndexingCalls() {
+    	return indexingCalls;
+    }
 }
@@ -27,6 +27,7 @@ import org.eclipse.ui.ISharedImages;
 import org.eclipse.ui.PlatformUI;
 import org.ocallahan.chronicle.IDataSource;
 import org.ocallahan.chronicle.Type;
+import org.ocallahan.chronicle.ValidityMask;
 
 public class RenderedData {
     private DataContext dataContext;
@@ -101,11 +102,7 @@ public class RenderedData {
 		}
     }
 	
-	public static boolean allValid(boolean[] valid) {
-		for (boolean b : valid) {
-			if (!b)
-				return false;
-		}
-		return true;
+	public static boolean allValid(ValidityMask valid) {
+		return valid.isAllValid();
 	}
 }
@@ -20,6 +20,7 @@ Contributor(s): robert@ocallahan.org
 
 package org.ocallahan.chronomancer;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -40,8 +41,10 @@ import org.eclipse.ui.console.ConsolePlugin;
 import org.eclipse.ui.console.IConsole;
 import org.eclipse.ui.console.IConsoleManager;
 import org.eclipse.ui.console.MessageConsole;
+import org.ocallahan.chronicle.CallIndex;
 import org.ocallahan.chronicle.Query;
 import org.ocallahan.chronicle.Session;
+import org.ocallahan.chronicle.SessionPool;
 import org.ocallahan.chronicle.Type;
 
 /**
@@ -52,7 +55,7 @@ import org.ocallahan.chronicle.Type;
 public class State implements Session.Listener {
     private Session session = null;
     private Display display;
-    private Process process = null;
+    private SessionPool agents = null;
     private TraceEvent currentEvent = null;
     private WeakHashMap<Observer,Integer> observers = new WeakHashMap<Observer,Integer>();
     private SortedSet<TraceEvent> events = new TreeSet<TraceEvent>();
@@ -111,27 +114,67 @@ public class State implements Session.Listener {
     }
     
     public void start(String[] command) {
-    	ProcessBuilder pb = new ProcessBuilder(command);
+    	start(command, Activator.getAgentCount());
+    }
+    
+    /**
+     * @param agentCount how many agent processes to run; scans are spread
+     * across them
+     */
+    public void start(String[] command, int agentCount) {
     	try {
-    		process = pb.start();
+    		agents = new SessionPool(command, agentCount);
     	} catch (IOException ex) {
     		notifyMessage(Session.Severity.FATAL, "Cannot start process " + command[0] + ": " + ex, null);
+    		return;
     	}
 	    connectConsole();
-    	session = new Session(process.getInputStream(), process.getOutputStream(), this);
+    	session = agents.createSession(this);
+    	session.setTraceMessages(Activator.isLogging());
     	if (session.isClosed()) {
     		disconnectConsole();
     		session = null;
+    		return;
+    	}
+    	if (Activator.isIndexingCalls()) {
+    		File trace = getTraceFile(command);
+    		CallIndex.open(session, trace == null ? null : CallIndex.getFileFor(trace),
+    				trace);
     	}
     }
     
+    /**
+     * @return the database named on a chronicle-query command line, or null
+     */
+    private static File getTraceFile(String[] command) {
+    	for (int i = 0; i < command.length; ++i) {
+    		if (command[i].equals("--db") && i + 1 < command.length)
+    			return new File(command[i + 1]);
+    		if (command[i].startsWith("--db="))
+    			return new File(command[i].substring(5));
+    	}
+    	return null;
+    }
+    
     public void stop() {
-    	if (process != null) {
-    		process.destroy();
-    		process = null;
+    	if (agents != null) {
+    		agents.destroy();
+    		agents = null;
     	}
     	if (session != null) {
     		session.close();
+    		if (Activator.isLogging()) {
+    			Activator.log(session.getResultCache().toString());
+    			Activator.log(session.getPageCache().toString());
+    			Activator.log(session.getLocationCache().toString());
+    			Activator.log(session.getWriteHistoryCache().toString());
+    			Activator.log(session.getCallFrameCache().toString());
+    			Activator.log(session.getMemoryMapIndex().toString());
+    			Activator.log(session.getFunctionMap().toString());
+    			if (session.getCallIndex() != null) {
+    				Activator.log(session.getCallIndex().toString());
+    			}
+    		}
     		session = null;
     	}
     	events.clear();
@@ -195,6 +238,10 @@ public class State implements Session.Listener {
     	for (Observer o : observers.keySet()) {
     		o.notifyCurrentEventChanged(this);
     	}
+    	// Send all the queries the observers issued in one go
+    	if (session != null) {
+    		session.flushPending();
+    	}
     }
 
     public void addEvent(TraceEvent e) {
@@ -21,21 +21,26 @@ Contributor(s): robert@ocallahan.org
 package org.ocallahan.chronomancer;
 
 import org.ocallahan.chronicle.IDataSink;
+import org.ocallahan.chronicle.QueryScope;
+import org.ocallahan.chronicle.ValidityMask;
 
 public abstract class UIDataSink implements IDataSink {
 	public UIDataSink(State state) {
 	    this.state = state;
 	}
 	
-	public void receive(final byte[] data, final boolean[] valid) {
-		state.getDisplay().asyncExec(new Runnable() {
+	public void receive(final byte[] data, final ValidityMask valid) {
+		// Stay in the scope of the read, so nothing happens if it has been
+		// closed and whatever the UI thread reads next is in the same scope
+		QueryScope scope = state.getSession().getCurrentScope();
+		state.getDisplay().asyncExec(scope.wrap(new Runnable() {
 			public void run() {
 				receiveOnUIThread(data, valid);
 			}
-		});
+		}));
 	}
 	
-	public abstract void receiveOnUIThread(byte[] data, boolean[] valid);
+	public abstract void receiveOnUIThread(byte[] data, ValidityMask valid);
 	
 	private State state;
 }
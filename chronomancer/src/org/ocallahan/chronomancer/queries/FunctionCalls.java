@@ -21,7 +21,6 @@ Contributor(s): robert@ocallahan.org
 package org.ocallahan.chronomancer.queries;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 
 import org.eclipse.jface.fieldassist.ContentProposalAdapter;
 import org.eclipse.jface.fieldassist.IContentProposal;
@@ -39,8 +38,10 @@ import org.ocallahan.chronicle.LookupFunctionsQuery;
 import org.ocallahan.chronicle.MMapInfo;
 import org.ocallahan.chronicle.MemRange;
 import org.ocallahan.chronicle.Query;
+import org.ocallahan.chronicle.QueryScope;
 import org.ocallahan.chronicle.ScanExecQuery;
 import org.ocallahan.chronicle.ScanQuery;
+import org.ocallahan.chronicle.Session;
 import org.ocallahan.chronicle.AutocompleteQuery.Kind;
 import org.ocallahan.chronomancer.IEventQuery;
 import org.ocallahan.chronomancer.IEventQueryFactory;
@@ -144,6 +145,23 @@ public class FunctionCalls implements IEventQueryFactory {
     	
     	synchronized public void runQuery(final IReceiver<TraceEvent> receiver,
     			final State st) {
+    		Session s = st.getSession();
+    		if (scope == null) {
+    			scope = s.createScope();
+    		}
+    		QueryScope old = s.setCurrentScope(scope);
+    		try {
+    			startQuery(receiver, st);
+    		} finally {
+    			s.setCurrentScope(old);
+    		}
+    	}
+    	
+    	private void startQuery(final IReceiver<TraceEvent> receiver,
+    			final State st) {
+    		// Finding every call can take a long time; everything else the
+    		// user is looking at comes first. The scans and the per-call
+    		// queries their callbacks issue inherit this, and the scope.
     		LookupFunctionsQuery q = new LookupFunctionsQuery(st.getSession(), name,
     				new LookupFunctionsQuery.Listener() {
                 public void notifyFunctionResult(LookupFunctionsQuery q, final Function function) {
@@ -157,35 +175,29 @@ public class FunctionCalls implements IEventQueryFactory {
                 			FunctionCall.add(st, FunCallQuery.this, receiver, function, tStamp);
                 		}
                 		public void notifyDone(ScanQuery q, boolean complete) {
-                			synchronized (FunCallQuery.this) {
-                				queries.remove(q);
-                			}
                 		}
                 		public void notifyMMapResult(ScanQuery q, long tStamp, long start, long end, MMapInfo info) {
                 		}
                 	});
-                	synchronized (FunCallQuery.this) {
-                	    queries.add(scan);
-                	    scan.send();
-                	}
+                	scan.send();
     			}
                 public void notifyDone(LookupFunctionsQuery q, boolean complete) {
-                    synchronized (FunCallQuery.this) {
-                	    queries.remove(q);
-                    }
     			}
     		});
-    		queries.add(q);
+    		q.setPriority(Query.Priority.BULK);
     		q.send();
     	}
     	
     	synchronized public void stopQuery(State st) {
-    		for (Query q : queries) {
-    			q.cancel();
+    		// Cancels the lookup, the scans and any calls still being added
+    		if (scope != null) {
+    			scope.close();
+    			scope = null;
     		}
     	}
     	
     	String name;
-    	HashSet<Query> queries = new HashSet<Query>();
+    	// Everything the running query has issued
+    	QueryScope scope;
     }
 }
@@ -27,14 +27,15 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
-import java.util.Arrays;
 
 import org.eclipse.draw2d.Label;
 import org.ocallahan.chronicle.Architecture;
 import org.ocallahan.chronicle.IDataSink;
 import org.ocallahan.chronicle.IDataSource;
 import org.ocallahan.chronicle.MemoryDataSource;
+import org.ocallahan.chronicle.MemoryMapIndex;
 import org.ocallahan.chronicle.Type;
+import org.ocallahan.chronicle.ValidityMask;
 import org.ocallahan.chronomancer.DataContext;
 import org.ocallahan.chronomancer.IInteractiveFigure;
 import org.ocallahan.chronomancer.IReceiver;
@@ -148,28 +149,24 @@ public class CStringRenderer implements ITypeRenderer {
 		}
 	}
 	
-	public static int findValidLength(boolean[] valid) {
-		for (int i = 0; i < valid.length; ++i) {
-			if (!valid[i])
-				return i;
-		}
-		return valid.length;
+	public static int findValidLength(ValidityMask valid) {
+		return valid.firstInvalid();
 	}
 
 	public static void findMemoryContainingNull(final IDataSource source, final int nullSize,
 			final int length, final int remainingLength, final byte[] priorData, final IDataSink sink) {
 		source.read(priorData.length, length, new IDataSink() {
-			public void receive(byte[] data, boolean[] valid) {
+			public void receive(byte[] data, ValidityMask valid) {
 				byte[] newData = new byte[priorData.length + data.length];
 				System.arraycopy(priorData, 0, newData, 0, priorData.length);
 				System.arraycopy(data, 0, newData, priorData.length, data.length);
 				
 				int validLen = findValidLength(valid);
 				int nullLen = findNull(data, nullSize);
-				if (validLen < valid.length || nullLen < data.length || remainingLength == 0) {
-					boolean[] allValid = new boolean[priorData.length + valid.length];
-					Arrays.fill(allValid, 0, priorData.length, true);
-					System.arraycopy(valid, 0, allValid, priorData.length, valid.length);
+				if (validLen < valid.getLength() || nullLen < data.length || remainingLength == 0) {
+					ValidityMask allValid = new ValidityMask(newData.length);
+					allValid.setRange(0, priorData.length, true);
+					valid.copyTo(0, allValid, priorData.length, valid.getLength());
 					sink.receive(newData, allValid);
 					return;
 				}
@@ -193,7 +190,7 @@ public class CStringRenderer implements ITypeRenderer {
 		int initialLength = Math.min(maxLength, 64);
 		findMemoryContainingNull(source, size, initialLength,
 				maxLength - initialLength, EMPTY_BYTES, new UIDataSink(state) {
-			public void receiveOnUIThread(byte[] data, boolean[] valid) {
+			public void receiveOnUIThread(byte[] data, ValidityMask valid) {
 				int nullLen = findNull(data, size);
 				int validLen = findValidLength(valid);
 				Architecture arch = state.getSession().getArchitecture();
@@ -215,7 +212,7 @@ public class CStringRenderer implements ITypeRenderer {
 			final IReceiver<IInteractiveFigure> receiver) {
 		final Type.Pointer tPtr = (Type.Pointer)rd.getBareType();
 		rd.getSource().read(0, tPtr.getSize(), new IDataSink() {
-			public void receive(byte[] data, boolean[] valid) {
+			public void receive(byte[] data, ValidityMask valid) {
 				if (!RenderedData.allValid(valid)) {
 					state.getDisplay().asyncExec(new Runnable() {
 						public void run() {
@@ -226,9 +223,25 @@ public class CStringRenderer implements ITypeRenderer {
 				}
 
 				Architecture arch = state.getSession().getArchitecture();
+				long address = toUnsigned(data, arch);
+				// Don't ask for memory the index knows isn't there
+				MemoryMapIndex map = state.getSession().getMemoryMapIndex();
+				if (!map.isMapped(rd.getTStamp(), address)) {
+					state.getDisplay().asyncExec(new Runnable() {
+						public void run() {
+							receiver.receive(new InvalidDataFigure());
+						}
+					});
+					return;
+				}
+				int maxLength = Math.max(charLimit, TOOLTIP_LIMIT);
+				long mappedEnd = map.getMappedEnd(rd.getTStamp(), address);
+				if (mappedEnd >= 0 && mappedEnd - address < maxLength) {
+					maxLength = (int)(mappedEnd - address);
+				}
 				IDataSource source = new MemoryDataSource(state.getSession(),
-						rd.getTStamp(), toUnsigned(data, arch));
-				evaluateString(state, charType, source, Math.max(charLimit, TOOLTIP_LIMIT),
+						rd.getTStamp(), address);
+				evaluateString(state, charType, source, maxLength,
 						new StringReceiver() {
 					public void receive(String s, boolean isTerminated) {
 						String quoted = quote(s.substring(0, Math.min(s.length(), charLimit)));
@@ -24,6 +24,7 @@ import java.math.BigInteger;
 
 import org.ocallahan.chronicle.Identifier;
 import org.ocallahan.chronicle.Type;
+import org.ocallahan.chronicle.ValidityMask;
 import org.ocallahan.chronomancer.DataContext;
 import org.ocallahan.chronomancer.IInteractiveFigure;
 import org.ocallahan.chronomancer.IReceiver;
@@ -62,7 +63,7 @@ public class EnumRenderer implements ITypeRenderer {
 	public void renderType(final State state, RenderedData rd,
 			final IReceiver<IInteractiveFigure> receiver) {
 		rd.getSource().read(0, rd.getBareType().getSize(), new UIDataSink(state) {
-			public void receiveOnUIThread(byte[] data, boolean[] valid) {
+			public void receiveOnUIThread(byte[] data, ValidityMask valid) {
 				if (!RenderedData.allValid(valid)) {
 					receiver.receive(new InvalidDataFigure());
 					return;
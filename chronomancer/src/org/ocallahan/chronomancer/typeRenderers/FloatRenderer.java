@@ -23,6 +23,7 @@ package org.ocallahan.chronomancer.typeRenderers;
 import java.math.BigInteger;
 
 import org.ocallahan.chronicle.Type;
+import org.ocallahan.chronicle.ValidityMask;
 import org.ocallahan.chronomancer.DataContext;
 import org.ocallahan.chronomancer.IInteractiveFigure;
 import org.ocallahan.chronomancer.IReceiver;
@@ -42,7 +43,7 @@ public class FloatRenderer implements ITypeRenderer {
 			final IReceiver<IInteractiveFigure> receiver) {
 		final Type.Float tFloat = (Type.Float)rd.getBareType();
 		rd.getSource().read(0, tFloat.getSize(), new UIDataSink(state) {
-			public void receiveOnUIThread(byte[] data, boolean[] valid) {
+			public void receiveOnUIThread(byte[] data, ValidityMask valid) {
 				if (!RenderedData.allValid(valid) ||
 				    (data.length != 4 && data.length != 8)) {
 					receiver.receive(new InvalidDataFigure());
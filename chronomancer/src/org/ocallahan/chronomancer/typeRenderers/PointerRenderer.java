@@ -25,10 +25,12 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
+import org.eclipse.draw2d.Label;
 import org.eclipse.draw2d.MouseEvent;
 import org.eclipse.draw2d.MouseListener;
 import org.eclipse.draw2d.MouseMotionListener;
 import org.ocallahan.chronicle.Type;
+import org.ocallahan.chronicle.ValidityMask;
 import org.ocallahan.chronomancer.AbstractLocation;
 import org.ocallahan.chronomancer.AbstractLocationMap;
 import org.ocallahan.chronomancer.DataContext;
@@ -166,7 +168,7 @@ public class PointerRenderer implements ITypeRenderer {
 	public void renderType(final State state, final RenderedData rd,
 			final IReceiver<IInteractiveFigure> receiver) {
 		rd.getSource().read(0, rd.getBareType().getSize(), new UIDataSink(state) {
-			public void receiveOnUIThread(byte[] data, boolean[] valid) {
+			public void receiveOnUIThread(byte[] data, ValidityMask valid) {
 				if (!RenderedData.allValid(valid)) {
 					receiver.receive(new InvalidDataFigure());
 					return;
@@ -181,6 +183,13 @@ public class PointerRenderer implements ITypeRenderer {
 				BigInteger val = new BigInteger(data);
 				Figure figure = new Figure("0x" + val.toString(16), state,
 						rd.getContext(), rd.getType().getBareType());
+				// There's nothing to locate at an address that isn't mapped
+				if (!state.getSession().getMemoryMapIndex().isMapped(
+						rd.getTStamp(), val.longValue())) {
+					figure.setToolTip(new Label("Not mapped"));
+					receiver.receive(figure);
+					return;
+				}
 			    state.getLocationMap().getLocation(rd.getTStamp(), val.longValue(),
 			    		figure);
 				receiver.receive(figure);
@@ -30,6 +30,8 @@ import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.widgets.Composite;
 import org.ocallahan.chronicle.IDataSource;
 import org.ocallahan.chronicle.MemoryDataSource;
+import org.ocallahan.chronicle.QueryScope;
+import org.ocallahan.chronicle.Session;
 import org.ocallahan.chronicle.Type;
 import org.ocallahan.chronomancer.AbstractLocation;
 import org.ocallahan.chronomancer.DataContext;
@@ -56,6 +58,9 @@ public class DataView extends FigureView {
 			}
 		}
 		public void notifyReset(State st) {
+			for (Item item : items.values()) {
+				item.closeScope();
+			}
 			items.clear();
 			figure.removeAll();
 		}
@@ -77,6 +82,8 @@ public class DataView extends FigureView {
 		// We use this to track which receiver we're currently using, so
 		// old obsolete receivers know to cancel themselves
 		IReceiver<IInteractiveFigure> pendingReceiver;
+		// The queries rendering the current value
+		QueryScope scope;
 		public Item(DataContext context, Type type, AbstractLocation location) {
 			this.context = context;
 			this.type = type;
@@ -84,6 +91,12 @@ public class DataView extends FigureView {
 			this.figure = new SequenceFigure();
 			figure.setBorder(ITEM_BORDER);
 		}
+		void closeScope() {
+			if (scope != null) {
+				scope.close();
+				scope = null;
+			}
+		}
 	}
 	
 	private void addData(DataContext context, Type type, AbstractLocation location) {
@@ -110,6 +123,7 @@ public class DataView extends FigureView {
 	}
 
 	private void reloadItem(State st, final Item item) {
+		item.closeScope();
 		item.figure.removeAll();
 
 		String label = "(" + item.type.getName() + ")";
@@ -141,8 +155,15 @@ public class DataView extends FigureView {
 			}
 		};
 		IDataSource src = TypeRendererManager.getEagerSource(source, item.type);
-		st.getTypeRenderer().renderType(item.type, tStamp, src,
-				item.context, item.pendingReceiver);
+		Session s = st.getSession();
+		item.scope = s.createScope();
+		QueryScope old = s.setCurrentScope(item.scope);
+		try {
+			st.getTypeRenderer().renderType(item.type, tStamp, src,
+					item.context, item.pendingReceiver);
+		} finally {
+			s.setCurrentScope(old);
+		}
 	}
 	
 	/**
@@ -29,6 +29,7 @@ import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.widgets.Composite;
 import org.ocallahan.chronicle.Function;
 import org.ocallahan.chronicle.GetVariablesQuery;
+import org.ocallahan.chronicle.QueryScope;
 import org.ocallahan.chronicle.QueryUtils;
 import org.ocallahan.chronicle.Session;
 import org.ocallahan.chronicle.Variable;
@@ -48,8 +49,15 @@ public class LocalsView extends FigureView {
     private SequenceFigure parameters;
     private StateObserver observer = new StateObserver();
     private Font labelFont;
+    // Everything we've asked for about the current event; only accessed
+    // on the UI thread
+    private QueryScope scope;
 
     private void removeAll() {
+    	if (scope != null) {
+    		scope.close();
+    		scope = null;
+    	}
     	variables.removeAll();
     	parameters.removeAll();
     }
@@ -84,12 +92,18 @@ public class LocalsView extends FigureView {
 	private void buildLocalsFor(final long tStamp) {
 		final State state = getState();
 		Session s = state.getSession();
-		QueryUtils.findRunningFunction(s, tStamp, new QueryUtils.FunctionReceiver() {
-			public void receiveFunction(Function function) {
-				buildLocalsForCaller(state,
-                    new FunctionParameters.FunctionContext(function, tStamp), tStamp);
-			}
-		});
+		scope = s.createScope();
+		QueryScope old = s.setCurrentScope(scope);
+		try {
+			QueryUtils.findRunningFunction(s, tStamp, new QueryUtils.FunctionReceiver() {
+				public void receiveFunction(Function function) {
+					buildLocalsForCaller(state,
+	                    new FunctionParameters.FunctionContext(function, tStamp), tStamp);
+				}
+			});
+		} finally {
+			s.setCurrentScope(old);
+		}
 	}
 
 	private static final Border ITEM_BORDER =
@@ -117,7 +131,9 @@ public class LocalsView extends FigureView {
 		
 		public void notifyDone(GetVariablesQuery q, boolean complete,
 				final Variable[] vars) {
-			state.getDisplay().asyncExec(new Runnable() {
+			// Rendering issues more queries, so keep it in our scope
+			QueryScope scope = state.getSession().getCurrentScope();
+			state.getDisplay().asyncExec(scope.wrap(new Runnable() {
 				public void run() {
 					for (final Variable v : vars) {
 						final SequenceFigure fig = new SequenceFigure();
@@ -133,7 +149,7 @@ public class LocalsView extends FigureView {
 						}, new LocalContext(callerContext, v));
 					}
 				}
-			});
+			}));
 		}
 	}
 	
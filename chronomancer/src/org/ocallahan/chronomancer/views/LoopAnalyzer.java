@@ -26,6 +26,7 @@ import java.util.Arrays;
 import org.ocallahan.chronicle.Function;
 import org.ocallahan.chronicle.MMapInfo;
 import org.ocallahan.chronicle.MemRange;
+import org.ocallahan.chronicle.QueryScope;
 import org.ocallahan.chronicle.ScanExecQuery;
 import org.ocallahan.chronicle.ScanQuery;
 import org.ocallahan.chronicle.Session;
@@ -56,17 +57,26 @@ public class LoopAnalyzer {
 	}
 	
 	/**
-	 * @param session
+	 * @param scope the analysis runs in this scope; closing it stops the
+	 * analysis and the listener is not called again
 	 * @param function
 	 * @param startTStamp
 	 * @param endTStamp
 	 * @param receiver gets called on the session thread
 	 */
-    public static void analyze(Session session, Function function,
+    public static void analyze(QueryScope scope, Function function,
     		                   long startTStamp, long endTStamp,
     		                   Listener listener) {
-    	(new LoopAnalyzer(session, function, startTStamp, endTStamp, listener))
-    	    .analyze();
+    	Session session = scope.getSession();
+    	// Every later query is issued from a callback of the first one, so
+    	// they all inherit the scope
+    	QueryScope old = session.setCurrentScope(scope);
+    	try {
+    		(new LoopAnalyzer(session, function, startTStamp, endTStamp, listener))
+    		    .analyze();
+    	} finally {
+    		session.setCurrentScope(old);
+    	}
     }
     
     private LoopAnalyzer(Session session, Function function,
@@ -52,6 +52,8 @@ import org.ocallahan.chronicle.FindSourceInfoQuery;
 import org.ocallahan.chronicle.Function;
 import org.ocallahan.chronicle.MMapInfo;
 import org.ocallahan.chronicle.MemRange;
+import org.ocallahan.chronicle.Query;
+import org.ocallahan.chronicle.QueryScope;
 import org.ocallahan.chronicle.QueryUtils;
 import org.ocallahan.chronicle.ScanCountQuery;
 import org.ocallahan.chronicle.ScanExecQuery;
@@ -66,6 +68,8 @@ public class SourceAnnotator implements ISourceAnnotator {
 	private SourceViewer sourceViewer;
 	// accessed with lock held
 	private boolean isCancelled;
+	// Everything the annotator asks for; closed by terminate()
+	private QueryScope scope;
 	// accessed on UI thread only
 	private HashMap<String,FileAnnotations> annotations =
 		new HashMap<String,FileAnnotations>();
@@ -83,8 +87,26 @@ public class SourceAnnotator implements ISourceAnnotator {
 		this.sourceViewer = sourceViewer;
 		ScopeCalculator sc = new ScopeCalculator(currentTStamp);
 		Session s = getState().getSession();
-		QueryUtils.findStartOfCall(s, currentTStamp, sc);
-		QueryUtils.findRunningFunction(s, currentTStamp, sc);
+		scope = s.createScope();
+		// Loop analysis is a long cascade and mere decoration; it shouldn't
+		// hold up the views. Everything the cascade issues inherits this
+		// and the scope.
+		Query.Priority old = s.setCurrentPriority(Query.Priority.BACKGROUND);
+		QueryScope oldScope = s.setCurrentScope(scope);
+		try {
+			QueryUtils.findStartOfCall(s, currentTStamp, sc);
+			QueryUtils.findRunningFunction(s, currentTStamp, sc);
+		} finally {
+			s.setCurrentScope(oldScope);
+			s.setCurrentPriority(old);
+		}
+	}
+	
+	/**
+	 * Closed when the annotator is terminated.
+	 */
+	QueryScope getScope() {
+		return scope;
 	}
 	
 	public ITextEditor getCurrentEditor() {
@@ -136,6 +158,8 @@ public class SourceAnnotator implements ISourceAnnotator {
 				return;
 			isCancelled = true;
 		}
+		// Stop the analysis cascade on the agent too
+		scope.close();
 		
 		getState().setSourceAnnotator(null);
 
@@ -432,7 +456,7 @@ public class SourceAnnotator implements ISourceAnnotator {
     			});
 				return;
 			}
-			LoopAnalyzer.analyze(getState().getSession(), function, startTStamp, endTStamp,
+			LoopAnalyzer.analyze(scope, function, startTStamp, endTStamp,
 					new LoopListener(currentTStamp, function));
 		}
 	}
@@ -626,7 +650,7 @@ public class SourceAnnotator implements ISourceAnnotator {
 						beforeIterationCount + afterIterationCount);
 				// analyze the displayed loop body
 				++outstandingRequests;
-				LoopAnalyzer.analyze(getState().getSession(), function,
+				LoopAnalyzer.analyze(scope, function,
 						currentIterationStart, currentIterationEnd,
 						LoopListener.this);
 			}
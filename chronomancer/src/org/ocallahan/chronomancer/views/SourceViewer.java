@@ -24,8 +24,11 @@ import java.util.Map;
 
 import org.ocallahan.chronicle.Architecture;
 import org.ocallahan.chronicle.FindSourceInfoQuery;
+import org.ocallahan.chronicle.Query;
+import org.ocallahan.chronicle.QueryScope;
 import org.ocallahan.chronicle.ReadRegQuery;
 import org.ocallahan.chronicle.RegisterValues;
+import org.ocallahan.chronicle.Session;
 import org.ocallahan.chronicle.SourceCoordinate;
 import org.ocallahan.chronomancer.State;
 import org.ocallahan.chronomancer.TraceEvent;
@@ -64,7 +67,14 @@ public class SourceViewer {
 
 		long tStamp = event.getTStamp();
 		annotator = new SourceAnnotator(this, tStamp);
-		showCurrentLine(annotator, tStamp);
+		// Nothing to show once the annotator has gone
+		Session s = state.getSession();
+		QueryScope old = s.setCurrentScope(annotator.getScope());
+		try {
+			showCurrentLine(annotator, tStamp);
+		} finally {
+			s.setCurrentScope(old);
+		}
 	}
 	
 	private void showCurrentLine(final SourceAnnotator annotator, final long tStamp) {
@@ -75,6 +85,7 @@ public class SourceViewer {
 				if (!complete)
 					return;
 				final long pc = values.getLongValue(Architecture.getPCReg());
+				// inherits our priority
 				FindSourceInfoQuery q = new FindSourceInfoQuery(state.getSession(),
 						tStamp, new long[] { pc }, new FindSourceInfoQuery.Listener() {
 					public void notifyDone(FindSourceInfoQuery q,
@@ -83,16 +94,18 @@ public class SourceViewer {
 						final SourceCoordinate src = sources.get(pc);
 						if (src == null)
 							return;
-						state.getDisplay().asyncExec(new Runnable() {
+						state.getDisplay().asyncExec(annotator.getScope().wrap(new Runnable() {
 							public void run() {
 								annotator.showCurrentLine(src);
 							}							
-						});
+						}));
 					}
 				});
 				q.send();
 			}
 		});
+		// The current line is what the user is waiting for
+		rq.setPriority(Query.Priority.INTERACTIVE);
 		rq.send();
 	}
 	
@@ -20,14 +20,17 @@ Contributor(s): robert@ocallahan.org
 
 package org.ocallahan.chronomancer.views;
 
+import java.util.ArrayList;
+
 import org.eclipse.draw2d.Figure;
 import org.eclipse.draw2d.FlowLayout;
 import org.eclipse.draw2d.MouseEvent;
 import org.eclipse.draw2d.MouseListener;
 import org.eclipse.swt.widgets.Composite;
 import org.ocallahan.chronicle.Function;
-import org.ocallahan.chronicle.QueryUtils;
+import org.ocallahan.chronicle.QueryScope;
 import org.ocallahan.chronicle.Session;
+import org.ocallahan.chronicle.StackUnwinder;
 import org.ocallahan.chronomancer.IInteractiveFigure;
 import org.ocallahan.chronomancer.IReceiver;
 import org.ocallahan.chronomancer.SequenceFigure;
@@ -46,54 +49,60 @@ public class StackView extends FigureView {
     private StateObserver observer = new StateObserver();
     private StackBuilder builder;
 
-    class StackBuilder implements QueryUtils.StartReceiver {
+    class StackBuilder implements StackUnwinder.Listener {
     	StackBuilder(Session s) {
     		this.s = s;
+    		this.scope = s.createScope();
     	}
-		public void receiveNothing() {
-			control.getDisplay().asyncExec(new Runnable() {
+    	// The UI thread work runs in our scope, so it's skipped once we're
+    	// cancelled
+		public void notifyDone() {
+			control.getDisplay().asyncExec(scope.wrap(new Runnable() {
 				public void run() {
-					if (cancelled)
-						return;
 					addTopOfStack();
 				}
-			});
+			}));
 		}
-		public void receiveStart(final long tStamp, final long endTStamp,
-				final long beforeCallSP, final long stackEnd, final int thread) {
-			control.getDisplay().asyncExec(new Runnable() {
+		public void notifyFrame(final int depth, final long tStamp,
+				long endTStamp, long beforeCallSP, long stackEnd, int thread) {
+			control.getDisplay().asyncExec(scope.wrap(new Runnable() {
 				public void run() {
-					if (cancelled)
-						return;
 					// We add the activation record's figure now before we have
 					// all the data, because we want to make sure it appears in the
-					// the right order even if the findRunningFunction query
-					// to fill in the function name takes a long time.
-					final SequenceFigure activationFigure = addActivationRecord();
-					QueryUtils.findStartOfCallWithRegs(s, tStamp, beforeCallSP,
-							stackEnd, thread, StackBuilder.this);
-					QueryUtils.findRunningFunction(s, tStamp + 1,
-							new QueryUtils.FunctionReceiver() {
-						public void receiveFunction(final Function function) {
-							control.getDisplay().asyncExec(new Runnable() {
-								public void run() {
-									if (cancelled)
-										return;
-									fillInActivationRecord(activationFigure,
-											tStamp + 1, function);
-								}
-							});
-						}
-					});
+					// the right order even if the function lookup to fill in
+					// the function name takes a long time.
+					activationFigures.add(addActivationRecord());
+					enterTStamps.add(tStamp);
+				}
+			}));
+		}
+		public void notifyFunction(final int depth, final Function function) {
+			// Frames are posted before their functions, so the figure is there
+			control.getDisplay().asyncExec(scope.wrap(new Runnable() {
+				public void run() {
+					fillInActivationRecord(activationFigures.get(depth),
+							enterTStamps.get(depth) + 1, function);
 				}
-			});
+			}));
+		}
+		void start(long tStamp) {
+			QueryScope old = s.setCurrentScope(scope);
+			try {
+				new StackUnwinder(s, this).start(tStamp);
+			} finally {
+				s.setCurrentScope(old);
+			}
 		}
+		// Stops the whole cascade, on the agent too
 		void cancel() {
-			cancelled = true;
+			scope.close();
 		}
 		private Session s;
-		// 'cancelled' is only accessed on the UI thread
-		private boolean cancelled;
+		private QueryScope scope;
+		// by depth; only touched on the UI thread
+		private ArrayList<SequenceFigure> activationFigures =
+			new ArrayList<SequenceFigure>();
+		private ArrayList<Long> enterTStamps = new ArrayList<Long>();
     }
     
     // call this on the the UI thread only!
@@ -122,7 +131,7 @@ public class StackView extends FigureView {
 	private void buildCallStackFor(long tStamp) {
 		Session s = getState().getSession();
 		builder = new StackBuilder(s);
-		QueryUtils.findStartOfCall(s, tStamp, builder);
+		builder.start(tStamp);
 	}
 	
 	private void addTopOfStack() {
@@ -0,0 +1,106 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+package org.ocallahan.chronicle;
+
+import java.util.Random;
+
+/**
+ * Compares HexDecoder with the decoding it replaced, on a large readMem
+ * result decoded into an existing array at an offset. The old path decoded
+ * one character at a time with RegisterValues.parseHexChar into a fresh
+ * array, then copied that into place. Also checks that both give the same
+ * bytes for mixed-case input, and reject the same characters wherever they
+ * appear.
+ * 
+ * Usage: HexDecoderBench [megabytes]
+ */
+public class HexDecoderBench {
+	public static void main(String[] args) throws Exception {
+		int bytes = (args.length > 0 ? Integer.parseInt(args[0]) : 4) << 20;
+		Random random = new Random(1);
+		StringBuilder sb = new StringBuilder(bytes*2);
+		for (int i = 0; i < bytes*2; ++i) {
+			sb.append("0123456789abcdefABCDEF".charAt(random.nextInt(22)));
+		}
+		String hex = sb.toString();
+		byte[] dest = new byte[bytes + 100];
+		
+		check(hex, dest);
+		// Long enough for two eight-character blocks and a tail, so every
+		// character is tried in every position of the word-at-a-time path
+		// as well as the one-at-a-time one
+		String valid = "0123456789abcDEF0f";
+		for (char ch = 0; ch < 0xFFFF; ++ch) {
+			for (int i = 0; i < valid.length(); ++i) {
+				String s = valid.substring(0, i) + ch + valid.substring(i + 1);
+				if (accepts(s, true) != accepts(s, false))
+					throw new RuntimeException("Disagree about character " +
+							(int)ch + " at " + i);
+			}
+		}
+		
+		for (int round = 0; round < 5; ++round) {
+			long begin = System.nanoTime();
+			byte[] data = oldDecode(hex);
+			System.arraycopy(data, 0, dest, 100, data.length);
+			long old = System.nanoTime() - begin;
+			begin = System.nanoTime();
+			HexDecoder.decode(hex, 0, hex.length(), dest, 100);
+			long fresh = System.nanoTime() - begin;
+			System.out.println("old: " + report(old, bytes) +
+					"  new: " + report(fresh, bytes));
+		}
+	}
+	
+	private static byte[] oldDecode(String hexData) throws JSONParserException {
+		byte[] data = new byte[hexData.length()/2];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = (byte)(RegisterValues.parseHexChar(hexData.charAt(i*2))*16 +
+			                 RegisterValues.parseHexChar(hexData.charAt(i*2 + 1)));
+		}
+		return data;
+	}
+	
+	private static void check(String hex, byte[] dest) throws JSONParserException {
+		byte[] expected = oldDecode(hex);
+		HexDecoder.decode(hex, 0, hex.length(), dest, 100);
+		for (int i = 0; i < expected.length; ++i) {
+			if (dest[100 + i] != expected[i])
+				throw new RuntimeException("Decoders differ at byte " + i);
+		}
+	}
+	
+	private static boolean accepts(String s, boolean useOld) {
+		try {
+			if (useOld) {
+				oldDecode(s);
+			} else {
+				HexDecoder.decode(s);
+			}
+			return true;
+		} catch (JSONParserException ex) {
+			return false;
+		}
+	}
+	
+	private static String report(long ns, int bytes) {
+		return (ns/1000000) + " ms (" + (bytes*1000L/ns) + " MB/s)";
+	}
+}
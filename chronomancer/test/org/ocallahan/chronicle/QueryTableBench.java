@@ -0,0 +1,176 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+package org.ocallahan.chronicle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the table of in-flight queries under contention. Each of N
+ * threads inserts queries, looks each one up and removes it again, keeping
+ * IN_FLIGHT of its own in the table, like senders and the SessionThread do.
+ * QueryTable is compared with the maps it replaced. Lookups also check that
+ * they get the query they asked for.
+ * 
+ * Usage: QueryTableBench [threads...]
+ */
+public class QueryTableBench {
+	private static interface Table {
+		void put(Query q);
+		Query get(int id);
+		Query remove(int id);
+	}
+	
+	private static class MapTable implements Table {
+		MapTable(Map<Integer,Query> map) {
+			this.map = map;
+		}
+		public void put(Query q) { map.put(q.getID(), q); }
+		public Query get(int id) { return map.get(id); }
+		public Query remove(int id) { return map.remove(id); }
+		private Map<Integer,Query> map;
+	}
+	
+	private static class QTable implements Table {
+		public void put(Query q) { table.put(q); }
+		public Query get(int id) { return table.get(id); }
+		public Query remove(int id) { return table.remove(id); }
+		private QueryTable table = new QueryTable();
+	}
+	
+	private static final int IN_FLIGHT = 2000;
+	private static final int OPERATIONS = 400000;
+	
+	public static void main(String[] args) throws Exception {
+		int[] threadCounts = { 1, 4, 8 };
+		if (args.length > 0) {
+			threadCounts = new int[args.length];
+			for (int i = 0; i < args.length; ++i) {
+				threadCounts[i] = Integer.parseInt(args[i]);
+			}
+		}
+		// A session that never gets a reply, just to allocate IDs
+		PipedOutputStream agent = new PipedOutputStream();
+		Session session = new Session(new PipedInputStream(agent),
+				new OutputStream() {
+			public void write(int b) throws IOException {}
+		}, new Session.Listener() {
+			public void notifyStarted() {}
+			public void notifyMessage(Session.Severity severity, String text,
+					Query q) {}
+			public void notifySending(String s) {}
+			public void notifyReceived(String s) {}
+		});
+		
+		System.out.println("ns per operation");
+		System.out.println("threads  sync HashMap  ConcurrentHashMap  QueryTable");
+		for (int threads : threadCounts) {
+			Query[][] queries = new Query[threads][];
+			for (int t = 0; t < threads; ++t) {
+				queries[t] = new Query[OPERATIONS/threads];
+				for (int i = 0; i < queries[t].length; ++i) {
+					queries[t][i] = new Query(session, "bench") {
+						void handleDone(boolean complete) {}
+						void handleResult(JSONObject object) {}
+					};
+				}
+			}
+			// once to warm up, then the run we report
+			long sync = 0, concurrent = 0, table = 0;
+			for (int round = 0; round < 2; ++round) {
+				sync = run(new MapTable(Collections.synchronizedMap(
+						new HashMap<Integer,Query>())), queries);
+				concurrent = run(new MapTable(
+						new ConcurrentHashMap<Integer,Query>()), queries);
+				table = run(new QTable(), queries);
+			}
+			System.out.println(pad(threads, 7) + pad(sync, 14) +
+					pad(concurrent, 19) + pad(table, 12));
+		}
+		session.close();
+		System.exit(0);
+	}
+	
+	// @return the average ns per operation
+	private static long run(final Table table, Query[][] queries)
+	        throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[queries.length];
+		final RuntimeException[] failure = new RuntimeException[1];
+		for (int t = 0; t < threads.length; ++t) {
+			final Query[] mine = queries[t];
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException ex) {
+						return;
+					}
+					for (int i = 0; i < mine.length; ++i) {
+						table.put(mine[i]);
+						if (table.get(mine[i].getID()) != mine[i]) {
+							failure[0] = new RuntimeException("wrong query");
+						}
+						if (i >= IN_FLIGHT) {
+							int old = mine[i - IN_FLIGHT].getID();
+							table.remove(old);
+							if (table.get(old) != null) {
+								failure[0] = new RuntimeException("removed query found");
+							}
+						}
+					}
+					for (int i = Math.max(0, mine.length - IN_FLIGHT); i < mine.length; ++i) {
+						table.remove(mine[i].getID());
+					}
+				}
+			};
+			threads[t].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		long elapsed = System.nanoTime() - begin;
+		if (failure[0] != null)
+			throw failure[0];
+		int operations = 0;
+		for (Query[] q : queries) {
+			// put, get, remove and get
+			operations += q.length*4;
+		}
+		return elapsed/operations;
+	}
+	
+	private static String pad(long value, int width) {
+		String s = String.valueOf(value);
+		while (s.length() < width) {
+			s = " " + s;
+		}
+		return s + " ";
+	}
+}
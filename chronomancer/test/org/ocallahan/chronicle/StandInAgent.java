@@ -0,0 +1,287 @@
+/* ***** BEGIN LICENSE BLOCK *****
+The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is mozilla.org Chronicle code.
+
+The Initial Developer of the Original Code is Mozilla Foundation.
+Portions created by Mozilla Foundation are Copyright (C) 2007
+Mozilla Foundation. All Rights Reserved.
+
+Contributor(s): robert@ocallahan.org
+*/
+
+package org.ocallahan.chronicle;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+/**
+ * A stand-in for chronicle-query that answers from a synthetic trace, so the
+ * client side can be exercised and timed without a real recording. It speaks
+ * the same protocol over stdin/stdout and handles info, readMem, readReg and
+ * MEM_WRITE scans; everything else just terminates normally.
+ * 
+ * In the synthetic trace every 64th timestamp writes a 256-byte block in
+ * the first 256K of memory, chosen by the timestamp, and a byte's value is
+ * its address plus the number of times its block has been written.
+ * 
+ * It lives with the tests rather than in the plug-in's source.
+ * 
+ * Usage: StandInAgent [-json] [endTStamp]
+ * -json stops it from advertising binary frames, so the JSON and binary
+ * encodings can be compared.
+ */
+public class StandInAgent {
+	public StandInAgent(OutputStream out, boolean binaryFrames, long endTStamp) {
+		this.out = new BufferedOutputStream(out, 0x10000);
+		this.binaryFrames = binaryFrames;
+		this.endTStamp = endTStamp;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		boolean binaryFrames = true;
+		long endTStamp = 1000000;
+		for (String a : args) {
+			if (a.equals("-json")) {
+				binaryFrames = false;
+			} else {
+				endTStamp = Long.parseLong(a);
+			}
+		}
+		new StandInAgent(System.out, binaryFrames, endTStamp).serve(System.in);
+	}
+	
+	/**
+	 * Answers requests from the stream until it ends.
+	 */
+	public void serve(InputStream input) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.length() == 0)
+				continue;
+			JSONObject request = null;
+			try {
+				request = new JSONParser(line).parseObject();
+				handle(request);
+			} catch (JSONParserException ex) {
+				sendError(request, "Bad request: " + ex.getMessage());
+			}
+			if (!in.ready()) {
+				out.flush();
+			}
+		}
+		out.flush();
+	}
+	
+	public void handle(JSONObject request) throws JSONParserException, IOException {
+		String cmd = request.getStringRequired("cmd");
+		int id = request.getIntRequired("id");
+		boolean binary = binaryFrames &&
+		    request.getBooleanOptional("binaryFrames", false);
+		if (cmd.equals("info")) {
+			JSONObjectBuilder b = reply(id);
+			b.append("arch", "amd64");
+			b.append("endTStamp", endTStamp);
+			if (binaryFrames) {
+				b.append("binaryFrames", true);
+			}
+			send(b, null);
+		} else if (cmd.equals("readMem")) {
+			long tStamp = request.getLongRequired("TStamp");
+			for (MemRange r : MemRange.parseRanges(request.getArrayRequired("ranges"))) {
+				sendMemory(id, null, tStamp, r.getStart(), r.getEnd(), binary);
+			}
+		} else if (cmd.equals("readReg")) {
+			sendRegisters(request, id, request.getLongRequired("TStamp"), binary);
+		} else if (cmd.equals("scan") &&
+				request.getStringRequired("map").equals("MEM_WRITE")) {
+			long begin = request.getLongRequired("beginTStamp");
+			long end = Math.min(request.getLongRequired("endTStamp"), endTStamp);
+			boolean first = "findFirst".equals(request.getString("termination"));
+			boolean last = "findLast".equals(request.getString("termination"));
+			MemRange[] ranges = MemRange.parseRanges(request.getArrayRequired("ranges"));
+			scanWrites(id, begin, end, ranges, first, last, binary);
+		} else if (cmd.equals("cancel")) {
+			// Everything finishes before we read the next request
+			return;
+		}
+		JSONObjectBuilder b = reply(id);
+		b.append("terminated", "normal");
+		send(b, null);
+	}
+	
+	private static long blockOf(long tStamp) {
+		return (tStamp/WRITE_INTERVAL)*0x9E3779B1L & 0x3FF;
+	}
+	
+	// The number of writes to the block before tStamp
+	private static long writeCount(long block, long tStamp) {
+		long count = 0;
+		for (long t = 0; t < tStamp; t += WRITE_INTERVAL) {
+			if (blockOf(t) == block) {
+				++count;
+			}
+		}
+		return count;
+	}
+	
+	private static byte byteAt(long address, long writes) {
+		return (byte)(address + writes);
+	}
+	
+	private void sendMemory(int id, String type, long tStamp, long start,
+			long end, boolean binary) throws IOException {
+		byte[] data = new byte[(int)(end - start)];
+		long block = -1;
+		long writes = 0;
+		for (long a = start; a < end; ++a) {
+			if (a/BLOCK_SIZE != block) {
+				block = a/BLOCK_SIZE;
+				writes = writeCount(block, tStamp);
+			}
+			data[(int)(a - start)] = byteAt(a, writes);
+		}
+		JSONObjectBuilder b = reply(id);
+		if (type != null) {
+			b.append("type", type);
+			b.append("TStamp", tStamp);
+		}
+		b.append("start", start);
+		b.append("length", end - start);
+		if (binary) {
+			send(b, data);
+		} else {
+			b.append("bytes", toHex(data));
+			send(b, null);
+		}
+	}
+	
+	private void scanWrites(int id, long begin, long end, MemRange[] ranges,
+			boolean first, boolean last, boolean binary) throws IOException {
+		long from = (begin + WRITE_INTERVAL - 1)/WRITE_INTERVAL*WRITE_INTERVAL;
+		long step = WRITE_INTERVAL;
+		if (last) {
+			from = (end - 1)/WRITE_INTERVAL*WRITE_INTERVAL;
+			step = -WRITE_INTERVAL;
+		}
+		for (long t = from; t >= begin && t < end; t += step) {
+			long blockStart = blockOf(t)*BLOCK_SIZE;
+			boolean found = false;
+			for (MemRange r : ranges) {
+				long s = Math.max(r.getStart(), blockStart);
+				long e = Math.min(r.getEnd(), blockStart + BLOCK_SIZE);
+				if (s < e) {
+					// The value written is the one seen just after t
+					sendMemory(id, "normal", t + 1, s, e, binary);
+					found = true;
+				}
+			}
+			if (found && (first || last))
+				return;
+		}
+	}
+	
+	private void sendRegisters(JSONObject request, int id, long tStamp,
+			boolean binary) throws IOException, JSONParserException {
+		JSONObjectBuilder b = reply(id);
+		JSONObjectBuilder fields = binary ? b.appendObject("payloadFields") : null;
+		byte[] payload = new byte[0];
+		for (String f : request.getFields()) {
+			if (!(request.getValue(f) instanceof Number) || f.equals("id") ||
+				f.equals("TStamp"))
+				continue;
+			// The thread is always 32 bits, whatever was asked for
+			int bytes = f.equals("thread") ? 4 : request.getIntRequired(f)/8;
+			byte[] value = new byte[bytes];
+			long seed = f.hashCode()*31L + tStamp;
+			for (int i = 0; i < bytes; ++i) {
+				value[i] = (byte)(seed >> ((bytes - 1 - i)%8*8));
+			}
+			if (binary) {
+				fields.append(f, bytes);
+				byte[] bigger = new byte[payload.length + bytes];
+				System.arraycopy(payload, 0, bigger, 0, payload.length);
+				System.arraycopy(value, 0, bigger, payload.length, bytes);
+				payload = bigger;
+			} else {
+				b.append(f, toHex(value));
+			}
+		}
+		if (binary) {
+			fields.finish();
+		}
+		send(b, binary ? payload : null);
+	}
+	
+	// Reports a request we couldn't handle the way chronicle-query does, as
+	// an error message that fails the query, if we know which one it was
+	private void sendError(JSONObject request, String text) throws IOException {
+		Long id = null;
+		if (request != null) {
+			try {
+				id = request.getLong("id");
+			} catch (JSONParserException ex) {
+			}
+		}
+		JSONObjectBuilder b = new JSONObjectBuilder();
+		if (id != null) {
+			b.append("id", id.longValue());
+		}
+		b.append("message", "badRequest");
+		b.append("severity", "error");
+		b.append("text", text);
+		send(b, null);
+		if (id != null) {
+			b = reply(id.intValue());
+			b.append("terminated", "failure");
+			send(b, null);
+		}
+	}
+	
+	private static JSONObjectBuilder reply(int id) {
+		JSONObjectBuilder b = new JSONObjectBuilder();
+		b.append("id", id);
+		return b;
+	}
+	
+	private void send(JSONObjectBuilder b, byte[] payload) throws IOException {
+		if (payload != null) {
+			b.append("payload", payload.length);
+		}
+		out.write(b.makeString().getBytes("UTF-8"));
+		out.write('\n');
+		if (payload != null) {
+			out.write(payload);
+		}
+	}
+	
+	private static String toHex(byte[] data) {
+		StringBuilder sb = new StringBuilder(data.length*2);
+		for (byte v : data) {
+			sb.append(HEX_DIGITS.charAt((v >> 4) & 0xF));
+			sb.append(HEX_DIGITS.charAt(v & 0xF));
+		}
+		return sb.toString();
+	}
+
+	private static final String HEX_DIGITS = "0123456789abcdef";
+	private static final long   WRITE_INTERVAL = 64;
+	private static final long   BLOCK_SIZE = 256;
+	
+	private OutputStream out;
+	private boolean      binaryFrames;
+	private long         endTStamp;
+}